@@ -17,9 +17,18 @@
 package com.google.sample.mobileassistantbackend;
 
 import com.google.sample.mobileassistantbackend.models.CheckIn;
+import com.google.sample.mobileassistantbackend.models.CheckInRollupState;
 import com.google.sample.mobileassistantbackend.models.Offer;
 import com.google.sample.mobileassistantbackend.models.Place;
+import com.google.sample.mobileassistantbackend.models.PlaceBusyHours;
+import com.google.sample.mobileassistantbackend.models.PlaceCounterShard;
+import com.google.sample.mobileassistantbackend.models.PlaceIndexBuild;
+import com.google.sample.mobileassistantbackend.models.PlaceIndexReconciliation;
+import com.google.sample.mobileassistantbackend.models.PlaceIndexState;
 import com.google.sample.mobileassistantbackend.models.Recommendation;
+import com.google.sample.mobileassistantbackend.models.RecommendationInbox;
+import com.google.sample.mobileassistantbackend.models.RecommendationSweepState;
+import com.google.sample.mobileassistantbackend.models.RecommendationTemplateVersion;
 import com.google.sample.mobileassistantbackend.models.Registration;
 
 import com.googlecode.objectify.Objectify;
@@ -44,6 +53,15 @@ public final class OfyService {
             factory().register(Offer.class);
             factory().register(Recommendation.class);
             factory().register(Place.class);
+            factory().register(PlaceIndexState.class);
+            factory().register(PlaceIndexBuild.class);
+            factory().register(PlaceIndexReconciliation.class);
+            factory().register(PlaceCounterShard.class);
+            factory().register(PlaceBusyHours.class);
+            factory().register(CheckInRollupState.class);
+            factory().register(RecommendationTemplateVersion.class);
+            factory().register(RecommendationSweepState.class);
+            factory().register(RecommendationInbox.class);
     }
 
     /**
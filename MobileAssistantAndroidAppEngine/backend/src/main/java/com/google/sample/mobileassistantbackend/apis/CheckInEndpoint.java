@@ -22,15 +22,33 @@ import com.google.api.server.spi.config.ApiClass;
 import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiNamespace;
 import com.google.api.server.spi.config.Named;
+import com.google.api.server.spi.config.Nullable;
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.appengine.api.users.User;
 import com.google.sample.mobileassistantbackend.Constants;
 import com.google.sample.mobileassistantbackend.models.CheckIn;
+import com.google.sample.mobileassistantbackend.utils.CheckInBatcher;
+import com.google.sample.mobileassistantbackend.utils.CheckInUtil;
 import com.google.sample.mobileassistantbackend.utils.EndpointUtil;
+import com.google.sample.mobileassistantbackend.utils.Metrics;
+import com.google.sample.mobileassistantbackend.utils.PlaceCounters;
+import com.google.sample.mobileassistantbackend.utils.RecentVisits;
+import com.googlecode.objectify.cmd.Query;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
@@ -66,18 +84,113 @@ public class CheckInEndpoint {
             Logger.getLogger(CheckInEndpoint.class.getName());
 
     /**
-     * Lists all the entities inserted in datastore.
+     * The default number of entities listed per page.
+     */
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * The maximum number of entities listed per page.
+     */
+    private static final int MAXIMUM_PAGE_SIZE = 1000;
+
+    /**
+     * The queue of the tasks generating personalized offers.
+     */
+    private static final String RECOMMENDATIONS_QUEUE =
+            "recommendations-queue";
+
+    /**
+     * The time window within which repeated check-ins of a user at a place
+     * share their recommendation task. It matches the expiration of the
+     * recommendations, within which RecommendationServlet skips the
+     * repeated check-ins anyway.
+     */
+    private static final long RECOMMENDATION_WINDOW_IN_MILLISECONDS =
+            TimeUnit.MINUTES.toMillis(2);
+
+    /**
+     * Delay before generating the recommendations of a check-in, to
+     * simulate their creation time, only for demo.
+     */
+    private static final long RECOMMENDATION_DELAY_IN_MILLISECONDS =
+            TimeUnit.SECONDS.toMillis(15);
+
+    /**
+     * The system property setting the collection window of the group commit
+     * of check-ins, in milliseconds; group commit is disabled if it is not
+     * positive.
+     */
+    private static final String GROUP_COMMIT_PROPERTY =
+            "checkins.group.commit.window.millis";
+
+    /**
+     * The group commit batcher of the check-ins, or null if disabled.
+     */
+    private static final CheckInBatcher BATCHER = createBatcher();
+
+    /**
+     * Lists the entities inserted in datastore one page at a time, ordered
+     * by check-in date. Use CheckInExportServlet to export all of them.
+     * @param userEmail the email of the user of the check-ins, or null for
+     *      all users.
+     * @param placeId the identifier of the place of the check-ins, or null
+     *      for all places.
+     * @param from the start date of the check-ins, inclusive, or null.
+     * @param to the end date of the check-ins, exclusive, or null.
+     * @param pLimit the maximum number of entities in the page, or null for
+     *      DEFAULT_PAGE_SIZE.
+     * @param cursor the nextPageToken of the previous page, or null for the
+     *      first page.
      * @param user the user requesting the entities.
-     * @return the list of all entities persisted.
+     * @return a page of entities and the token of the next page.
      * @throws com.google.api.server.spi.ServiceException if user is not
      * authorized
      */
-    @SuppressWarnings({"cast", "unchecked"})
-    public final List<CheckIn> listCheckIn(final User user) throws
-            ServiceException {
+    @ApiMethod(httpMethod = "GET")
+    public final CollectionResponse<CheckIn> listCheckIn(
+            @Nullable @Named("userEmail") final String userEmail,
+            @Nullable @Named("placeId") final String placeId,
+            @Nullable @Named("from") final Date from,
+            @Nullable @Named("to") final Date to,
+            @Nullable @Named("limit") final Integer pLimit,
+            @Nullable @Named("cursor") final String cursor,
+            final User user) throws ServiceException {
         EndpointUtil.throwIfNotAdmin(user);
 
-        return ofy().load().type(CheckIn.class).list();
+        int limit = DEFAULT_PAGE_SIZE;
+        if (pLimit != null) {
+            if (pLimit <= 0 || pLimit > MAXIMUM_PAGE_SIZE) {
+                throw new BadRequestException("Invalid value of 'limit' "
+                        + "argument, the maximum is " + MAXIMUM_PAGE_SIZE);
+            }
+            limit = pLimit;
+        }
+
+        Query<CheckIn> query = CheckInUtil.queryCheckIns(userEmail, placeId,
+                from, to).limit(limit);
+        if (cursor != null) {
+            try {
+                query = query.startAt(Cursor.fromWebSafeString(cursor));
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException(
+                        "Invalid value of 'cursor' argument");
+            }
+        }
+
+        List<CheckIn> checkIns = new ArrayList<>(limit);
+        QueryResultIterator<CheckIn> iterator = query.iterator();
+        while (iterator.hasNext()) {
+            checkIns.add(iterator.next());
+        }
+
+        String nextCursor = null;
+        if (checkIns.size() == limit) {
+            nextCursor = iterator.getCursor().toWebSafeString();
+        }
+        return CollectionResponse.<CheckIn>builder()
+                .setItems(checkIns)
+                .setNextPageToken(nextCursor)
+                .build();
     }
 
     /**
@@ -115,15 +228,41 @@ public class CheckInEndpoint {
         // Do not use the key provided by the caller; use a generated key.
         checkin.clearKey();
 
+        if (BATCHER != null) {
+            // Save the check-in and enqueue the task generating personalized
+            // offers together with the concurrent check-ins.
+            String taskName = getRecommendationTaskName(
+                    checkin.getPlaceId(), user, checkin.getCheckInDate());
+            BATCHER.save(checkin, buildRecommendationTask(
+                    checkin.getPlaceId(), user, checkin.getCheckInDate(),
+                    taskName), taskName);
+            recordCheckIn(checkin);
+            return checkin;
+        }
+
         ofy().save().entity(checkin).now();
+        recordCheckIn(checkin);
 
         // generate personalized offers when user checks into a place and send
         // the, to the user using push notification
-        pushPersonalizedOffers(checkin.getPlaceId(), user);
+        pushPersonalizedOffers(checkin.getPlaceId(), user,
+                checkin.getCheckInDate());
 
         return checkin;
     }
 
+    /**
+     * Counts a saved check-in in the recent visits of the user and in the
+     * counters of the place. The task generating personalized offers runs
+     * after a countdown, so it still counts the visit.
+     * @param checkin the saved check-in.
+     */
+    private static void recordCheckIn(final CheckIn checkin) {
+        RecentVisits.record(checkin.getUserEmail(), checkin.getPlaceId(),
+                checkin.getCheckInDate());
+        PlaceCounters.recordCheckIn(checkin.getPlaceId());
+    }
+
     /**
      * Updates a entity. It uses HTTP PUT method.
      * @param checkin the entity to be updated.
@@ -176,19 +315,97 @@ public class CheckInEndpoint {
      * Sends personalized offers to a user that checked in at a place.
      * @param placeId the place from which we want to retrieve offers.
      * @param user the user to whom we send the personalized offers.
+     * @param checkInDate the date of the check-in.
      */
-    private void pushPersonalizedOffers(final String placeId, final User user) {
+    private void pushPersonalizedOffers(final String placeId, final User user,
+            final Date checkInDate) {
         // insert a task to a queue
         LOG.info("adding a task to recommendations-queue");
-        Queue queue = QueueFactory.getQueue("recommendations-queue");
+        Queue queue = QueueFactory.getQueue(RECOMMENDATIONS_QUEUE);
 
         try {
-            String userEmail = user.getEmail();
-            queue.add(withUrl("/tasks/recommendations")
-                    .param("userEmail", userEmail).param("placeId", placeId));
+            queue.add(buildRecommendationTask(placeId, user, checkInDate,
+                    getRecommendationTaskName(placeId, user, checkInDate)));
+            Metrics.increment(Metrics.RECOMMENDATIONS_ENQUEUED, 1);
             LOG.info("task added");
+        } catch (TaskAlreadyExistsException e) {
+            Metrics.increment(Metrics.RECOMMENDATIONS_COALESCED, 1);
+            LOG.info("task already added for this time window");
         } catch (RuntimeException e) {
             LOG.severe(e.getMessage());
         }
     }
+
+    /**
+     * Builds the task generating personalized offers for a user that checked
+     * in at a place. The task runs after RECOMMENDATION_DELAY, the time the
+     * demo pretends to crunch data, without occupying a request thread
+     * meanwhile.
+     * @param placeId the place from which we want to retrieve offers.
+     * @param user the user to whom we send the personalized offers.
+     * @param checkInDate the date of the check-in.
+     * @param taskName the name of the task.
+     * @return the task.
+     */
+    private static TaskOptions buildRecommendationTask(final String placeId,
+            final User user, final Date checkInDate, final String taskName) {
+        return withUrl("/tasks/recommendations").taskName(taskName)
+                .countdownMillis(RECOMMENDATION_DELAY_IN_MILLISECONDS)
+                .param("userEmail", user.getEmail()).param("placeId", placeId)
+                .param("checkInTime", Long.toString(checkInDate.getTime()));
+    }
+
+    /**
+     * Returns the name of the task generating personalized offers for a
+     * check-in. It is derived from the user, the place and the
+     * recommendation window of the check-in, so the queue drops the tasks of
+     * repeated check-ins within a window.
+     * @param placeId the place the user checked in at.
+     * @param user the user that checked in.
+     * @param checkInDate the date of the check-in.
+     * @return the task name.
+     */
+    private static String getRecommendationTaskName(final String placeId,
+            final User user, final Date checkInDate) {
+        long window = checkInDate.getTime()
+                / RECOMMENDATION_WINDOW_IN_MILLISECONDS;
+        return "recommendations-" + hash(user.getEmail() + "\n" + placeId)
+                + "-" + window;
+    }
+
+    /**
+     * Hashes a string into characters allowed in task names.
+     * @param value the string.
+     * @return the hexadecimal SHA-1 digest of the string.
+     */
+    private static String hash(final String value) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] bytes = digest.digest(value.getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Creates the group commit batcher of the check-ins if the
+     * GROUP_COMMIT_PROPERTY system property enables it.
+     * @return the batcher, or null if group commit is disabled.
+     */
+    private static CheckInBatcher createBatcher() {
+        long window = Long.getLong(GROUP_COMMIT_PROPERTY, 0);
+        if (window <= 0) {
+            return null;
+        }
+        LOG.info("Group commit of check-ins enabled, window " + window
+                + " ms");
+        return new CheckInBatcher(window,
+                QueueFactory.getQueue(RECOMMENDATIONS_QUEUE));
+    }
 }
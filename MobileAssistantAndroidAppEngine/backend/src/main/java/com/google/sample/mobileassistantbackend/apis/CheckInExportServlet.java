@@ -0,0 +1,232 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.apis;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.sample.mobileassistantbackend.models.CheckIn;
+import com.google.sample.mobileassistantbackend.utils.CheckInUtil;
+import com.googlecode.objectify.cmd.Query;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet exporting the check-ins, ordered by check-in date, as
+ * newline-delimited JSON (format=ndjson, the default) or CSV (format=csv).
+ *
+ * The check-ins can be filtered with the userEmail, placeId, from and to
+ * parameters; dates are in the yyyy-MM-dd'T'HH:mm:ss'Z' format, in UTC. They
+ * are fetched in batches and written as they are fetched, so the response
+ * is streamed without holding the check-ins in memory. When the export
+ * takes longer than EXPORT_TIME, it ends with a line holding the cursor to
+ * pass in the cursor parameter to export the rest: {"nextCursor":"..."} in
+ * JSON, #nextCursor=... in CSV.
+ */
+public class CheckInExportServlet extends HttpServlet {
+
+    /**
+     * Log output.
+     */
+    private static final Logger LOG = Logger
+            .getLogger(CheckInExportServlet.class.getName());
+
+    /**
+     * The value of the format parameter requesting CSV.
+     */
+    private static final String CSV_FORMAT = "csv";
+
+    /**
+     * The value of the format parameter requesting newline-delimited JSON.
+     */
+    private static final String NDJSON_FORMAT = "ndjson";
+
+    /**
+     * The format of the dates, in UTC.
+     */
+    private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+
+    /**
+     * The number of CheckIn entities fetched per datastore batch, and
+     * written between flushes of the response.
+     */
+    private static final int CHECKINS_PER_BATCH = 500;
+
+    /**
+     * How long an export runs before ending with a cursor, well within the
+     * deadline of the requests.
+     */
+    private static final long EXPORT_TIME_IN_MILLISECONDS =
+            TimeUnit.SECONDS.toMillis(45);
+
+    /**
+     * The characters below which JSON requires an escape sequence.
+     */
+    private static final char FIRST_UNESCAPED_CHARACTER = ' ';
+
+    @Override
+    public final void doGet(final HttpServletRequest req,
+            final HttpServletResponse resp) throws IOException {
+        String format = req.getParameter("format");
+        if (format == null) {
+            format = NDJSON_FORMAT;
+        }
+        if (!NDJSON_FORMAT.equals(format) && !CSV_FORMAT.equals(format)) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Invalid format " + format);
+            return;
+        }
+        boolean csv = CSV_FORMAT.equals(format);
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Query<CheckIn> query;
+        try {
+            query = CheckInUtil.queryCheckIns(req.getParameter("userEmail"),
+                    req.getParameter("placeId"),
+                    parseDate(dateFormat, req.getParameter("from")),
+                    parseDate(dateFormat, req.getParameter("to")))
+                    .chunk(CHECKINS_PER_BATCH);
+            if (req.getParameter("cursor") != null) {
+                query = query.startAt(Cursor.fromWebSafeString(
+                        req.getParameter("cursor")));
+            }
+        } catch (ParseException | IllegalArgumentException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Invalid parameter: " + e.getMessage());
+            return;
+        }
+
+        resp.setCharacterEncoding("UTF-8");
+        if (csv) {
+            resp.setContentType("text/csv");
+        } else {
+            resp.setContentType("application/x-ndjson");
+        }
+        PrintWriter writer = resp.getWriter();
+        if (csv) {
+            writer.println("key,userEmail,placeId,checkInDate");
+        }
+
+        long deadline = System.currentTimeMillis()
+                + EXPORT_TIME_IN_MILLISECONDS;
+        long exported = 0;
+        QueryResultIterator<CheckIn> iterator = query.iterator();
+        while (iterator.hasNext()) {
+            CheckIn checkIn = iterator.next();
+            String date = null;
+            if (checkIn.getCheckInDate() != null) {
+                date = dateFormat.format(checkIn.getCheckInDate());
+            }
+            if (csv) {
+                writer.println(checkIn.getKey() + ","
+                        + toCsv(checkIn.getUserEmail()) + ","
+                        + toCsv(checkIn.getPlaceId()) + ","
+                        + toCsv(date));
+            } else {
+                writer.println("{\"key\":" + checkIn.getKey()
+                        + ",\"userEmail\":" + toJson(checkIn.getUserEmail())
+                        + ",\"placeId\":" + toJson(checkIn.getPlaceId())
+                        + ",\"checkInDate\":" + toJson(date) + "}");
+            }
+            exported++;
+
+            if (exported % CHECKINS_PER_BATCH == 0) {
+                writer.flush();
+                if (System.currentTimeMillis() >= deadline
+                        && iterator.hasNext()) {
+                    String cursor = iterator.getCursor().toWebSafeString();
+                    if (csv) {
+                        writer.println("#nextCursor=" + cursor);
+                    } else {
+                        writer.println("{\"nextCursor\":" + toJson(cursor)
+                                + "}");
+                    }
+                    break;
+                }
+            }
+        }
+        writer.flush();
+        LOG.info("Exported " + exported + " check-ins as " + format);
+    }
+
+    /**
+     * Parses an optional date parameter.
+     * @param dateFormat the format of the dates.
+     * @param value the value of the parameter, or null.
+     * @return the date, or null if the value is null.
+     * @throws ParseException if the value is not a valid date.
+     */
+    private static Date parseDate(final SimpleDateFormat dateFormat,
+            final String value) throws ParseException {
+        if (value == null) {
+            return null;
+        }
+        return dateFormat.parse(value);
+    }
+
+    /**
+     * Formats a CSV field, quoting it if needed.
+     * @param value the value of the field, or null.
+     * @return the field.
+     */
+    private static String toCsv(final String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0
+                && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Formats a JSON string.
+     * @param value the string, or null.
+     * @return the quoted and escaped string, or null.
+     */
+    private static String toJson(final String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder json = new StringBuilder(value.length() + 2);
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < FIRST_UNESCAPED_CHARACTER) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+}
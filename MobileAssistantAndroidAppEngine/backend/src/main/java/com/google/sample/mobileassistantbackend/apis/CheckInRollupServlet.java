@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.apis;
+
+import com.google.sample.mobileassistantbackend.utils.CheckInRollup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet for the cron job folding the new check-ins into the busy
+ * hours histograms of the places, see CheckInRollup.
+ */
+public class CheckInRollupServlet extends HttpServlet {
+
+    /**
+     * Log output.
+     */
+    private static final Logger LOG = Logger
+            .getLogger(CheckInRollupServlet.class.getName());
+
+    /**
+     * How long a run starts new spans for, well within the deadline of the
+     * cron requests; the next run resumes from the watermark.
+     */
+    private static final long RUN_TIME_IN_MILLISECONDS =
+            TimeUnit.MINUTES.toMillis(5);
+
+    @Override
+    public final void doGet(final HttpServletRequest req,
+            final HttpServletResponse resp)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        long folded = CheckInRollup.run(start + RUN_TIME_IN_MILLISECONDS);
+        LOG.info("Folded " + folded + " check-ins in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+}
@@ -16,100 +16,128 @@
 
 package com.google.sample.mobileassistantbackend.apis;
 
-import com.google.appengine.api.search.Document;
-import com.google.appengine.api.search.GetRequest;
-import com.google.appengine.api.search.GetResponse;
-import com.google.appengine.api.search.Index;
-import com.google.appengine.api.search.PutException;
-import com.google.appengine.api.search.StatusCode;
-import com.google.sample.mobileassistantbackend.models.Place;
-import com.google.sample.mobileassistantbackend.utils.PlacesHelper;
+import com.google.sample.mobileassistantbackend.models.PlaceIndexBuild;
+import com.google.sample.mobileassistantbackend.models.PlaceIndexReconciliation;
+import com.google.sample.mobileassistantbackend.utils.Metrics;
+import com.google.sample.mobileassistantbackend.utils.PlaceIndexBuilder;
+import com.google.sample.mobileassistantbackend.utils.PlaceIndexReconciler;
+import com.google.sample.mobileassistantbackend.utils.PlaceIndexVersions;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.PrintWriter;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import static com.google.sample.mobileassistantbackend.OfyService.ofy;
-
 /**
  * HttpServlet for handling maintenance tasks.
+ *
+ * By default, as run nightly by cron, it starts reconciling the Places
+ * index with the Place entities, which the Place index update tasks normally
+ * keep in sync, in the background with resumable slice tasks writing only
+ * the documents that differ, see PlaceIndexReconciler; it does nothing while
+ * a rebuild is running, as the rebuilt index will be up to date. With the
+ * mode=rebuild parameter it starts building a new version of the whole
+ * index, superseding the running rebuild if any, see PlaceIndexBuilder, and
+ * mode=status reports the progress of the rebuilds and reconciliations.
+ * mode=metrics reports the operational counters, see Metrics.
  */
 public class MaintenanceTasksServlet extends HttpServlet {
 
-    @Override
-    public final void doGet(final HttpServletRequest req,
-            final HttpServletResponse resp) throws IOException {
-        resp.setContentType("text/plain");
-        if (!buildSearchIndexForPlaces()) {
-            resp.getWriter().println(
-                    "MaintenanceTasks failed. Try again by refreshing.");
-            return;
-        }
-        resp.getWriter().println("MaintenanceTasks completed");
-    }
+    /**
+     * The value of the mode parameter requesting a full rebuild.
+     */
+    private static final String REBUILD_MODE = "rebuild";
 
     /**
-     * Creates the indexes to search for places.
-     * @return a boolean indicating the success or failure of the method.
+     * The value of the mode parameter requesting the progress of the
+     * rebuilds.
      */
-    @SuppressWarnings({"cast", "unchecked"})
-    private boolean buildSearchIndexForPlaces() {
-        Index index = PlacesHelper.getIndex();
+    private static final String STATUS_MODE = "status";
 
-        removeAllDocumentsFromIndex();
+    /**
+     * The value of the mode parameter requesting the operational counters.
+     */
+    private static final String METRICS_MODE = "metrics";
 
-        List<Place> places = ofy().load().type(Place.class).list();
+    /**
+     * The number of rebuilds, and of reconciliations, reported by the status
+     * mode.
+     */
+    private static final int BUILDS_REPORTED = 5;
 
-        try {
-            for (Place place : places) {
-                Document placeAsDocument = PlacesHelper.buildDocument(
-                        place.getPlaceId(), place.getName(), place.getAddress(),
-                        place.getLocation());
-                try {
-                    index.put(placeAsDocument);
-                } catch (PutException e) {
-                    if (StatusCode.TRANSIENT_ERROR
-                            .equals(e.getOperationResult().getCode())) {
-                        return false;
-                    }
-                }
+    @Override
+    public final void doGet(final HttpServletRequest req,
+            final HttpServletResponse resp) throws IOException {
+        resp.setContentType("text/plain");
+        String mode = req.getParameter("mode");
+        if (REBUILD_MODE.equals(mode)) {
+            long version = PlaceIndexBuilder.start();
+            resp.getWriter().println("Started building version " + version
+                    + " of the places index, see ?mode=" + STATUS_MODE);
+            return;
+        } else if (STATUS_MODE.equals(mode)) {
+            printBuilds(resp.getWriter());
+            return;
+        } else if (METRICS_MODE.equals(mode)) {
+            for (Map.Entry<String, Long> counter
+                    : Metrics.getAll().entrySet()) {
+                resp.getWriter().println(counter.getKey() + " "
+                        + counter.getValue());
             }
-        } catch (Exception e) {
-            return false;
+            return;
         }
-
-        return true;
+        if (PlaceIndexVersions.isBuilding()) {
+            resp.getWriter().println("A rebuild of the places index is "
+                    + "running, skipping the reconciliation, see ?mode="
+                    + STATUS_MODE);
+            return;
+        }
+        long id = PlaceIndexReconciler.start();
+        resp.getWriter().println("Started reconciliation " + id
+                + " of the places index, see ?mode=" + STATUS_MODE);
     }
 
     /**
-     * Cleans the index of places from all entries.
+     * Prints the progress of the most recent rebuilds and reconciliations
+     * of the index.
+     * @param writer the output.
      */
-    private void removeAllDocumentsFromIndex() {
-        Index index = PlacesHelper.getIndex();
-        // As the request will only return up to 1000 documents,
-        // we need to loop until there are no more documents in the index.
-        // We batch delete 1000 documents per iteration.
-        final int numberOfDocuments = 1000;
-        while (true) {
-            GetRequest request = GetRequest.newBuilder()
-                    .setReturningIdsOnly(true)
-                    .build();
-
-            ArrayList<String> documentIds = new ArrayList<>(numberOfDocuments);
-            GetResponse<Document> response = index.getRange(request);
-            for (Document document : response.getResults()) {
-                documentIds.add(document.getId());
-            }
-
-            if (documentIds.size() == 0) {
-                break;
-            }
-
-            index.delete(documentIds);
+    private void printBuilds(final PrintWriter writer) {
+        Date now = new Date();
+        for (PlaceIndexBuild build
+                : PlaceIndexBuilder.getBuilds(BUILDS_REPORTED)) {
+            long seconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(
+                    build.getUpdateTime().getTime()
+                            - build.getStartTime().getTime()));
+            writer.println("version " + build.getVersion() + ": "
+                    + build.getStatus() + ", " + build.getDocumentsPut()
+                    + " documents in " + build.getNextSlice() + " slices, "
+                    + build.getDocumentsPut() / seconds + " documents/s, "
+                    + "started " + build.getStartTime() + ", updated "
+                    + TimeUnit.MILLISECONDS.toSeconds(now.getTime()
+                            - build.getUpdateTime().getTime()) + " s ago"
+                    + (build.getError() == null ? ""
+                            : ", error: " + build.getError()));
+        }
+        for (PlaceIndexReconciliation reconciliation
+                : PlaceIndexReconciler.getReconciliations(BUILDS_REPORTED)) {
+            writer.println("reconciliation " + reconciliation.getId()
+                    + " of version " + reconciliation.getVersion() + ": "
+                    + reconciliation.getPhase() + ", "
+                    + reconciliation.getDocumentsPut() + " documents put, "
+                    + reconciliation.getDocumentsDeleted()
+                    + " deleted in " + reconciliation.getNextSlice()
+                    + " slices, started " + reconciliation.getStartTime()
+                    + ", updated " + TimeUnit.MILLISECONDS.toSeconds(
+                            now.getTime() - reconciliation.getUpdateTime()
+                                    .getTime()) + " s ago"
+                    + (reconciliation.getError() == null ? ""
+                            : ", error: " + reconciliation.getError()));
         }
     }
 }
@@ -18,6 +18,7 @@
 package com.google.sample.mobileassistantbackend.apis;
 
 import com.google.android.gcm.server.Message;
+import com.google.android.gcm.server.MulticastResult;
 import com.google.android.gcm.server.Result;
 import com.google.android.gcm.server.Sender;
 import com.google.api.server.spi.config.Api;
@@ -29,6 +30,7 @@ import com.google.sample.mobileassistantbackend.Constants;
 import com.google.sample.mobileassistantbackend.models.Registration;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -68,9 +70,10 @@ public class MessagingEndpoint {
             .getLogger(MessagingEndpoint.class.getName());
 
     /**
-     * The maximum number of devices to send a message to.
+     * The maximum number of devices a message is multicast to at once, as
+     * allowed by GCM.
      */
-    private static final int NUMBER_OF_DEVICES = 10;
+    private static final int MULTICAST_SIZE = 1000;
 
     /**
      * The maximum number of times GCM will attempt to deliver the message.
@@ -78,8 +81,8 @@ public class MessagingEndpoint {
     private static final int MAXIMUM_RETRIES = 5;
 
     /**
-     * Send to the first NUMBER_OF_DEVICE devices (you can modify this to send
-     * to any number of devices or a specific device).
+     * Send to all the registered devices, multicasting the message to
+     * MULTICAST_SIZE devices at a time.
      * @param payload The message to send
      * @throws java.io.IOException if unable to send the message.
      */
@@ -95,14 +98,45 @@ public class MessagingEndpoint {
         Message msg = new Message.Builder()
                 .setData(payload)
                 .build();
-        List<Registration> records = ofy().load()
-                .type(Registration.class).limit(NUMBER_OF_DEVICES)
-                .list();
+        List<Registration> records = new ArrayList<>(MULTICAST_SIZE);
+        for (Registration record : ofy().load().type(Registration.class)
+                .chunk(MULTICAST_SIZE)) {
+            records.add(record);
+            if (records.size() == MULTICAST_SIZE) {
+                multicast(sender, msg, records);
+                records.clear();
+            }
+        }
+        if (!records.isEmpty()) {
+            multicast(sender, msg, records);
+        }
+    }
+
+    /**
+     * Multicasts a message to devices, then updates the changed registration
+     * ids and removes the devices no longer registered, each in one batch.
+     * @param sender the GCM sender.
+     * @param msg the message to send.
+     * @param records the registrations of the devices, at most
+     *      MULTICAST_SIZE.
+     * @throws java.io.IOException if unable to send the message.
+     */
+    private void multicast(final Sender sender, final Message msg,
+            final List<Registration> records) throws IOException {
+        List<String> regIds = new ArrayList<>(records.size());
         for (Registration record : records) {
-            Result result = sender.send(msg, record.getRegId(),
-                    MAXIMUM_RETRIES);
+            regIds.add(record.getRegId());
+        }
+        MulticastResult multicastResult = sender.send(msg, regIds,
+                MAXIMUM_RETRIES);
+
+        List<Registration> updated = new ArrayList<>();
+        List<Registration> removed = new ArrayList<>();
+        List<Result> results = multicastResult.getResults();
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            Registration record = records.get(i);
             if (result.getMessageId() != null) {
-                LOG.info("Message sent to " + record.getRegId());
                 String canonicalRegId = result.getCanonicalRegistrationId();
                 if (canonicalRegId != null) {
                     // if the regId changed, we have to update the datastore
@@ -110,7 +144,7 @@ public class MessagingEndpoint {
                             + " updating to "
                             + canonicalRegId);
                     record.setRegId(canonicalRegId);
-                    ofy().save().entity(record).now();
+                    updated.add(record);
                 }
             } else {
                 String error = result.getErrorCodeName();
@@ -121,11 +155,21 @@ public class MessagingEndpoint {
                             + "removing from datastore");
                     // if the device is no longer registered with Gcm, remove it
                     // from the datastore
-                    ofy().delete().entity(record).now();
+                    removed.add(record);
                 } else {
-                    LOG.warning("Error when sending message : " + error);
+                    LOG.warning("Error when sending message to "
+                            + record.getRegId() + " : " + error);
                 }
             }
         }
+        LOG.info("Message sent to " + multicastResult.getSuccess() + " of "
+                + records.size() + " devices");
+
+        if (!updated.isEmpty()) {
+            ofy().save().entities(updated).now();
+        }
+        if (!removed.isEmpty()) {
+            ofy().delete().entities(removed).now();
+        }
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.apis;
+
+import com.google.sample.mobileassistantbackend.utils.PlaceCounters;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet for processing the tasks adding the check-ins flushed by the
+ * instances to the counters of the places, and writing the totals of the
+ * counters to memcache again.
+ */
+public class PlaceCounterServlet extends HttpServlet {
+
+    /**
+     * Log output.
+     */
+    private static final Logger LOG = Logger
+            .getLogger(PlaceCounterServlet.class.getName());
+
+    @Override
+    public final void doPost(final HttpServletRequest req,
+            final HttpServletResponse resp)
+            throws IOException {
+        Map<Long, Integer> counts = new HashMap<>();
+        String[] countValues = req.getParameterValues(
+                PlaceCounters.COUNTS_PARAMETER);
+        if (countValues != null) {
+            for (String value : countValues) {
+                int separator = value.indexOf(':');
+                try {
+                    Long placeId = Long.valueOf(value.substring(0,
+                            Math.max(0, separator)));
+                    Integer count = Integer.valueOf(value.substring(
+                            separator + 1));
+                    Integer previous = counts.put(placeId, count);
+                    if (previous != null) {
+                        counts.put(placeId, previous + count);
+                    }
+                } catch (NumberFormatException e) {
+                    LOG.warning("Invalid check-in count " + value
+                            + ", dropping it");
+                }
+            }
+        }
+
+        List<Long> refreshed = new ArrayList<>();
+        String[] refreshValues = req.getParameterValues(
+                PlaceCounters.REFRESH_PARAMETER);
+        if (refreshValues != null) {
+            for (String value : refreshValues) {
+                try {
+                    refreshed.add(Long.valueOf(value));
+                } catch (NumberFormatException e) {
+                    LOG.warning("Invalid placeId " + value
+                            + ", not refreshing it");
+                }
+            }
+        }
+
+        // Let Task Queue retry the task on any exception.
+        if (!counts.isEmpty()) {
+            PlaceCounters.add(counts);
+        }
+        if (!refreshed.isEmpty()) {
+            PlaceCounters.refresh(refreshed);
+        }
+        LOG.info("Counted the check-ins at " + counts.size()
+                + " places, refreshed " + refreshed.size() + " places");
+    }
+}
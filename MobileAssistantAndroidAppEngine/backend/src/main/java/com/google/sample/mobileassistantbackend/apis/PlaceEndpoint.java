@@ -22,15 +22,27 @@ import com.google.api.server.spi.config.ApiClass;
 import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiNamespace;
 import com.google.api.server.spi.config.Named;
+import com.google.api.server.spi.config.Nullable;
 import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
 import com.google.appengine.api.datastore.GeoPt;
 import com.google.appengine.api.users.User;
 import com.google.sample.mobileassistantbackend.Constants;
 import com.google.sample.mobileassistantbackend.models.Place;
+import com.google.sample.mobileassistantbackend.models.PlaceBusyHours;
 import com.google.sample.mobileassistantbackend.models.PlaceInfo;
+import com.google.sample.mobileassistantbackend.models.PlacesBatchRequest;
+import com.google.sample.mobileassistantbackend.models.PlacesBatchResponse;
+import com.google.sample.mobileassistantbackend.models.PlacesQuery;
+import com.google.sample.mobileassistantbackend.models.PlacesQueryResult;
+import com.google.sample.mobileassistantbackend.models.PlacesRouteRequest;
 import com.google.sample.mobileassistantbackend.utils.EndpointUtil;
+import com.google.sample.mobileassistantbackend.utils.NearbyQuery;
+import com.google.sample.mobileassistantbackend.utils.PlaceCounters;
+import com.google.sample.mobileassistantbackend.utils.PlacePage;
 import com.google.sample.mobileassistantbackend.utils.PlacesHelper;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -62,7 +74,7 @@ public class PlaceEndpoint {
             .getLogger(PlaceEndpoint.class.getName());
 
     /**
-     * Maximum number of places to return.
+     * Maximum number of places to return, or to return per page.
      */
     private static final int MAXIMUM_NUMBER_PLACES = 100;
 
@@ -71,17 +83,55 @@ public class PlaceEndpoint {
      */
     private static final int MAXIMUM_DISTANCE = 100;
 
+    /**
+     * Maximum number of queries in a batch.
+     */
+    private static final int MAXIMUM_BATCH_SIZE = 500;
+
+    /**
+     * Maximum number of vertices of a route.
+     */
+    private static final int MAXIMUM_ROUTE_POINTS = 500;
+
+    /**
+     * Maximum distance to a route to search places to return, in
+     * kilometers.
+     */
+    private static final double MAXIMUM_ROUTE_WIDTH = 10;
+
     /**
      * The number of meters in a kilometer.
      */
     private static final int METERS_IN_KILOMETER = 1000;
 
+    /**
+     * The value of the sortBy parameter ranking places by distance.
+     */
+    private static final String SORT_BY_DISTANCE = "distance";
+
+    /**
+     * The value of the sortBy parameter ranking places by check-in count.
+     */
+    private static final String SORT_BY_POPULARITY = "popularity";
+
+    /**
+     * The value of the sortBy parameter ranking places by trending score.
+     */
+    private static final String SORT_BY_TRENDING = "trending";
+
     /**
      * Lists nearby places.
      * @param longitudeString the location longitude.
      * @param latitudeString  the location latitude.
      * @param pDistanceInKm   the maximum distance to search for nearby places.
      * @param pCount          the maximum number of places returned.
+     * @param sortBy          the order of the places: "distance" (the
+     *                        default) for the nearest places first,
+     *                        "popularity" for the places with the most
+     *                        check-ins first, "trending" for the places with
+     *                        the highest trending score first, lowered with
+     *                        the distance. Places are ranked among the
+     *                        MAXIMUM_NUMBER_PLACES nearest ones.
      * @param user            the user that requested the entities.
      * @return List of nearby places.
      * @throws com.google.api.server.spi.ServiceException if user is not
@@ -92,14 +142,183 @@ public class PlaceEndpoint {
             longitudeString,
             @Named("latitude") final String latitudeString,
             @Named("distanceInKm") final long pDistanceInKm,
-            @Named("count") final int pCount, final User user) throws
-            ServiceException {
+            @Named("count") final int pCount,
+            @Nullable @Named("sortBy") final String sortBy,
+            final User user) throws ServiceException {
+
+        GeoPt location = parseLocation(latitudeString, longitudeString);
 
+        // limit the result set to up to MAXIMUM_NUMBER_PLACES places within
+        // up to MAXIMUM_DISTANCE km
+        int count = limitCount(pCount, "count");
+        long distanceInKm = limitDistance(pDistanceInKm);
+
+        if (sortBy == null || SORT_BY_DISTANCE.equals(sortBy)) {
+            List<PlaceInfo> places = PlacesHelper.getPlaces(location,
+                    METERS_IN_KILOMETER * distanceInKm, count);
+            PlaceCounters.annotate(places);
+            return places;
+        }
+        if (!SORT_BY_POPULARITY.equals(sortBy)
+                && !SORT_BY_TRENDING.equals(sortBy)) {
+            throw new BadRequestException("Invalid value of 'sortBy' argument");
+        }
+
+        List<PlaceInfo> places = PlacesHelper.getPlaces(location,
+                METERS_IN_KILOMETER * distanceInKm, MAXIMUM_NUMBER_PLACES);
+        PlaceCounters.annotate(places);
+        if (SORT_BY_POPULARITY.equals(sortBy)) {
+            PlaceCounters.sortByPopularity(places);
+        } else {
+            PlaceCounters.sortByTrending(places);
+        }
+        if (places.size() > count) {
+            places = new ArrayList<>(places.subList(0, count));
+        }
+        return places;
+    }
+
+    /**
+     * Lists nearby places one page at a time.
+     * @param longitudeString the location longitude.
+     * @param latitudeString  the location latitude.
+     * @param pDistanceInKm   the maximum distance to search for nearby places.
+     * @param pPageSize       the maximum number of places in the page.
+     * @param cursor          the nextPageToken of the previous page, or null
+     *                        for the first page.
+     * @param user            the user that requested the entities.
+     * @return A page of nearby places and the token of the next page.
+     * @throws com.google.api.server.spi.ServiceException if user is not
+     * authorized
+     */
+    @ApiMethod(httpMethod = "GET")
+    public final CollectionResponse<PlaceInfo> getPlacesPage(
+            @Named("longitude") final String longitudeString,
+            @Named("latitude") final String latitudeString,
+            @Named("distanceInKm") final long pDistanceInKm,
+            @Named("pageSize") final int pPageSize,
+            @Nullable @Named("cursor") final String cursor,
+            final User user) throws ServiceException {
+
+        GeoPt location = parseLocation(latitudeString, longitudeString);
+        int pageSize = limitCount(pPageSize, "pageSize");
+        long distanceInKm = limitDistance(pDistanceInKm);
+
+        PlacePage page;
+        try {
+            page = PlacesHelper.getPlacesPage(location,
+                    METERS_IN_KILOMETER * distanceInKm, pageSize, cursor);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid value of 'cursor' argument");
+        }
+
+        return CollectionResponse.<PlaceInfo>builder()
+                .setItems(page.getPlaces())
+                .setNextPageToken(page.getNextCursor())
+                .build();
+    }
+
+    /**
+     * Lists nearby places for several locations at once. Queries close to
+     * each other share their lookups, and the remaining lookups run
+     * concurrently. It uses HTTP POST method.
+     * @param request the queries, of up to MAXIMUM_BATCH_SIZE locations.
+     * @param user the user that requested the entities.
+     * @return The nearby places of each query, in the order of the queries.
+     * @throws com.google.api.server.spi.ServiceException if user is not
+     * authorized
+     */
+    @ApiMethod(httpMethod = "POST", path = "places/batch")
+    public final PlacesBatchResponse getPlacesBatch(
+            final PlacesBatchRequest request, final User user)
+            throws ServiceException {
+        if (request == null || request.getQueries() == null
+                || request.getQueries().isEmpty()) {
+            throw new BadRequestException("Missing 'queries'");
+        }
+        if (request.getQueries().size() > MAXIMUM_BATCH_SIZE) {
+            throw new BadRequestException("Too many 'queries', the maximum is "
+                    + MAXIMUM_BATCH_SIZE);
+        }
+
+        List<NearbyQuery> queries = new ArrayList<>();
+        for (PlacesQuery query : request.getQueries()) {
+            GeoPt location = toLocation(query.getLatitude(),
+                    query.getLongitude());
+            int count = limitCount(query.getCount(), "count");
+            long distanceInKm = limitDistance(query.getDistanceInKm());
+            queries.add(new NearbyQuery(location,
+                    METERS_IN_KILOMETER * distanceInKm, count));
+        }
+
+        List<PlacesQueryResult> results = new ArrayList<>();
+        for (List<PlaceInfo> places : PlacesHelper.getPlacesBatch(queries)) {
+            PlacesQueryResult result = new PlacesQueryResult();
+            result.setPlaces(places);
+            results.add(result);
+        }
+
+        PlacesBatchResponse response = new PlacesBatchResponse();
+        response.setResults(results);
+        return response;
+    }
+
+    /**
+     * Lists the places along a route, such as a commute, in the order they
+     * are passed. It uses HTTP POST method.
+     * @param request the route, the width of the corridor around it and the
+     *      maximum number of places returned.
+     * @param user the user that requested the entities.
+     * @return The places within widthInKm of the route, ordered by position
+     *      along the route. Their distanceInKilometers is the distance
+     *      traveled along the route before passing them.
+     * @throws com.google.api.server.spi.ServiceException if user is not
+     * authorized
+     */
+    @ApiMethod(httpMethod = "POST", path = "places/route")
+    public final CollectionResponse<PlaceInfo> getPlacesAlongRoute(
+            final PlacesRouteRequest request, final User user)
+            throws ServiceException {
+        if (request == null || request.getRoute() == null
+                || request.getRoute().isEmpty()) {
+            throw new BadRequestException("Missing 'route'");
+        }
+        if (request.getRoute().size() > MAXIMUM_ROUTE_POINTS) {
+            throw new BadRequestException("Too many 'route' points, the "
+                    + "maximum is " + MAXIMUM_ROUTE_POINTS);
+        }
+        List<GeoPt> route = new ArrayList<>();
+        for (GeoPt point : request.getRoute()) {
+            if (point == null) {
+                throw new BadRequestException("Invalid 'route' point");
+            }
+            route.add(toLocation(point.getLatitude(), point.getLongitude()));
+        }
+        if (request.getWidthInKm() < 0) {
+            throw new BadRequestException(
+                    "Invalid value of 'widthInKm' argument");
+        }
+        double widthInKm = Math.min(request.getWidthInKm(),
+                MAXIMUM_ROUTE_WIDTH);
+        int count = limitCount(request.getCount(), "count");
+
+        return CollectionResponse.<PlaceInfo>builder()
+                .setItems(PlacesHelper.getPlacesAlongRoute(route, widthInKm,
+                        count))
+                .build();
+    }
+
+    /**
+     * Parses the location arguments of a request.
+     * @param latitudeString the location latitude.
+     * @param longitudeString the location longitude.
+     * @return the location.
+     * @throws BadRequestException if the arguments are invalid.
+     */
+    private GeoPt parseLocation(final String latitudeString,
+            final String longitudeString) throws BadRequestException {
         float latitude;
         float longitude;
-        GeoPt location;
-        int count = pCount;
-        long distanceInKm = pDistanceInKm;
 
         try {
             latitude = (float) Double.parseDouble(latitudeString);
@@ -115,32 +334,59 @@ public class PlaceEndpoint {
                     "Invalid value of 'longitude' argument");
         }
 
+        return toLocation(latitude, longitude);
+    }
+
+    /**
+     * Validates the coordinates of a location.
+     * @param latitude the location latitude.
+     * @param longitude the location longitude.
+     * @return the location.
+     * @throws BadRequestException if the coordinates are invalid.
+     */
+    private GeoPt toLocation(final double latitude, final double longitude)
+            throws BadRequestException {
         try {
-            location = new GeoPt(latitude, longitude);
+            return new GeoPt((float) latitude, (float) longitude);
         } catch (Exception e) {
             throw new BadRequestException(
                     "Invalid pair of 'latitude' and 'longitude' arguments");
         }
+    }
 
-        // limit the result set to up to MAXIMUM_NUMBER_PLACES places within
-        // up to MAXIMUM_DISTANCE km
+    /**
+     * Limits a requested number of places to MAXIMUM_NUMBER_PLACES.
+     * @param count the requested number of places.
+     * @param argumentName the name of the argument, for error messages.
+     * @return the number of places to return.
+     * @throws BadRequestException if the count is not positive.
+     */
+    private int limitCount(final int count, final String argumentName)
+            throws BadRequestException {
         if (count > MAXIMUM_NUMBER_PLACES) {
-            count = MAXIMUM_NUMBER_PLACES;
+            return MAXIMUM_NUMBER_PLACES;
         } else if (count <= 0) {
-            throw new BadRequestException("Invalid value of 'count' argument");
+            throw new BadRequestException(
+                    "Invalid value of '" + argumentName + "' argument");
         }
+        return count;
+    }
 
+    /**
+     * Limits a requested search distance to MAXIMUM_DISTANCE.
+     * @param distanceInKm the requested distance, in kilometers.
+     * @return the distance to search, in kilometers.
+     * @throws BadRequestException if the distance is negative.
+     */
+    private long limitDistance(final long distanceInKm)
+            throws BadRequestException {
         if (distanceInKm > MAXIMUM_DISTANCE) {
-            distanceInKm = MAXIMUM_DISTANCE;
+            return MAXIMUM_DISTANCE;
         } else if (distanceInKm < 0) {
             throw new BadRequestException(
                     "Invalid value of 'distanceInKm' argument");
         }
-
-        List<PlaceInfo> places = PlacesHelper
-                .getPlaces(location, METERS_IN_KILOMETER * distanceInKm, count);
-
-        return places;
+        return distanceInKm;
     }
 
     /**
@@ -159,6 +405,29 @@ public class PlaceEndpoint {
         return findPlace(id);
     }
 
+    /**
+     * Gets the busy hours of a place: its number of check-ins by hour of the
+     * week, as folded by the check-in rollup. The histogram is a single
+     * entity, cached in memcache.
+     * @param id the primary key of the place.
+     * @param user the user that requested the entity.
+     * @return The busy hours of the place, empty if nobody checked in.
+     * @throws com.google.api.server.spi.ServiceException if user is not
+     * authorized
+     */
+    @ApiMethod(httpMethod = "GET", path = "places/busyhours")
+    public final PlaceBusyHours getBusyHours(@Named("id") final Long id,
+            final User user) throws ServiceException {
+        EndpointUtil.throwIfNotAuthenticated(user);
+
+        PlaceBusyHours busyHours = ofy().load().type(PlaceBusyHours.class)
+                .id(id).now();
+        if (busyHours == null) {
+            busyHours = new PlaceBusyHours(id);
+        }
+        return busyHours;
+    }
+
     /**
      * Inserts the entity into App Engine datastore. It uses HTTP POST method.
      * @param place the entity to be inserted.
@@ -173,6 +442,8 @@ public class PlaceEndpoint {
         EndpointUtil.throwIfNotAdmin(user);
 
         ofy().save().entity(place).now();
+        PlacesHelper.invalidate();
+        PlacesHelper.scheduleIndexUpdate(place.getPlaceId());
 
         return place;
     }
@@ -191,6 +462,8 @@ public class PlaceEndpoint {
         EndpointUtil.throwIfNotAdmin(user);
 
         ofy().save().entity(place).now();
+        PlacesHelper.invalidate();
+        PlacesHelper.scheduleIndexUpdate(place.getPlaceId());
 
         return place;
     }
@@ -214,6 +487,8 @@ public class PlaceEndpoint {
             return;
         }
         ofy().delete().entity(place).now();
+        PlacesHelper.invalidate();
+        PlacesHelper.scheduleIndexUpdate(id);
     }
 
     /**
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.apis;
+
+import com.google.sample.mobileassistantbackend.utils.PlaceIndexReconciler;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet for processing the tasks reconciling the Places index with
+ * the Place entities, one slice of documents or places per task.
+ */
+public class PlaceIndexReconcileServlet extends HttpServlet {
+
+    /**
+     * Log output.
+     */
+    private static final Logger LOG = Logger
+            .getLogger(PlaceIndexReconcileServlet.class.getName());
+
+    @Override
+    public final void doPost(final HttpServletRequest req,
+            final HttpServletResponse resp)
+            throws IOException {
+        long id;
+        int slice;
+        try {
+            id = Long.parseLong(req.getParameter("id"));
+            slice = Integer.parseInt(req.getParameter("slice"));
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid reconciliation task parameters, dropping "
+                    + "the task");
+            return;
+        }
+        int attempt = 0;
+        String retryCount = req.getHeader("X-AppEngine-TaskRetryCount");
+        if (retryCount != null) {
+            attempt = Integer.parseInt(retryCount);
+        }
+
+        // Let Task Queue retry the slice on any exception, it resumes from
+        // the last recorded position.
+        PlaceIndexReconciler.runTask(id, slice, attempt);
+    }
+}
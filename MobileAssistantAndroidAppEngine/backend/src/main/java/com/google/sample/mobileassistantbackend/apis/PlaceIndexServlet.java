@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.apis;
+
+import com.google.sample.mobileassistantbackend.utils.PlacesHelper;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet for processing the tasks updating the document of a place in
+ * the Places index after the place changed.
+ */
+public class PlaceIndexServlet extends HttpServlet {
+
+    /**
+     * Log output.
+     */
+    private static final Logger LOG = Logger
+            .getLogger(PlaceIndexServlet.class.getName());
+
+    @Override
+    public final void doPost(final HttpServletRequest req,
+            final HttpServletResponse resp)
+            throws IOException {
+        Long placeId;
+        try {
+            placeId = Long.valueOf(req.getParameter("placeId"));
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid placeId " + req.getParameter("placeId")
+                    + ", dropping the index update");
+            return;
+        }
+
+        // Let Task Queue retry the task on any exception, the update is
+        // idempotent.
+        PlacesHelper.updateDocument(placeId);
+        LOG.info("Updated the index document of place " + placeId);
+    }
+}
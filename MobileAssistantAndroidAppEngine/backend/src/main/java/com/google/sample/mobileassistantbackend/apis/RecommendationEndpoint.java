@@ -26,8 +26,12 @@ import com.google.appengine.api.users.User;
 import com.google.sample.mobileassistantbackend.Constants;
 import com.google.sample.mobileassistantbackend.models.Recommendation;
 import com.google.sample.mobileassistantbackend.utils.EndpointUtil;
+import com.google.sample.mobileassistantbackend.utils.PlaceRecommendations;
+import com.google.sample.mobileassistantbackend.utils.RecommendationInboxes;
+import com.google.sample.mobileassistantbackend.utils.RecommendationTemplates;
+import com.googlecode.objectify.Key;
 
-import java.util.Date;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -59,19 +63,27 @@ public class RecommendationEndpoint {
             .getLogger(RecommendationEndpoint.class.getName());
 
     /**
-     * Lists all the entities inserted in datastore.
-     * @param placeId the identifier of the recommendation to retrieve.
+     * Lists the unexpired recommendations applicable to a given place: those
+     * of the place and those of all places, generated for the user or for
+     * all users. The recommendations generated for the user are read from
+     * the inbox of the user, newest first, and followed by the inserted
+     * ones.
+     * @param placeId the identifier of the place.
      * @param user the user requesting the entities.
-     * @return List of all entities persisted.
+     * @return List of the applicable entities.
      */
-    @SuppressWarnings({"cast", "unchecked"})
     @ApiMethod(httpMethod = "GET")
     public final List<Recommendation> listRecommendations(
             @Named("placeId") final Long placeId, final User user) {
-        // Optional: Retrieve only recommendations applicable to a given place
-
-        return ofy().load().type(Recommendation.class).filter("expiration >",
-                new Date()).list();
+        String userEmail = null;
+        List<Recommendation> recommendations = new ArrayList<>();
+        if (user != null) {
+            userEmail = user.getEmail();
+            recommendations.addAll(
+                    RecommendationInboxes.list(userEmail, placeId));
+        }
+        recommendations.addAll(PlaceRecommendations.list(placeId, userEmail));
+        return recommendations;
     }
 
     /**
@@ -89,6 +101,11 @@ public class RecommendationEndpoint {
         EndpointUtil.throwIfNotAdmin(user);
 
         ofy().save().entity(recommendation).now();
+        PlaceRecommendations.invalidate(recommendation.getPlaceId());
+        if (RecommendationTemplates.isTemplate(
+                Key.create(recommendation).getName())) {
+            RecommendationTemplates.templateChanged();
+        }
 
         return recommendation;
     }
@@ -107,7 +124,18 @@ public class RecommendationEndpoint {
             throws ServiceException {
         EndpointUtil.throwIfNotAdmin(user);
 
+        // The place of the recommendation may change.
+        Recommendation previous = findRecommendation(
+                Key.create(recommendation).getName());
+        if (previous != null) {
+            PlaceRecommendations.invalidate(previous.getPlaceId());
+        }
         ofy().save().entity(recommendation).now();
+        PlaceRecommendations.invalidate(recommendation.getPlaceId());
+        if (RecommendationTemplates.isTemplate(
+                Key.create(recommendation).getName())) {
+            RecommendationTemplates.templateChanged();
+        }
 
         return recommendation;
     }
@@ -132,6 +160,10 @@ public class RecommendationEndpoint {
             return;
         }
         ofy().delete().entity(recommendation).now();
+        PlaceRecommendations.invalidate(recommendation.getPlaceId());
+        if (RecommendationTemplates.isTemplate(id)) {
+            RecommendationTemplates.templateChanged();
+        }
     }
 
     /**
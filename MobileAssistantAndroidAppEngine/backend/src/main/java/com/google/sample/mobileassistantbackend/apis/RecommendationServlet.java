@@ -19,11 +19,16 @@ package com.google.sample.mobileassistantbackend.apis;
 import com.google.appengine.repackaged.com.google.common.collect.ImmutableMap;
 import com.google.sample.mobileassistantbackend.models.Recommendation;
 import com.google.sample.mobileassistantbackend.utils.CheckInUtil;
+import com.google.sample.mobileassistantbackend.utils.Metrics;
+import com.google.sample.mobileassistantbackend.utils.PlaceCoOccurrences;
+import com.google.sample.mobileassistantbackend.utils.RecommendationInboxes;
+import com.google.sample.mobileassistantbackend.utils.SharedRecommendations;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.IllegalFormatException;
-import java.util.Random;
+import java.util.Date;
+import java.util.List;
 import java.util.TimeZone;
 import java.util.logging.Logger;
 
@@ -31,8 +36,6 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import static com.google.sample.mobileassistantbackend.OfyService.ofy;
-
 /**
  * HttpServlet for processing request to generate personalized recommendations
  * and pushing info about them to user's devices.
@@ -47,9 +50,9 @@ public class RecommendationServlet extends HttpServlet {
     private static final int RECOMMENDATION_EXPIRATION_IN_MINUTES = 2;
 
     /**
-     * Delay to simulate the creation time of recommendations, only for demo.
+     * The number of recommendations generated per check-in.
      */
-    private static final int SLEEP_TIME_IN_MILLISECONDS = 15 * 1000;
+    private static final int RECOMMENDATIONS_PER_CHECKIN = 2;
 
     /**
      * Log output.
@@ -57,29 +60,56 @@ public class RecommendationServlet extends HttpServlet {
     private static final Logger LOG = Logger
             .getLogger(CheckInEndpoint.class.getName());
 
-    /**
-     * Random generator.
-     */
-    private static final Random RANDOM = new Random();
-
-
     @Override
     public final void doPost(final HttpServletRequest req,
             final HttpServletResponse resp)
             throws IOException {
+        // Record how long the task occupies the request thread, to follow
+        // the occupancy of the instances running the tasks.
+        long start = System.currentTimeMillis();
+        try {
+            generateRecommendations(req);
+        } finally {
+            Metrics.increment(Metrics.RECOMMENDATION_TASKS, 1);
+            Metrics.increment(Metrics.RECOMMENDATION_TASK_MILLISECONDS,
+                    System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Generates the personalized recommendations of a check-in and pushes
+     * info about them to the user's devices.
+     * @param req the task request.
+     */
+    private void generateRecommendations(final HttpServletRequest req) {
         String placeId = req.getParameter("placeId");
         String userEmail = req.getParameter("userEmail");
 
+        // The task runs after a delay, so count the check-ins up to the one
+        // of the task rather than up to now.
+        Date checkInDate = new Date();
+        try {
+            checkInDate = new Date(Long.parseLong(
+                    req.getParameter("checkInTime")));
+        } catch (NumberFormatException e) {
+            LOG.info("No check-in time, counting the check-ins up to now");
+        }
+
+        // Count the check-in in the co-visits of this instance; recording
+        // a check-in again, like when the task is retried, changes nothing.
+        PlaceCoOccurrences.recordCheckIn(userEmail, placeId);
+
         // Skip generating new recommendations if user checked into the same
         // place within the recommendation expiration time.
         // In other words, if the number of checkins in this time window is
         // larger than 1 (one checkin is the "current" one).
         Calendar validityTimeWindow = Calendar
                 .getInstance(TimeZone.getTimeZone("UTC"));
+        validityTimeWindow.setTime(checkInDate);
         validityTimeWindow
                 .add(Calendar.MINUTE, -RECOMMENDATION_EXPIRATION_IN_MINUTES);
-        if (CheckInUtil.getCheckInsForUser(userEmail, placeId,
-                validityTimeWindow.getTime()).size()
+        if (CheckInUtil.countCheckInsForUser(userEmail, placeId,
+                validityTimeWindow.getTime(), checkInDate, 2)
                 > 1) {
             LOG.info("Skipping generating recommendations for user " + userEmail
                     + " checked into place "
@@ -92,88 +122,68 @@ public class RecommendationServlet extends HttpServlet {
                 + " checked into place "
                 + placeId);
 
-        // This sample, instead of actually generating personalized
-        // recommendations, only pretends to crunch data for some time (by
-        // having a SLEEP_TIME_IN_MILLISECONDS milliseconds delay - long enough
-        // for demo :-) ), and then it inserts two recommendations based on
-        // a recommendation  template with a specific key. The recommendation
-        // from the template is then customized using randomly generated
-        // prices and one of a few available product recommendation images.
-        try {
-            Thread.sleep(SLEEP_TIME_IN_MILLISECONDS);
-        } catch (InterruptedException e1) {
-            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            return;
-        }
+        // The candidate recommendations of the place are generated once per
+        // place and window, and shared by all the users checking in; the
+        // recommendations of the user are the best candidates coming from
+        // places the user has not visited yet.
 
         // Let Task Queue handle any exceptions through normal retry logic and
-        // error logging, so the code only catches InvalidFormatException and
-        // allows the other exception pass through.
+        // error logging. Invalid templates are already skipped by the
+        // registry, which compiled them.
+        long generationStart = System.currentTimeMillis();
+        List<SharedRecommendations.Candidate> candidates =
+                SharedRecommendations.select(
+                        SharedRecommendations.getCandidates(placeId,
+                                checkInDate.getTime()),
+                        userEmail, RECOMMENDATIONS_PER_CHECKIN);
+
+        if (candidates.isEmpty()) {
+            LOG.warning(
+                    "No recommendation template found. Skipping generating "
+                            + "personalized recommendations");
+            return;
+        }
 
-        String[] recommendationData = null;
+        // set recommendation expiration
+        Calendar expirationTime = Calendar
+                .getInstance(TimeZone.getTimeZone("UTC"));
+        expirationTime.add(Calendar.MINUTE,
+                RECOMMENDATION_EXPIRATION_IN_MINUTES);
 
+        Long recommendationPlaceId = null;
         try {
-            // Retrieve the recommendation template.
-            Recommendation recommendationTemplate = ofy().load()
-                    .type(Recommendation.class).id("template1").now();
-
-            if (recommendationTemplate == null) {
-                LOG.warning(
-                        "No recommendation template found. Skipping generating "
-                                + "personalized recommendations");
-                return;
-            }
-
-            recommendationData = recommendationTemplate.getTitle().split(";");
-            if (recommendationData.length != 2) {
-                LOG.warning("Invalid format of the recommendation template. "
-                        + "The title property should have two parts separated "
-                        + "by a semicolon. "
-                        + "Skipping generating personalized recommendations.");
-
-                return;
-            }
-
-            for (int i = 0; i < 2; i++) {
-                Recommendation r = new Recommendation();
-                r.generateId();
-                r.setTitle(recommendationData[0]);
-                r.setDescription(String.format(
-                        recommendationTemplate.getDescription(),
-                        110 + RANDOM.nextInt(90),
-                        80 + RANDOM.nextInt(20)));
-                r.setImageUrl(
-                        String.format(recommendationTemplate.getImageUrl(),
-                                3 + RANDOM.nextInt(6)));
-
-                // set recommendation expiration
-                Calendar expirationTime = Calendar
-                        .getInstance(TimeZone.getTimeZone("UTC"));
-                expirationTime.add(Calendar.MINUTE,
-                        RECOMMENDATION_EXPIRATION_IN_MINUTES);
-                r.setExpiration(expirationTime.getTime());
-
-                ofy().save().entity(r).now();
-            }
-        } catch (IllegalFormatException e) {
-            LOG.warning("IllegalFormatException caught. This indicates that "
-                    + "the format of the recommendation template is invalid. "
-                    + "Skipping generating personalized recommendations");
-            return;
+            recommendationPlaceId = Long.valueOf(placeId);
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid placeId " + placeId + ", generating "
+                    + "recommendations for all places");
+        }
+
+        List<Recommendation> recommendations =
+                new ArrayList<>(candidates.size());
+        for (SharedRecommendations.Candidate candidate : candidates) {
+            recommendations.add(candidate.toRecommendation(userEmail,
+                    recommendationPlaceId, expirationTime.getTime()));
         }
 
-        long numberOfItemsWithReducedPrices = 2;
-        String firstItem = recommendationData[1];
+        // Add all the recommendations to the inbox of the user at once, and
+        // only notify the user once they are stored, so the devices can
+        // list them; a failed save fails the task, which is retried.
+        long saveStart = System.currentTimeMillis();
+        RecommendationInboxes.add(userEmail, recommendations);
 
-        try {
-            ImmutableMap<String, String> payload = ImmutableMap.<String,
-                    String>builder()
-                    .put("NotificationKind", "PriceCheckLowerPrices1")
-                    .put("ProductCount",
-                            Long.toString(numberOfItemsWithReducedPrices))
-                    .put("ProductName", firstItem)
-                    .build();
+        long numberOfItemsWithReducedPrices = recommendations.size();
+        String firstItem = candidates.get(0).getProductName();
 
+        ImmutableMap<String, String> payload = ImmutableMap.<String,
+                String>builder()
+                .put("NotificationKind", "PriceCheckLowerPrices1")
+                .put("ProductCount",
+                        Long.toString(numberOfItemsWithReducedPrices))
+                .put("ProductName", firstItem)
+                .build();
+
+        long pushStart = System.currentTimeMillis();
+        try {
             MessagingEndpoint messagingEndpoint = new MessagingEndpoint();
             messagingEndpoint.sendMessage(payload);
             //Optional: change function to push to one specific device
@@ -182,5 +192,12 @@ public class RecommendationServlet extends HttpServlet {
                     + userEmail
                     + " checked into a place " + placeId);
         }
+        long end = System.currentTimeMillis();
+
+        LOG.info("Generated " + recommendations.size()
+                + " recommendations for user " + userEmail + " at place "
+                + placeId + ": build " + (saveStart - generationStart)
+                + " ms, save " + (pushStart - saveStart)
+                + " ms, push " + (end - pushStart) + " ms");
     }
 }
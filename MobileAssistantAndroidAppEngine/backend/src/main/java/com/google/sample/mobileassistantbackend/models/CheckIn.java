@@ -18,6 +18,7 @@ package com.google.sample.mobileassistantbackend.models;
 
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
 
 import java.util.Date;
 
@@ -39,16 +40,19 @@ public class CheckIn {
     /**
      * The identifier of the place the user checking in at.
      */
+    @Index
     private String placeId;
 
     /**
      * The email of the user checking in at this place.
      */
+    @Index
     private String userEmail;
 
     /**
      * The date of the check in at this place.
      */
+    @Index
     private Date checkinDate;
 
     /**
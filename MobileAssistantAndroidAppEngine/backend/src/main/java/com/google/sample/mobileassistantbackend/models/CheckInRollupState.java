@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.models;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+import java.util.Date;
+
+/**
+ * Singleton entity recording how far the check-in rollup folded the CheckIn
+ * entities into the PlaceBusyHours histograms.
+ */
+@Entity
+public class CheckInRollupState {
+
+    /**
+     * The identifier of the singleton entity.
+     */
+    public static final String SINGLETON_ID = "checkins";
+
+    /**
+     * Unique identifier of this Entity in the database.
+     */
+    @Id
+    private String id = SINGLETON_ID;
+
+    /**
+     * The date the check-ins were folded up to, exclusive.
+     */
+    private Date watermark;
+
+    /**
+     * The end of the span being folded, or null if none is. A span is
+     * folded again up to the same end after a failure; the histograms
+     * already folded up to it are skipped.
+     */
+    private Date spanEnd;
+
+    /**
+     * Returns the date the check-ins were folded up to.
+     * @return the date, exclusive.
+     */
+    public final Date getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * Sets the date the check-ins were folded up to.
+     * @param pWatermark the date, exclusive.
+     */
+    public final void setWatermark(final Date pWatermark) {
+        this.watermark = pWatermark;
+    }
+
+    /**
+     * Returns the end of the span being folded.
+     * @return the end of the span, exclusive, or null if none is.
+     */
+    public final Date getSpanEnd() {
+        return spanEnd;
+    }
+
+    /**
+     * Sets the end of the span being folded.
+     * @param pSpanEnd the end of the span, exclusive, or null.
+     */
+    public final void setSpanEnd(final Date pSpanEnd) {
+        this.spanEnd = pSpanEnd;
+    }
+}
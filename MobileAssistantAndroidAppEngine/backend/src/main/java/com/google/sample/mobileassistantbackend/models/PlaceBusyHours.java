@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.models;
+
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Histogram of the check-ins at a place by hour of the week, folded from the
+ * CheckIn entities by the check-in rollup.
+ */
+@Entity
+@Cache
+public class PlaceBusyHours {
+
+    /**
+     * The number of hours in a week, the number of buckets.
+     */
+    public static final int HOURS_IN_WEEK = 168;
+
+    /**
+     * The identifier of the place, unique identifier of this Entity in the
+     * database.
+     */
+    @Id
+    private Long placeId;
+
+    /**
+     * The number of check-ins by hour of the week, in UTC, starting on
+     * Monday 00:00.
+     */
+    private List<Long> checkInCounts;
+
+    /**
+     * The date the check-ins were folded up to, exclusive.
+     */
+    private Date rolledUpTo;
+
+    /**
+     * Default constructor, for Objectify.
+     */
+    public PlaceBusyHours() {
+    }
+
+    /**
+     * Creates an empty histogram.
+     * @param pPlaceId the identifier of the place.
+     */
+    public PlaceBusyHours(final Long pPlaceId) {
+        this.placeId = pPlaceId;
+        this.checkInCounts = new ArrayList<>(
+                Collections.nCopies(HOURS_IN_WEEK, 0L));
+    }
+
+    /**
+     * Returns the identifier of the place.
+     * @return the identifier of the place.
+     */
+    public final Long getPlaceId() {
+        return placeId;
+    }
+
+    /**
+     * Returns the number of check-ins by hour of the week.
+     * @return the HOURS_IN_WEEK check-in counts, in UTC, starting on Monday
+     *      00:00.
+     */
+    public final List<Long> getCheckInCounts() {
+        return checkInCounts;
+    }
+
+    /**
+     * Sets the number of check-ins by hour of the week.
+     * @param pCheckInCounts the HOURS_IN_WEEK check-in counts.
+     */
+    public final void setCheckInCounts(final List<Long> pCheckInCounts) {
+        this.checkInCounts = pCheckInCounts;
+    }
+
+    /**
+     * Returns the date the check-ins were folded up to.
+     * @return the date, exclusive, or null if nothing was folded.
+     */
+    public final Date getRolledUpTo() {
+        return rolledUpTo;
+    }
+
+    /**
+     * Sets the date the check-ins were folded up to.
+     * @param pRolledUpTo the date, exclusive.
+     */
+    public final void setRolledUpTo(final Date pRolledUpTo) {
+        this.rolledUpTo = pRolledUpTo;
+    }
+}
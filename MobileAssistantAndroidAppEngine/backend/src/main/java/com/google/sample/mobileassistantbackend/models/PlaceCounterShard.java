@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.models;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+import java.util.Date;
+
+/**
+ * One shard of the check-in counter of a place. The check-ins of a place
+ * are spread over several shards so they can be counted without contention
+ * on a single entity group; the totals are the sums over the shards, which
+ * are loaded by key.
+ */
+@Entity
+public class PlaceCounterShard {
+
+    /**
+     * Unique identifier of this Entity in the database, made of the place
+     * identifier and the shard number.
+     */
+    @Id
+    private String id;
+
+    /**
+     * The identifier of the place counted.
+     */
+    private Long placeId;
+
+    /**
+     * The number of check-ins counted by this shard.
+     */
+    private long checkInCount;
+
+    /**
+     * The trending score counted by this shard, as of scoreDate.
+     */
+    private double trendingScore;
+
+    /**
+     * The date the trending score was last decayed at.
+     */
+    private Date scoreDate;
+
+    /**
+     * Default constructor, for Objectify.
+     */
+    public PlaceCounterShard() {
+    }
+
+    /**
+     * Creates an empty shard.
+     * @param pPlaceId the identifier of the place counted.
+     * @param shard the shard number.
+     */
+    public PlaceCounterShard(final Long pPlaceId, final int shard) {
+        this.id = getId(pPlaceId, shard);
+        this.placeId = pPlaceId;
+    }
+
+    /**
+     * Returns the identifier of a shard.
+     * @param placeId the identifier of the place counted.
+     * @param shard the shard number.
+     * @return the identifier of the shard entity.
+     */
+    public static String getId(final Long placeId, final int shard) {
+        return placeId + "-" + shard;
+    }
+
+    /**
+     * Returns the identifier of the place counted.
+     * @return the identifier of the place.
+     */
+    public final Long getPlaceId() {
+        return placeId;
+    }
+
+    /**
+     * Returns the number of check-ins counted by this shard.
+     * @return the number of check-ins.
+     */
+    public final long getCheckInCount() {
+        return checkInCount;
+    }
+
+    /**
+     * Sets the number of check-ins counted by this shard.
+     * @param pCheckInCount the number of check-ins.
+     */
+    public final void setCheckInCount(final long pCheckInCount) {
+        this.checkInCount = pCheckInCount;
+    }
+
+    /**
+     * Returns the trending score counted by this shard, as of the score
+     * date.
+     * @return the trending score.
+     */
+    public final double getTrendingScore() {
+        return trendingScore;
+    }
+
+    /**
+     * Sets the trending score counted by this shard.
+     * @param pTrendingScore the trending score, as of the score date.
+     */
+    public final void setTrendingScore(final double pTrendingScore) {
+        this.trendingScore = pTrendingScore;
+    }
+
+    /**
+     * Returns the date the trending score was last decayed at.
+     * @return the score date, or null if nothing was counted.
+     */
+    public final Date getScoreDate() {
+        return scoreDate;
+    }
+
+    /**
+     * Sets the date the trending score was last decayed at.
+     * @param pScoreDate the score date.
+     */
+    public final void setScoreDate(final Date pScoreDate) {
+        this.scoreDate = pScoreDate;
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.models;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+import java.util.Date;
+
+/**
+ * Progress of the rebuild of a version of the Places search index, which is
+ * the checkpoint the rebuild tasks resume from.
+ */
+@Entity
+public class PlaceIndexBuild {
+
+    /**
+     * The stages of a rebuild.
+     */
+    public enum Status {
+        /**
+         * The documents of the places are being put into the index.
+         */
+        RUNNING,
+        /**
+         * The index is being verified before being activated.
+         */
+        VERIFYING,
+        /**
+         * The index was verified and activated.
+         */
+        DONE,
+        /**
+         * The rebuild was given up.
+         */
+        FAILED
+    }
+
+    /**
+     * The version of the index being built.
+     */
+    @Id
+    private Long version;
+
+    /**
+     * The stage of the rebuild.
+     */
+    private Status status;
+
+    /**
+     * The datastore cursor after the last place indexed, or null before the
+     * first slice.
+     */
+    private String cursor;
+
+    /**
+     * The number of the next slice of places to index.
+     */
+    private int nextSlice;
+
+    /**
+     * The number of documents put so far.
+     */
+    private long documentsPut;
+
+    /**
+     * The time the rebuild started.
+     */
+    private Date startTime;
+
+    /**
+     * The time the progress was last recorded.
+     */
+    private Date updateTime;
+
+    /**
+     * The reason the rebuild failed, if it did.
+     */
+    private String error;
+
+    /**
+     * Returns the version of the index being built.
+     * @return the version.
+     */
+    public final Long getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the version of the index being built.
+     * @param pVersion the version.
+     */
+    public final void setVersion(final Long pVersion) {
+        this.version = pVersion;
+    }
+
+    /**
+     * Returns the stage of the rebuild.
+     * @return the status.
+     */
+    public final Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Sets the stage of the rebuild.
+     * @param pStatus the status.
+     */
+    public final void setStatus(final Status pStatus) {
+        this.status = pStatus;
+    }
+
+    /**
+     * Returns the datastore cursor after the last place indexed.
+     * @return the web-safe cursor, or null before the first slice.
+     */
+    public final String getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Sets the datastore cursor after the last place indexed.
+     * @param pCursor the web-safe cursor.
+     */
+    public final void setCursor(final String pCursor) {
+        this.cursor = pCursor;
+    }
+
+    /**
+     * Returns the number of the next slice of places to index.
+     * @return the slice number.
+     */
+    public final int getNextSlice() {
+        return nextSlice;
+    }
+
+    /**
+     * Sets the number of the next slice of places to index.
+     * @param pNextSlice the slice number.
+     */
+    public final void setNextSlice(final int pNextSlice) {
+        this.nextSlice = pNextSlice;
+    }
+
+    /**
+     * Returns the number of documents put so far.
+     * @return the number of documents.
+     */
+    public final long getDocumentsPut() {
+        return documentsPut;
+    }
+
+    /**
+     * Sets the number of documents put so far.
+     * @param pDocumentsPut the number of documents.
+     */
+    public final void setDocumentsPut(final long pDocumentsPut) {
+        this.documentsPut = pDocumentsPut;
+    }
+
+    /**
+     * Returns the time the rebuild started.
+     * @return the start time.
+     */
+    public final Date getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Sets the time the rebuild started.
+     * @param pStartTime the start time.
+     */
+    public final void setStartTime(final Date pStartTime) {
+        this.startTime = pStartTime;
+    }
+
+    /**
+     * Returns the time the progress was last recorded.
+     * @return the update time.
+     */
+    public final Date getUpdateTime() {
+        return updateTime;
+    }
+
+    /**
+     * Sets the time the progress was last recorded.
+     * @param pUpdateTime the update time.
+     */
+    public final void setUpdateTime(final Date pUpdateTime) {
+        this.updateTime = pUpdateTime;
+    }
+
+    /**
+     * Returns the reason the rebuild failed.
+     * @return the error, or null.
+     */
+    public final String getError() {
+        return error;
+    }
+
+    /**
+     * Sets the reason the rebuild failed.
+     * @param pError the error.
+     */
+    public final void setError(final String pError) {
+        this.error = pError;
+    }
+}
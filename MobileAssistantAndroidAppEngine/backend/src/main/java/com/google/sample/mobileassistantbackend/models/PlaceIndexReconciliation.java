@@ -0,0 +1,278 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.models;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+import java.util.Date;
+
+/**
+ * Progress of a reconciliation of the Places search index with the Place
+ * entities, which is the checkpoint the reconciliation tasks resume from.
+ */
+@Entity
+public class PlaceIndexReconciliation {
+
+    /**
+     * The stages of a reconciliation.
+     */
+    public enum Phase {
+        /**
+         * The documents of the index are checked against the places, to
+         * update the outdated ones and delete the orphaned ones.
+         */
+        DOCUMENTS,
+        /**
+         * The places are checked against the index, to put the missing
+         * documents.
+         */
+        PLACES,
+        /**
+         * The reconciliation completed.
+         */
+        DONE,
+        /**
+         * The reconciliation was given up.
+         */
+        FAILED
+    }
+
+    /**
+     * The identifier of the reconciliation, the time it started at in
+     * milliseconds.
+     */
+    @Id
+    private Long id;
+
+    /**
+     * The version of the index reconciled.
+     */
+    private Integer version;
+
+    /**
+     * The stage of the reconciliation.
+     */
+    private Phase phase;
+
+    /**
+     * The position after the last slice: the identifier of the last
+     * document checked while checking the documents, the datastore cursor
+     * after the last place checked while checking the places, or null at the
+     * start of a stage.
+     */
+    private String cursor;
+
+    /**
+     * The number of the next slice to check.
+     */
+    private int nextSlice;
+
+    /**
+     * The number of documents put so far.
+     */
+    private long documentsPut;
+
+    /**
+     * The number of documents deleted so far.
+     */
+    private long documentsDeleted;
+
+    /**
+     * The time the reconciliation started at.
+     */
+    private Date startTime;
+
+    /**
+     * The time the progress was last recorded at.
+     */
+    private Date updateTime;
+
+    /**
+     * The reason the reconciliation was given up, or null.
+     */
+    private String error;
+
+    /**
+     * Returns the identifier of the reconciliation, the time it started at in
+     * milliseconds.
+     * @return the identifier.
+     */
+    public final Long getId() {
+        return id;
+    }
+
+    /**
+     * Sets the identifier of the reconciliation, the time it started at in
+     * milliseconds.
+     * @param pId the identifier.
+     */
+    public final void setId(final Long pId) {
+        this.id = pId;
+    }
+
+    /**
+     * Returns the version of the index reconciled.
+     * @return the version.
+     */
+    public final Integer getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the version of the index reconciled.
+     * @param pVersion the version.
+     */
+    public final void setVersion(final Integer pVersion) {
+        this.version = pVersion;
+    }
+
+    /**
+     * Returns the stage of the reconciliation.
+     * @return the phase.
+     */
+    public final Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * Sets the stage of the reconciliation.
+     * @param pPhase the phase.
+     */
+    public final void setPhase(final Phase pPhase) {
+        this.phase = pPhase;
+    }
+
+    /**
+     * Returns the position after the last slice: the identifier of the last
+     * document checked while checking the documents, the datastore cursor
+     * after the last place checked while checking the places, or null at the
+     * start of a stage.
+     * @return the cursor.
+     */
+    public final String getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Sets the position after the last slice: the identifier of the last
+     * document checked while checking the documents, the datastore cursor
+     * after the last place checked while checking the places, or null at the
+     * start of a stage.
+     * @param pCursor the cursor.
+     */
+    public final void setCursor(final String pCursor) {
+        this.cursor = pCursor;
+    }
+
+    /**
+     * Returns the number of the next slice to check.
+     * @return the next slice.
+     */
+    public final int getNextSlice() {
+        return nextSlice;
+    }
+
+    /**
+     * Sets the number of the next slice to check.
+     * @param pNextSlice the next slice.
+     */
+    public final void setNextSlice(final int pNextSlice) {
+        this.nextSlice = pNextSlice;
+    }
+
+    /**
+     * Returns the number of documents put so far.
+     * @return the documents put.
+     */
+    public final long getDocumentsPut() {
+        return documentsPut;
+    }
+
+    /**
+     * Sets the number of documents put so far.
+     * @param pDocumentsPut the documents put.
+     */
+    public final void setDocumentsPut(final long pDocumentsPut) {
+        this.documentsPut = pDocumentsPut;
+    }
+
+    /**
+     * Returns the number of documents deleted so far.
+     * @return the documents deleted.
+     */
+    public final long getDocumentsDeleted() {
+        return documentsDeleted;
+    }
+
+    /**
+     * Sets the number of documents deleted so far.
+     * @param pDocumentsDeleted the documents deleted.
+     */
+    public final void setDocumentsDeleted(final long pDocumentsDeleted) {
+        this.documentsDeleted = pDocumentsDeleted;
+    }
+
+    /**
+     * Returns the time the reconciliation started at.
+     * @return the start time.
+     */
+    public final Date getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Sets the time the reconciliation started at.
+     * @param pStartTime the start time.
+     */
+    public final void setStartTime(final Date pStartTime) {
+        this.startTime = pStartTime;
+    }
+
+    /**
+     * Returns the time the progress was last recorded at.
+     * @return the update time.
+     */
+    public final Date getUpdateTime() {
+        return updateTime;
+    }
+
+    /**
+     * Sets the time the progress was last recorded at.
+     * @param pUpdateTime the update time.
+     */
+    public final void setUpdateTime(final Date pUpdateTime) {
+        this.updateTime = pUpdateTime;
+    }
+
+    /**
+     * Returns the reason the reconciliation was given up, or null.
+     * @return the error.
+     */
+    public final String getError() {
+        return error;
+    }
+
+    /**
+     * Sets the reason the reconciliation was given up, or null.
+     * @param pError the error.
+     */
+    public final void setError(final String pError) {
+        this.error = pError;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.models;
+
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * Singleton entity recording which version of the Places search index is
+ * served and which one is being built.
+ */
+@Entity
+@Cache
+public class PlaceIndexState {
+
+    /**
+     * The identifier of the singleton entity.
+     */
+    public static final String SINGLETON_ID = "places";
+
+    /**
+     * Unique identifier of this Entity in the database.
+     */
+    @Id
+    private String id = SINGLETON_ID;
+
+    /**
+     * The version of the index answering the searches.
+     */
+    private int activeVersion;
+
+    /**
+     * The version of the index being built, or null if no build is running.
+     */
+    private Integer buildingVersion;
+
+    /**
+     * The highest version of the index ever allocated to a build.
+     */
+    private int lastVersion;
+
+    /**
+     * Returns the version of the index answering the searches.
+     * @return the active version.
+     */
+    public final int getActiveVersion() {
+        return activeVersion;
+    }
+
+    /**
+     * Sets the version of the index answering the searches.
+     * @param pActiveVersion the active version.
+     */
+    public final void setActiveVersion(final int pActiveVersion) {
+        this.activeVersion = pActiveVersion;
+    }
+
+    /**
+     * Returns the version of the index being built.
+     * @return the building version, or null if no build is running.
+     */
+    public final Integer getBuildingVersion() {
+        return buildingVersion;
+    }
+
+    /**
+     * Sets the version of the index being built.
+     * @param pBuildingVersion the building version, or null if no build is
+     *      running.
+     */
+    public final void setBuildingVersion(final Integer pBuildingVersion) {
+        this.buildingVersion = pBuildingVersion;
+    }
+
+    /**
+     * Returns the highest version of the index ever allocated to a build.
+     * @return the last version.
+     */
+    public final int getLastVersion() {
+        return lastVersion;
+    }
+
+    /**
+     * Sets the highest version of the index ever allocated to a build.
+     * @param pLastVersion the last version.
+     */
+    public final void setLastVersion(final int pLastVersion) {
+        this.lastVersion = pLastVersion;
+    }
+}
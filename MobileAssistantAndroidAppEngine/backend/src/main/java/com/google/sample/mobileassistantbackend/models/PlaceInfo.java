@@ -28,6 +28,17 @@ public class PlaceInfo extends Place {
      */
     private double distanceInKilometers;
 
+    /**
+     * The number of check-ins at this place, when listed by getPlaces.
+     */
+    private long checkInCount;
+
+    /**
+     * The number of check-ins at this place weighted by their age, when
+     * listed by getPlaces.
+     */
+    private double trendingScore;
+
     /**
      * Returns the distance to this place from the current working position.
      * @return The distance to this place.
@@ -44,4 +55,36 @@ public class PlaceInfo extends Place {
             pDistanceInKilometers) {
         this.distanceInKilometers = pDistanceInKilometers;
     }
+
+    /**
+     * Returns the number of check-ins at this place.
+     * @return The number of check-ins.
+     */
+    public final long getCheckInCount() {
+        return checkInCount;
+    }
+
+    /**
+     * Sets the number of check-ins at this place.
+     * @param pCheckInCount the number of check-ins.
+     */
+    public final void setCheckInCount(final long pCheckInCount) {
+        this.checkInCount = pCheckInCount;
+    }
+
+    /**
+     * Returns the number of check-ins at this place weighted by their age.
+     * @return The trending score of this place.
+     */
+    public final double getTrendingScore() {
+        return trendingScore;
+    }
+
+    /**
+     * Sets the number of check-ins at this place weighted by their age.
+     * @param pTrendingScore the trending score of this place.
+     */
+    public final void setTrendingScore(final double pTrendingScore) {
+        this.trendingScore = pTrendingScore;
+    }
 }
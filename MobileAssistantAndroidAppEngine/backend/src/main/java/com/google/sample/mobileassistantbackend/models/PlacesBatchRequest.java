@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.models;
+
+import java.util.List;
+
+/**
+ * Body of a batch of nearby-places queries.
+ */
+public class PlacesBatchRequest {
+
+    /**
+     * The queries of the batch.
+     */
+    private List<PlacesQuery> queries;
+
+    /**
+     * Returns the queries of the batch.
+     * @return the queries.
+     */
+    public final List<PlacesQuery> getQueries() {
+        return queries;
+    }
+
+    /**
+     * Sets the queries of the batch.
+     * @param pQueries the queries.
+     */
+    public final void setQueries(final List<PlacesQuery> pQueries) {
+        this.queries = pQueries;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.models;
+
+import java.util.List;
+
+/**
+ * Response to a PlacesBatchRequest.
+ */
+public class PlacesBatchResponse {
+
+    /**
+     * The results, in the order of the queries of the request.
+     */
+    private List<PlacesQueryResult> results;
+
+    /**
+     * Returns the results.
+     * @return the results, in the order of the queries of the request.
+     */
+    public final List<PlacesQueryResult> getResults() {
+        return results;
+    }
+
+    /**
+     * Sets the results.
+     * @param pResults the results, in the order of the queries of the
+     *      request.
+     */
+    public final void setResults(final List<PlacesQueryResult> pResults) {
+        this.results = pResults;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.models;
+
+/**
+ * One nearby-places query of a PlacesBatchRequest.
+ */
+public class PlacesQuery {
+
+    /**
+     * The latitude of the location to search around.
+     */
+    private double latitude;
+
+    /**
+     * The longitude of the location to search around.
+     */
+    private double longitude;
+
+    /**
+     * The maximum distance to the location, in kilometers.
+     */
+    private long distanceInKm;
+
+    /**
+     * The maximum number of places returned.
+     */
+    private int count;
+
+    /**
+     * Returns the latitude of the location to search around.
+     * @return the latitude.
+     */
+    public final double getLatitude() {
+        return latitude;
+    }
+
+    /**
+     * Sets the latitude of the location to search around.
+     * @param pLatitude the latitude.
+     */
+    public final void setLatitude(final double pLatitude) {
+        this.latitude = pLatitude;
+    }
+
+    /**
+     * Returns the longitude of the location to search around.
+     * @return the longitude.
+     */
+    public final double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * Sets the longitude of the location to search around.
+     * @param pLongitude the longitude.
+     */
+    public final void setLongitude(final double pLongitude) {
+        this.longitude = pLongitude;
+    }
+
+    /**
+     * Returns the maximum distance to the location.
+     * @return the maximum distance, in kilometers.
+     */
+    public final long getDistanceInKm() {
+        return distanceInKm;
+    }
+
+    /**
+     * Sets the maximum distance to the location.
+     * @param pDistanceInKm the maximum distance, in kilometers.
+     */
+    public final void setDistanceInKm(final long pDistanceInKm) {
+        this.distanceInKm = pDistanceInKm;
+    }
+
+    /**
+     * Returns the maximum number of places returned.
+     * @return the maximum number of places.
+     */
+    public final int getCount() {
+        return count;
+    }
+
+    /**
+     * Sets the maximum number of places returned.
+     * @param pCount the maximum number of places.
+     */
+    public final void setCount(final int pCount) {
+        this.count = pCount;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.models;
+
+import java.util.List;
+
+/**
+ * The places found for one query of a PlacesBatchRequest.
+ */
+public class PlacesQueryResult {
+
+    /**
+     * The places found, nearest first.
+     */
+    private List<PlaceInfo> places;
+
+    /**
+     * Returns the places found.
+     * @return the places, nearest first.
+     */
+    public final List<PlaceInfo> getPlaces() {
+        return places;
+    }
+
+    /**
+     * Sets the places found.
+     * @param pPlaces the places, nearest first.
+     */
+    public final void setPlaces(final List<PlaceInfo> pPlaces) {
+        this.places = pPlaces;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.models;
+
+import com.google.appengine.api.datastore.GeoPt;
+
+import java.util.List;
+
+/**
+ * Body of a query for the places along a route.
+ */
+public class PlacesRouteRequest {
+
+    /**
+     * The vertices of the route, in travel order.
+     */
+    private List<GeoPt> route;
+
+    /**
+     * The maximum distance to the route, in kilometers.
+     */
+    private double widthInKm;
+
+    /**
+     * The maximum number of places returned.
+     */
+    private int count;
+
+    /**
+     * Returns the vertices of the route.
+     * @return the vertices, in travel order.
+     */
+    public final List<GeoPt> getRoute() {
+        return route;
+    }
+
+    /**
+     * Sets the vertices of the route.
+     * @param pRoute the vertices, in travel order.
+     */
+    public final void setRoute(final List<GeoPt> pRoute) {
+        this.route = pRoute;
+    }
+
+    /**
+     * Returns the maximum distance to the route.
+     * @return the maximum distance, in kilometers.
+     */
+    public final double getWidthInKm() {
+        return widthInKm;
+    }
+
+    /**
+     * Sets the maximum distance to the route.
+     * @param pWidthInKm the maximum distance, in kilometers.
+     */
+    public final void setWidthInKm(final double pWidthInKm) {
+        this.widthInKm = pWidthInKm;
+    }
+
+    /**
+     * Returns the maximum number of places returned.
+     * @return the maximum number of places.
+     */
+    public final int getCount() {
+        return count;
+    }
+
+    /**
+     * Sets the maximum number of places returned.
+     * @param pCount the maximum number of places.
+     */
+    public final void setCount(final int pCount) {
+        this.count = pCount;
+    }
+}
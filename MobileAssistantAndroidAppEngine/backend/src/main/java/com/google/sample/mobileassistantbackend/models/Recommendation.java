@@ -18,15 +18,24 @@ package com.google.sample.mobileassistantbackend.models;
 
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
 
+import java.io.Serializable;
 import java.util.Date;
 import java.util.UUID;
 
 /**
- * Product Recommendation entity.
+ * Product Recommendation entity. Recommendations are cached in memcache by
+ * place and stored serialized in the inboxes of the users, hence
+ * serializable.
  */
 @Entity
-public class Recommendation {
+public class Recommendation implements Serializable {
+
+    /**
+     * Serialization version.
+     */
+    private static final long serialVersionUID = 1L;
 
     /**
      * Unique identifier of this Entity in the database.
@@ -52,8 +61,23 @@ public class Recommendation {
     /**
      * The expiration Date for this recommendation.
      */
+    @Index
     private Date expiration;
 
+    /**
+     * The identifier of the place this recommendation applies to, or null
+     * if it applies to all places.
+     */
+    @Index
+    private Long placeId;
+
+    /**
+     * The email of the user this recommendation was generated for, or null
+     * if it applies to all users.
+     */
+    @Index
+    private String userEmail;
+
     /**
      * Generates an id for the entity.
      */
@@ -126,4 +150,36 @@ public class Recommendation {
         this.expiration = pExpiration;
     }
 
+    /**
+     * Returns the identifier of the place this recommendation applies to.
+     * @return the identifier of the place, or null for all places.
+     */
+    public final Long getPlaceId() {
+        return placeId;
+    }
+
+    /**
+     * Sets the identifier of the place this recommendation applies to.
+     * @param pPlaceId the identifier of the place, or null for all places.
+     */
+    public final void setPlaceId(final Long pPlaceId) {
+        this.placeId = pPlaceId;
+    }
+
+    /**
+     * Returns the email of the user this recommendation was generated for.
+     * @return the email of the user, or null for all users.
+     */
+    public final String getUserEmail() {
+        return userEmail;
+    }
+
+    /**
+     * Sets the email of the user this recommendation was generated for.
+     * @param pUserEmail the email of the user, or null for all users.
+     */
+    public final void setUserEmail(final String pUserEmail) {
+        this.userEmail = pUserEmail;
+    }
+
 }
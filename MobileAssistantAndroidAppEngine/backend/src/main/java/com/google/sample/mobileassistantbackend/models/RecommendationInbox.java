@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.models;
+
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Serialize;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The recommendations generated for a user, newest first, stored in one
+ * entity identified by the email of the user so they are read with a
+ * single key lookup, served from the Objectify cache.
+ */
+@Entity
+@Cache
+public class RecommendationInbox {
+
+    /**
+     * The email of the user, unique identifier of this Entity in the
+     * database.
+     */
+    @Id
+    private String userEmail;
+
+    /**
+     * The recommendations of the user, newest first.
+     */
+    @Serialize
+    private List<Recommendation> recommendations = new ArrayList<>();
+
+    /**
+     * Returns the email of the user.
+     * @return the email of the user.
+     */
+    public final String getUserEmail() {
+        return userEmail;
+    }
+
+    /**
+     * Sets the email of the user.
+     * @param pUserEmail the email of the user.
+     */
+    public final void setUserEmail(final String pUserEmail) {
+        this.userEmail = pUserEmail;
+    }
+
+    /**
+     * Returns the recommendations of the user.
+     * @return the recommendations, newest first.
+     */
+    public final List<Recommendation> getRecommendations() {
+        return recommendations;
+    }
+
+    /**
+     * Sets the recommendations of the user.
+     * @param pRecommendations the recommendations, newest first.
+     */
+    public final void setRecommendations(
+            final List<Recommendation> pRecommendations) {
+        this.recommendations = pRecommendations;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.models;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+import java.util.Date;
+
+/**
+ * Singleton entity recording the progress of the sweep of the expired
+ * recommendations, which is the checkpoint the next run resumes from.
+ */
+@Entity
+public class RecommendationSweepState {
+
+    /**
+     * The identifier of the singleton entity.
+     */
+    public static final String SINGLETON_ID = "recommendations";
+
+    /**
+     * Unique identifier of this Entity in the database.
+     */
+    @Id
+    private String id = SINGLETON_ID;
+
+    /**
+     * The expiration date the sweep deletes the recommendations before, or
+     * null if no sweep is in progress.
+     */
+    private Date cutoff;
+
+    /**
+     * The web-safe cursor of the query of the sweep in progress, or null to
+     * start from the beginning.
+     */
+    private String cursor;
+
+    /**
+     * Returns the expiration date the sweep in progress deletes the
+     * recommendations before.
+     * @return the cutoff date, or null if no sweep is in progress.
+     */
+    public final Date getCutoff() {
+        return cutoff;
+    }
+
+    /**
+     * Sets the expiration date the sweep in progress deletes the
+     * recommendations before.
+     * @param pCutoff the cutoff date, or null if no sweep is in progress.
+     */
+    public final void setCutoff(final Date pCutoff) {
+        this.cutoff = pCutoff;
+    }
+
+    /**
+     * Returns the cursor of the query of the sweep in progress.
+     * @return the web-safe cursor, or null to start from the beginning.
+     */
+    public final String getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Sets the cursor of the query of the sweep in progress.
+     * @param pCursor the web-safe cursor, or null.
+     */
+    public final void setCursor(final String pCursor) {
+        this.cursor = pCursor;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.models;
+
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * Singleton entity stamping the version of the recommendation templates, so
+ * the instances know when to load them again.
+ */
+@Entity
+@Cache
+public class RecommendationTemplateVersion {
+
+    /**
+     * The identifier of the singleton entity.
+     */
+    public static final String SINGLETON_ID = "templates";
+
+    /**
+     * Unique identifier of this Entity in the database.
+     */
+    @Id
+    private String id = SINGLETON_ID;
+
+    /**
+     * The version of the templates, incremented on every change.
+     */
+    private long version;
+
+    /**
+     * Returns the version of the templates.
+     * @return the version.
+     */
+    public final long getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the version of the templates.
+     * @param pVersion the version.
+     */
+    public final void setVersion(final long pVersion) {
+        this.version = pVersion;
+    }
+}
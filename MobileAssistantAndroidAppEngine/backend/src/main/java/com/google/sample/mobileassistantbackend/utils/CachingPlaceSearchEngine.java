@@ -0,0 +1,623 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.sample.mobileassistantbackend.models.PlaceInfo;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PlaceSearchEngine decorator caching candidate places per location cell.
+ *
+ * Callers are mapped to a cell of CELL_SIZE_IN_DEGREES and a radius bucket.
+ * The candidates cached for that key are the places around the center of the
+ * cell, within the bucket radius plus half the cell diagonal, so they include
+ * the places within the requested radius of any caller in the cell.
+ * Distances are then recomputed for each caller. Entries are kept in an
+ * in-instance LRU cache backed by memcache; memcache keys are prefixed by a
+ * generation number that invalidate() increments.
+ *
+ * The candidates are limited to the MAXIMUM_CANDIDATES places nearest to the
+ * center of the cell. When that limit cut places off, as in very dense areas
+ * or large radiuses, the candidates only include all the places up to the
+ * farthest one kept; a caller whose results may reach beyond that distance
+ * is answered by the delegate instead, so results are always exact.
+ *
+ * The in-instance cache is bounded by the total number of candidates it
+ * holds, LOCAL_MAXIMUM_CANDIDATES, so a few dense cells cannot fill the
+ * memory of the instance.
+ *
+ * PlacesHelper only uses this engine in front of the Search API, with the
+ * "search" value of the places.search.engine property; appengine-web.xml
+ * selects the "memory" engine, which needs no cache.
+ */
+public final class CachingPlaceSearchEngine implements PlaceSearchEngine {
+
+    /**
+     * The size of a cache cell, in degrees (about 1.1 km of latitude).
+     */
+    static final double CELL_SIZE_IN_DEGREES = 0.01;
+
+    /**
+     * The radius buckets, in kilometers, in increasing order.
+     */
+    private static final int[] RADIUS_BUCKETS_IN_KM =
+            {1, 2, 5, 10, 20, 50, 100};
+
+    /**
+     * The maximum number of places requested by the queries answered from
+     * the cache.
+     */
+    private static final int MAXIMUM_CACHED_RESULT_COUNT = 100;
+
+    /**
+     * The maximum number of candidates cached per cell, the maximum number
+     * of results of a Search API query.
+     */
+    private static final int MAXIMUM_CANDIDATES = 1000;
+
+    /**
+     * The maximum total number of candidates in the in-instance cache, about
+     * 15 MB at 150 bytes per candidate, or 100 full cells.
+     */
+    private static final long LOCAL_MAXIMUM_CANDIDATES = 100000;
+
+    /**
+     * How long entries and the generation number are cached in the instance.
+     * Changes made through other instances are visible after this delay.
+     */
+    private static final long LOCAL_TIME_TO_LIVE_IN_MILLISECONDS =
+            TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * How long candidates are cached in memcache.
+     */
+    private static final int MEMCACHE_EXPIRATION_IN_SECONDS =
+            (int) TimeUnit.MINUTES.toSeconds(10);
+
+    /**
+     * The memcache namespace of the cache.
+     */
+    private static final String NAMESPACE = "places";
+
+    /**
+     * The version of the format of the cached candidates, part of the
+     * memcache keys.
+     */
+    private static final String CANDIDATES_VERSION = "2";
+
+    /**
+     * The memcache key of the generation number.
+     */
+    private static final String GENERATION_KEY = "generation";
+
+    /**
+     * The number of meters in a kilometer.
+     */
+    private static final double METERS_IN_KILOMETER = 1000.0;
+
+    /**
+     * The distance from the center of a cell to its corners, in kilometers.
+     */
+    private static final double CELL_MARGIN_IN_KM = CELL_SIZE_IN_DEGREES
+            * PlaceSpatialIndex.KM_PER_DEGREE * Math.sqrt(2) / 2;
+
+    /**
+     * The engine answering cache misses.
+     */
+    private final PlaceSearchEngine delegate;
+
+    /**
+     * The in-instance cache.
+     */
+    private final LocalCache<String, PlaceCandidates> localCache =
+            new LocalCache<>(LOCAL_MAXIMUM_CANDIDATES,
+                    LOCAL_TIME_TO_LIVE_IN_MILLISECONDS,
+                    new LocalCache.Weigher<PlaceCandidates>() {
+                        @Override
+                        public int weigh(final PlaceCandidates candidates) {
+                            // Count empty cells too, so their number is
+                            // bounded as well.
+                            return Math.max(1, candidates.size());
+                        }
+                    });
+
+    /**
+     * The memcache service.
+     */
+    private final MemcacheService memcache =
+            MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+
+    /**
+     * The last generation number read from memcache.
+     */
+    private volatile long generation;
+
+    /**
+     * The time the generation number must be read again at.
+     */
+    private volatile long generationExpiresAt;
+
+    /**
+     * Creates a caching engine.
+     * @param pDelegate the engine answering cache misses.
+     */
+    public CachingPlaceSearchEngine(final PlaceSearchEngine pDelegate) {
+        this.delegate = pDelegate;
+    }
+
+    @Override
+    public List<PlaceInfo> getPlaces(final GeoPt location,
+            final long distanceInMeters, final int resultCount) {
+        CellQuery cell = CellQuery.of(location, distanceInMeters, resultCount);
+        if (cell == null) {
+            return delegate.getPlaces(location, distanceInMeters, resultCount);
+        }
+        List<PlaceInfo> places = getCandidates(cell).nearest(
+                location.getLatitude(), location.getLongitude(),
+                distanceInMeters / METERS_IN_KILOMETER, resultCount);
+        if (places == null) {
+            return delegate.getPlaces(location, distanceInMeters, resultCount);
+        }
+        return places;
+    }
+
+    /**
+     * Returns the candidate places of a cell, from the caches if possible.
+     * @param cell the cell query.
+     * @return the candidate places.
+     */
+    private PlaceCandidates getCandidates(final CellQuery cell) {
+        String key = cell.getKey();
+        PlaceCandidates candidates = localCache.get(key);
+        if (candidates == null) {
+            String memcacheKey = getMemcachePrefix() + key;
+            candidates = (PlaceCandidates) memcache.get(memcacheKey);
+            if (candidates == null) {
+                NearbyQuery query = cell.toNearbyQuery();
+                candidates = new PlaceCandidates(query, delegate.getPlaces(
+                        query.getLocation(), query.getDistanceInMeters(),
+                        query.getResultCount()));
+                memcache.put(memcacheKey, candidates, Expiration
+                        .byDeltaSeconds(MEMCACHE_EXPIRATION_IN_SECONDS));
+            }
+            localCache.put(key, candidates);
+        }
+        return candidates;
+    }
+
+    @Override
+    public List<List<PlaceInfo>> getPlacesBatch(
+            final List<NearbyQuery> queries) {
+        // Map the queries to their cells; queries sharing a cell share its
+        // candidates.
+        List<CellQuery> cells = new ArrayList<>(queries.size());
+        Map<String, PlaceCandidates> candidates = new HashMap<>();
+        Map<String, CellQuery> missing = new LinkedHashMap<>();
+        for (NearbyQuery query : queries) {
+            CellQuery cell = CellQuery.of(query.getLocation(),
+                    query.getDistanceInMeters(), query.getResultCount());
+            cells.add(cell);
+            if (cell == null) {
+                continue;
+            }
+            String key = cell.getKey();
+            if (!candidates.containsKey(key) && !missing.containsKey(key)) {
+                PlaceCandidates cached = localCache.get(key);
+                if (cached == null) {
+                    missing.put(key, cell);
+                } else {
+                    candidates.put(key, cached);
+                }
+            }
+        }
+
+        // Read the cells missing from the instance from memcache at once.
+        String prefix = getMemcachePrefix();
+        List<String> memcacheKeys = new ArrayList<>(missing.size());
+        for (String key : missing.keySet()) {
+            memcacheKeys.add(prefix + key);
+        }
+        if (!memcacheKeys.isEmpty()) {
+            Map<String, Object> cached = memcache.getAll(memcacheKeys);
+            for (Map.Entry<String, Object> entry : cached.entrySet()) {
+                String key = entry.getKey().substring(prefix.length());
+                PlaceCandidates value = (PlaceCandidates) entry.getValue();
+                candidates.put(key, value);
+                localCache.put(key, value);
+                missing.remove(key);
+            }
+        }
+
+        // Load the remaining cells and run the queries that can't be cached
+        // with a single call to the delegate.
+        List<NearbyQuery> delegated = new ArrayList<>();
+        List<NearbyQuery> cellQueries = new ArrayList<>(missing.size());
+        for (CellQuery cell : missing.values()) {
+            cellQueries.add(cell.toNearbyQuery());
+        }
+        delegated.addAll(cellQueries);
+        for (int i = 0; i < queries.size(); i++) {
+            if (cells.get(i) == null) {
+                delegated.add(queries.get(i));
+            }
+        }
+        List<List<PlaceInfo>> delegatedResults = delegated.isEmpty()
+                ? Collections.<List<PlaceInfo>>emptyList()
+                : delegate.getPlacesBatch(delegated);
+        int next = 0;
+        Map<String, PlaceCandidates> loaded = new HashMap<>();
+        for (String key : missing.keySet()) {
+            PlaceCandidates value = new PlaceCandidates(
+                    cellQueries.get(next), delegatedResults.get(next));
+            next++;
+            candidates.put(key, value);
+            localCache.put(key, value);
+            loaded.put(prefix + key, value);
+        }
+        if (!loaded.isEmpty()) {
+            memcache.putAll(loaded, Expiration
+                    .byDeltaSeconds(MEMCACHE_EXPIRATION_IN_SECONDS));
+        }
+
+        List<List<PlaceInfo>> results = new ArrayList<>(queries.size());
+        List<Integer> inexact = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i++) {
+            NearbyQuery query = queries.get(i);
+            CellQuery cell = cells.get(i);
+            if (cell == null) {
+                results.add(delegatedResults.get(next++));
+            } else {
+                List<PlaceInfo> places = candidates.get(cell.getKey())
+                        .nearest(query.getLocation().getLatitude(),
+                        query.getLocation().getLongitude(),
+                        query.getDistanceInMeters() / METERS_IN_KILOMETER,
+                        query.getResultCount());
+                if (places == null) {
+                    inexact.add(i);
+                }
+                results.add(places);
+            }
+        }
+
+        // Answer the queries the candidates don't cover with a single call
+        // to the delegate.
+        if (!inexact.isEmpty()) {
+            List<NearbyQuery> exact = new ArrayList<>(inexact.size());
+            for (int i : inexact) {
+                exact.add(queries.get(i));
+            }
+            List<List<PlaceInfo>> exactResults =
+                    delegate.getPlacesBatch(exact);
+            for (int i = 0; i < inexact.size(); i++) {
+                results.set(inexact.get(i), exactResults.get(i));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public List<PlaceInfo> getPlacesAlongRoute(final List<GeoPt> route,
+            final double widthInKm, final int resultCount) {
+        return delegate.getPlacesAlongRoute(route, widthInKm, resultCount);
+    }
+
+    @Override
+    public PlacePage getPlacesPage(final GeoPt location,
+            final long distanceInMeters, final int pageSize,
+            final String cursor) {
+        return delegate.getPlacesPage(location, distanceInMeters, pageSize,
+                cursor);
+    }
+
+    @Override
+    public void invalidate() {
+        localCache.clear();
+        memcache.increment(GENERATION_KEY, 1, System.currentTimeMillis());
+        generationExpiresAt = 0;
+        delegate.invalidate();
+    }
+
+    /**
+     * Returns the prefix of the memcache keys of the candidates.
+     * @return the prefix, from the format version and the generation
+     *      number.
+     */
+    private String getMemcachePrefix() {
+        return CANDIDATES_VERSION + ":" + getGeneration() + ":";
+    }
+
+    /**
+     * Returns the current generation number, reading it from memcache at
+     * most once per LOCAL_TIME_TO_LIVE_IN_MILLISECONDS.
+     * @return the current generation number.
+     */
+    private long getGeneration() {
+        long now = System.currentTimeMillis();
+        if (now >= generationExpiresAt) {
+            // Seed with the current time, so a generation number evicted from
+            // memcache never comes back to a previous value.
+            Long current = memcache.increment(GENERATION_KEY, 0, now);
+            generation = current == null ? 0 : current;
+            generationExpiresAt = now + LOCAL_TIME_TO_LIVE_IN_MILLISECONDS;
+        }
+        return generation;
+    }
+
+    /**
+     * A location cell and radius bucket, identifying the candidate places
+     * shared by the callers mapped to it.
+     */
+    static final class CellQuery {
+
+        /**
+         * The row of the cell.
+         */
+        private final int row;
+
+        /**
+         * The column of the cell.
+         */
+        private final int column;
+
+        /**
+         * The radius bucket, in kilometers.
+         */
+        private final int radiusBucket;
+
+        /**
+         * Creates a cell query.
+         * @param pRow the row of the cell.
+         * @param pColumn the column of the cell.
+         * @param pRadiusBucket the radius bucket, in kilometers.
+         */
+        private CellQuery(final int pRow, final int pColumn,
+                final int pRadiusBucket) {
+            this.row = pRow;
+            this.column = pColumn;
+            this.radiusBucket = pRadiusBucket;
+        }
+
+        /**
+         * Maps a query to its cell query.
+         * @param location the location to search around.
+         * @param distanceInMeters the maximum distance to the location.
+         * @param resultCount the maximum number of places returned.
+         * @return the cell query, or null if the distance is larger than the
+         *      largest bucket or the count larger than
+         *      MAXIMUM_CACHED_RESULT_COUNT.
+         */
+        static CellQuery of(final GeoPt location, final long distanceInMeters,
+                final int resultCount) {
+            int radiusBucket = bucket(RADIUS_BUCKETS_IN_KM,
+                    distanceInMeters / METERS_IN_KILOMETER);
+            if (radiusBucket < 0
+                    || resultCount > MAXIMUM_CACHED_RESULT_COUNT) {
+                return null;
+            }
+            return new CellQuery(
+                    (int) Math.floor(
+                            location.getLatitude() / CELL_SIZE_IN_DEGREES),
+                    (int) Math.floor(
+                            location.getLongitude() / CELL_SIZE_IN_DEGREES),
+                    radiusBucket);
+        }
+
+        /**
+         * Returns the key identifying this cell query in the caches.
+         * @return the key.
+         */
+        String getKey() {
+            return row + ":" + column + ":" + radiusBucket;
+        }
+
+        /**
+         * Returns the query retrieving the candidate places of this cell
+         * query.
+         * @return the query, around the center of the cell.
+         */
+        NearbyQuery toNearbyQuery() {
+            GeoPt center = new GeoPt(
+                    (float) ((row + 0.5) * CELL_SIZE_IN_DEGREES),
+                    (float) ((column + 0.5) * CELL_SIZE_IN_DEGREES));
+            long distanceInMeters = (long) Math.ceil(
+                    (radiusBucket + CELL_MARGIN_IN_KM) * METERS_IN_KILOMETER);
+            return new NearbyQuery(center, distanceInMeters,
+                    MAXIMUM_CANDIDATES);
+        }
+
+        /**
+         * Returns the smallest bucket not lower than a value.
+         * @param buckets the buckets, in increasing order.
+         * @param value the value.
+         * @return the bucket, or -1 if the value is larger than all buckets.
+         */
+        private static int bucket(final int[] buckets, final double value) {
+            for (int bucket : buckets) {
+                if (value <= bucket) {
+                    return bucket;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Serializable set of candidate places stored in the caches.
+     */
+    static final class PlaceCandidates implements Serializable {
+
+        /**
+         * Serialization version.
+         */
+        private static final long serialVersionUID = 2L;
+
+        /**
+         * The latitude of the location the candidates were searched around.
+         */
+        private final double centerLatitude;
+
+        /**
+         * The longitude of the location the candidates were searched around.
+         */
+        private final double centerLongitude;
+
+        /**
+         * The distance to the center up to which the candidates include all
+         * the places, in kilometers, or infinity if no place was cut off.
+         */
+        private final double coveredDistanceInKm;
+
+        /**
+         * The place identifiers.
+         */
+        private final long[] ids;
+
+        /**
+         * The place names.
+         */
+        private final String[] names;
+
+        /**
+         * The place addresses.
+         */
+        private final String[] addresses;
+
+        /**
+         * The place latitudes.
+         */
+        private final float[] latitudes;
+
+        /**
+         * The place longitudes.
+         */
+        private final float[] longitudes;
+
+        /**
+         * Creates a candidate set from places.
+         * @param query the query that retrieved the places.
+         * @param places the candidate places.
+         */
+        PlaceCandidates(final NearbyQuery query,
+                final List<PlaceInfo> places) {
+            centerLatitude = query.getLocation().getLatitude();
+            centerLongitude = query.getLocation().getLongitude();
+            int size = places.size();
+            ids = new long[size];
+            names = new String[size];
+            addresses = new String[size];
+            latitudes = new float[size];
+            longitudes = new float[size];
+            for (int i = 0; i < size; i++) {
+                PlaceInfo place = places.get(i);
+                ids[i] = place.getPlaceId();
+                names[i] = place.getName();
+                addresses[i] = place.getAddress();
+                latitudes[i] = place.getLocation().getLatitude();
+                longitudes[i] = place.getLocation().getLongitude();
+            }
+
+            // When the result count cut places off, the places farther than
+            // the farthest one kept may be missing.
+            double farthest = 0;
+            for (int i = 0; i < size; i++) {
+                farthest = Math.max(farthest, PlacesHelper.getDistanceInKm(
+                        latitudes[i], longitudes[i], centerLatitude,
+                        centerLongitude));
+            }
+            if (size < query.getResultCount()) {
+                coveredDistanceInKm = Double.POSITIVE_INFINITY;
+            } else {
+                coveredDistanceInKm = farthest;
+            }
+        }
+
+        /**
+         * Returns the number of candidates.
+         * @return the number of candidates.
+         */
+        int size() {
+            return ids.length;
+        }
+
+        /**
+         * Returns the candidates nearest to a location.
+         * @param latitude the latitude of the location.
+         * @param longitude the longitude of the location.
+         * @param distanceInKm the maximum distance to the location.
+         * @param resultCount the maximum number of places returned.
+         * @return up to resultCount places closer than distanceInKm, nearest
+         *      first, or null if places that were not cached could belong
+         *      to the result.
+         */
+        List<PlaceInfo> nearest(final double latitude, final double longitude,
+                final double distanceInKm, final int resultCount) {
+            List<PlaceInfo> places = new ArrayList<>();
+            for (int i = 0; i < ids.length; i++) {
+                double distance = PlacesHelper.getDistanceInKm(latitudes[i],
+                        longitudes[i], latitude, longitude);
+                if (distance <= distanceInKm) {
+                    PlaceInfo place = new PlaceInfo();
+                    place.setPlaceId(ids[i]);
+                    place.setName(names[i]);
+                    place.setAddress(addresses[i]);
+                    place.setLocation(new GeoPt(latitudes[i], longitudes[i]));
+                    place.setDistanceInKilometers(distance);
+                    places.add(place);
+                }
+            }
+            Collections.sort(places, new Comparator<PlaceInfo>() {
+                @Override
+                public int compare(final PlaceInfo p1, final PlaceInfo p2) {
+                    return Double.compare(p1.getDistanceInKilometers(),
+                            p2.getDistanceInKilometers());
+                }
+            });
+            if (places.size() > resultCount) {
+                places = new ArrayList<>(places.subList(0, resultCount));
+            }
+
+            // The result is exact if every place closer to the location than
+            // the farthest place returned, or than the maximum distance if
+            // fewer places were found, is strictly within the covered
+            // distance of the center.
+            double reach = distanceInKm;
+            if (!places.isEmpty() && places.size() == resultCount) {
+                reach = places.get(places.size() - 1)
+                        .getDistanceInKilometers();
+            }
+            if (PlacesHelper.getDistanceInKm(latitude, longitude,
+                    centerLatitude, centerLongitude) + reach
+                    >= coveredDistanceInKm) {
+                return null;
+            }
+            return places;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.sample.mobileassistantbackend.models.CheckIn;
+import com.googlecode.objectify.Result;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import static com.google.sample.mobileassistantbackend.OfyService.ofy;
+
+/**
+ * Group commit of the check-ins of concurrent requests of an instance.
+ *
+ * The first request to arrive leads a batch: it waits up to the collection
+ * window for other requests to join, then saves all their check-ins with a
+ * single batched datastore put and, once they are saved, enqueues all their
+ * tasks with a single batched task queue add; if the save fails, no task is
+ * enqueued. The other requests of the batch wait for the leader, so every
+ * request only returns once its check-in is durable. Tasks named like an
+ * earlier task of the batch are dropped, as the queue would drop them.
+ */
+public final class CheckInBatcher {
+
+    /**
+     * Log output.
+     */
+    private static final Logger LOG = Logger
+            .getLogger(CheckInBatcher.class.getName());
+
+    /**
+     * The maximum number of check-ins of a batch, which is also the maximum
+     * number of tasks of a batched task queue add.
+     */
+    private static final int MAXIMUM_BATCH_SIZE = 100;
+
+    /**
+     * How long the leader of a batch waits for other check-ins.
+     */
+    private final long windowInMilliseconds;
+
+    /**
+     * The queue the tasks are added to.
+     */
+    private final Queue queue;
+
+    /**
+     * The batch collecting check-ins, or null. Guarded by this.
+     */
+    private Batch collecting;
+
+    /**
+     * Creates a batcher.
+     * @param pWindowInMilliseconds how long the leader of a batch waits for
+     *      other check-ins.
+     * @param pQueue the queue the tasks are added to.
+     */
+    public CheckInBatcher(final long pWindowInMilliseconds,
+            final Queue pQueue) {
+        this.windowInMilliseconds = pWindowInMilliseconds;
+        this.queue = pQueue;
+    }
+
+    /**
+     * Saves a check-in and enqueues its task, together with the check-ins
+     * of the concurrent requests.
+     * @param checkIn the check-in to save; its key is set on return.
+     * @param task the task to enqueue once the check-in is saved.
+     * @param taskName the name given to the task, or null if it has none.
+     */
+    public void save(final CheckIn checkIn, final TaskOptions task,
+            final String taskName) {
+        Batch batch;
+        boolean leader;
+        synchronized (this) {
+            leader = collecting == null;
+            if (leader) {
+                collecting = new Batch();
+            }
+            batch = collecting;
+            batch.checkIns.add(checkIn);
+            batch.tasks.add(task);
+            batch.taskNames.add(taskName);
+            if (batch.checkIns.size() >= MAXIMUM_BATCH_SIZE) {
+                collecting = null;
+                notifyAll();
+            }
+        }
+
+        if (leader) {
+            collect(batch);
+            batch.commit();
+        } else {
+            batch.await();
+        }
+        batch.throwIfFailed();
+    }
+
+    /**
+     * Waits until the window of a batch elapses or the batch is full, then
+     * closes it.
+     * @param batch the batch led by the current request.
+     */
+    private synchronized void collect(final Batch batch) {
+        long deadline = System.currentTimeMillis() + windowInMilliseconds;
+        long remaining = windowInMilliseconds;
+        try {
+            while (collecting == batch && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (collecting == batch) {
+                collecting = null;
+            }
+        }
+    }
+
+    /**
+     * The check-ins and tasks committed together.
+     */
+    private final class Batch {
+
+        /**
+         * The check-ins to save.
+         */
+        private final List<CheckIn> checkIns = new ArrayList<>();
+
+        /**
+         * The tasks to enqueue.
+         */
+        private final List<TaskOptions> tasks = new ArrayList<>();
+
+        /**
+         * The names of the tasks, null for the tasks without a name.
+         */
+        private final List<String> taskNames = new ArrayList<>();
+
+        /**
+         * Whether the batch was committed. Guarded by this.
+         */
+        private boolean done;
+
+        /**
+         * The error that failed the save, if any. Guarded by this.
+         */
+        private RuntimeException error;
+
+        /**
+         * Saves the check-ins, then enqueues the tasks if the save
+         * succeeded, then wakes up the requests of the batch.
+         */
+        void commit() {
+            RuntimeException failure = null;
+            List<TaskOptions> unique = deduplicate();
+            try {
+                // Only enqueue the tasks of check-ins that are stored, so
+                // no recommendation is pushed for a check-in that failed.
+                Result<?> saved = ofy().save().entities(checkIns);
+                saved.now();
+                Metrics.increment(Metrics.RECOMMENDATIONS_COALESCED,
+                        tasks.size() - unique.size());
+                Future<List<TaskHandle>> added = queue.addAsync(unique);
+                try {
+                    added.get();
+                    Metrics.increment(Metrics.RECOMMENDATIONS_ENQUEUED,
+                            unique.size());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof TaskAlreadyExistsException) {
+                        // The other tasks were added.
+                        int existing = ((TaskAlreadyExistsException)
+                                e.getCause()).getTaskNames().size();
+                        Metrics.increment(Metrics.RECOMMENDATIONS_ENQUEUED,
+                                unique.size() - existing);
+                        Metrics.increment(Metrics.RECOMMENDATIONS_COALESCED,
+                                existing);
+                    } else {
+                        LOG.severe("Failed to add " + unique.size()
+                                + " tasks: " + e.getCause().getMessage());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            synchronized (this) {
+                done = true;
+                error = failure;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Drops the tasks named like an earlier task of the batch, since a
+         * batched add can't hold two tasks of the same name.
+         * @return the tasks with distinct names.
+         */
+        private List<TaskOptions> deduplicate() {
+            Set<String> names = new HashSet<>();
+            List<TaskOptions> unique = new ArrayList<>(tasks.size());
+            for (int i = 0; i < tasks.size(); i++) {
+                String name = taskNames.get(i);
+                if (name == null || names.add(name)) {
+                    unique.add(tasks.get(i));
+                }
+            }
+            return unique;
+        }
+
+        /**
+         * Waits until the batch is committed.
+         */
+        synchronized void await() {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // The leader commits the batch anyway; wait for the
+                    // outcome before returning.
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Rethrows the error that failed the save, if any.
+         */
+        synchronized void throwIfFailed() {
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
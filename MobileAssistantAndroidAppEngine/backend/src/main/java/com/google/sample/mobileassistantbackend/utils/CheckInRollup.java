@@ -0,0 +1,241 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.sample.mobileassistantbackend.models.CheckIn;
+import com.google.sample.mobileassistantbackend.models.CheckInRollupState;
+import com.google.sample.mobileassistantbackend.models.PlaceBusyHours;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static com.google.sample.mobileassistantbackend.OfyService.ofy;
+
+/**
+ * Rollup folding the CheckIn entities into the PlaceBusyHours histograms,
+ * so the busy hours of a place are read from a single entity.
+ *
+ * The check-ins are folded in spans of time following a watermark. The end
+ * of a span is recorded before folding it, and each histogram records the
+ * span end it was folded up to, so a span interrupted by a failure is
+ * folded again without counting a check-in twice. Spans end SETTLE_DELAY
+ * before the current time, leaving time to the check-ins being saved and
+ * to the datastore indexes to catch up.
+ */
+public final class CheckInRollup {
+
+    /**
+     * Log output.
+     */
+    private static final Logger LOG = Logger
+            .getLogger(CheckInRollup.class.getName());
+
+    /**
+     * The maximum duration of a span.
+     */
+    private static final long MAXIMUM_SPAN_IN_MILLISECONDS =
+            TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * How long before the current time the spans end.
+     */
+    private static final long SETTLE_DELAY_IN_MILLISECONDS =
+            TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * The number of CheckIn entities fetched per datastore batch.
+     */
+    private static final int CHECKINS_PER_READ = 1000;
+
+    /**
+     * The number of milliseconds in an hour.
+     */
+    private static final long MILLISECONDS_IN_HOUR =
+            TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * The hour of the week of the epoch, a Thursday, in weeks starting on
+     * Monday.
+     */
+    private static final long EPOCH_HOUR_OF_WEEK = 3 * 24;
+
+    /**
+     * Default constructor, never called.
+     */
+    private CheckInRollup() {
+    }
+
+    /**
+     * Folds the check-ins of the spans following the watermark, until the
+     * watermark is SETTLE_DELAY before the current time or the deadline is
+     * passed.
+     * @param deadline the time no new span is started after.
+     * @return the number of check-ins folded.
+     */
+    public static long run(final long deadline) {
+        long folded = 0;
+        while (System.currentTimeMillis() < deadline) {
+            final CheckInRollupState state = claimSpan();
+            if (state == null) {
+                break;
+            }
+            folded += fold(state.getWatermark(), state.getSpanEnd());
+            ofy().transact(new VoidWork() {
+                @Override
+                public void vrun() {
+                    CheckInRollupState current = loadState();
+                    if (state.getSpanEnd().equals(current.getSpanEnd())) {
+                        current.setWatermark(current.getSpanEnd());
+                        current.setSpanEnd(null);
+                        ofy().save().entity(current);
+                    }
+                }
+            });
+        }
+        return folded;
+    }
+
+    /**
+     * Returns the hour of the week of a date.
+     * @param date the date.
+     * @return the hour of the week, in UTC, from 0 on Monday 00:00 to
+     *      PlaceBusyHours.HOURS_IN_WEEK - 1.
+     */
+    public static int getHourOfWeek(final Date date) {
+        long hour = (date.getTime() / MILLISECONDS_IN_HOUR
+                + EPOCH_HOUR_OF_WEEK) % PlaceBusyHours.HOURS_IN_WEEK;
+        if (hour < 0) {
+            hour += PlaceBusyHours.HOURS_IN_WEEK;
+        }
+        return (int) hour;
+    }
+
+    /**
+     * Records the span to fold next, unless one is already recorded.
+     * @return the state with the span to fold, or null if the watermark is
+     *      already SETTLE_DELAY before the current time.
+     */
+    private static CheckInRollupState claimSpan() {
+        return ofy().transact(new Work<CheckInRollupState>() {
+            @Override
+            public CheckInRollupState run() {
+                CheckInRollupState state = loadState();
+                if (state.getSpanEnd() != null) {
+                    return state;
+                }
+                long end = Math.min(
+                        state.getWatermark().getTime()
+                                + MAXIMUM_SPAN_IN_MILLISECONDS,
+                        System.currentTimeMillis()
+                                - SETTLE_DELAY_IN_MILLISECONDS);
+                if (end <= state.getWatermark().getTime()) {
+                    return null;
+                }
+                state.setSpanEnd(new Date(end));
+                ofy().save().entity(state);
+                return state;
+            }
+        });
+    }
+
+    /**
+     * Folds the check-ins of a span into the histograms not folded up to
+     * its end yet.
+     * @param start the start of the span, inclusive.
+     * @param end the end of the span, exclusive.
+     * @return the number of check-ins in the span.
+     */
+    private static long fold(final Date start, final Date end) {
+        Map<Long, long[]> counts = new HashMap<>();
+        long checkIns = 0;
+        for (CheckIn checkIn : ofy().load().type(CheckIn.class)
+                .filter("checkinDate >=", start)
+                .filter("checkinDate <", end)
+                .chunk(CHECKINS_PER_READ)) {
+            Long placeId;
+            try {
+                placeId = Long.valueOf(checkIn.getPlaceId());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            long[] placeCounts = counts.get(placeId);
+            if (placeCounts == null) {
+                placeCounts = new long[PlaceBusyHours.HOURS_IN_WEEK];
+                counts.put(placeId, placeCounts);
+            }
+            placeCounts[getHourOfWeek(checkIn.getCheckInDate())]++;
+            checkIns++;
+        }
+
+        for (final Map.Entry<Long, long[]> entry : counts.entrySet()) {
+            ofy().transact(new VoidWork() {
+                @Override
+                public void vrun() {
+                    PlaceBusyHours busyHours = ofy().load()
+                            .type(PlaceBusyHours.class).id(entry.getKey())
+                            .now();
+                    if (busyHours == null) {
+                        busyHours = new PlaceBusyHours(entry.getKey());
+                    } else if (busyHours.getRolledUpTo() != null
+                            && !busyHours.getRolledUpTo().before(end)) {
+                        return;
+                    }
+                    List<Long> histogram = busyHours.getCheckInCounts();
+                    long[] added = entry.getValue();
+                    for (int hour = 0; hour < added.length; hour++) {
+                        histogram.set(hour, histogram.get(hour) + added[hour]);
+                    }
+                    busyHours.setRolledUpTo(end);
+                    ofy().save().entity(busyHours);
+                }
+            });
+        }
+        LOG.info("Folded " + checkIns + " check-ins at " + counts.size()
+                + " places from " + start + " to " + end);
+        return checkIns;
+    }
+
+    /**
+     * Loads the rollup state, creating it at the date of the first check-in
+     * if needed.
+     * @return the rollup state.
+     */
+    private static CheckInRollupState loadState() {
+        CheckInRollupState state = ofy().load().type(CheckInRollupState.class)
+                .id(CheckInRollupState.SINGLETON_ID).now();
+        if (state == null) {
+            state = new CheckInRollupState();
+            // Queries across entity groups can't run in the transactions.
+            CheckIn first = ofy().transactionless().load().type(CheckIn.class)
+                    .order("checkinDate").limit(1).first().now();
+            if (first != null) {
+                state.setWatermark(first.getCheckInDate());
+            } else {
+                state.setWatermark(new Date(System.currentTimeMillis()
+                        - SETTLE_DELAY_IN_MILLISECONDS));
+            }
+        }
+        return state;
+    }
+}
@@ -17,7 +17,9 @@
 package com.google.sample.mobileassistantbackend.utils;
 
 import com.google.sample.mobileassistantbackend.models.CheckIn;
+import com.googlecode.objectify.cmd.Query;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.logging.Logger;
@@ -64,4 +66,69 @@ public final class CheckInUtil {
                 .filter("checkinDate >", dateFrom)
                 .list();
     }
+
+    /**
+     * Counts the check-ins done by a given user at a given place in a
+     * period, up to a limit. The count is answered from the recent
+     * visits recorded on the check-in write path, and only queries the
+     * datastore if they are unknown.
+     * @param userEmail The email address of the user.
+     * @param placeId   The id of the place.
+     * @param dateFrom  The start date for matching check in, exclusive,
+     *      within RecentVisits.RETENTION_IN_MILLISECONDS.
+     * @param dateTo    The end date for matching check in, inclusive.
+     * @param limit     The count above which the exact number of check-ins
+     *      does not matter.
+     * @return The number of matching check-ins, capped at limit.
+     */
+    public static int countCheckInsForUser(final String userEmail,
+            final String placeId, final Date dateFrom, final Date dateTo,
+            final int limit) {
+        int count = RecentVisits.count(userEmail, placeId, dateFrom, dateTo,
+                limit);
+        if (count < 0) {
+            // Load the whole retention period to seed the recent visits.
+            Date retentionStart = new Date(System.currentTimeMillis()
+                    - RecentVisits.RETENTION_IN_MILLISECONDS);
+            List<Date> dates = new ArrayList<>();
+            count = 0;
+            for (CheckIn checkIn : getCheckInsForUser(userEmail, placeId,
+                    retentionStart)) {
+                dates.add(checkIn.getCheckInDate());
+                if (checkIn.getCheckInDate().after(dateFrom)
+                        && !checkIn.getCheckInDate().after(dateTo)) {
+                    count++;
+                }
+            }
+            RecentVisits.seed(userEmail, placeId, dates);
+        }
+        return Math.min(count, limit);
+    }
+
+    /**
+     * Builds a query of the check-ins matching optional filters, ordered by
+     * check-in date.
+     * @param userEmail The email address of the user, or null for all users.
+     * @param placeId   The id of the place, or null for all places.
+     * @param dateFrom  The start date of the check-ins, inclusive, or null.
+     * @param dateTo    The end date of the check-ins, exclusive, or null.
+     * @return The query.
+     */
+    public static Query<CheckIn> queryCheckIns(final String userEmail,
+            final String placeId, final Date dateFrom, final Date dateTo) {
+        Query<CheckIn> query = ofy().load().type(CheckIn.class);
+        if (userEmail != null) {
+            query = query.filter("userEmail", userEmail);
+        }
+        if (placeId != null) {
+            query = query.filter("placeId", placeId);
+        }
+        if (dateFrom != null) {
+            query = query.filter("checkinDate >=", dateFrom);
+        }
+        if (dateTo != null) {
+            query = query.filter("checkinDate <", dateTo);
+        }
+        return query.order("checkinDate");
+    }
 }
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.utils;
+
+/**
+ * Great-circle distance computations over points stored as unit vectors
+ * (earth-centered, earth-fixed coordinates on the unit sphere) in primitive
+ * arrays.
+ *
+ * The squared chord length between two unit vectors only needs three
+ * multiplications and is monotonic with the great-circle distance, so
+ * candidates are filtered and ranked on it, and only the selected ones are
+ * converted to kilometers with 2 * asin(chord / 2). Unlike the spherical law
+ * of cosines, this stays accurate for points that are very close.
+ */
+public final class GeoDistanceKernel {
+
+    /**
+     * The largest possible squared chord length between two unit vectors.
+     */
+    private static final double MAXIMUM_CHORD_SQUARED = 4;
+
+    /**
+     * Default constructor, never called.
+     */
+    private GeoDistanceKernel() {
+    }
+
+    /**
+     * Computes the great-circle distance between two GPS coordinates.
+     * @param latitude1 the latitude of the first point.
+     * @param longitude1 the longitude of the first point.
+     * @param latitude2 the latitude of the second point.
+     * @param longitude2 the longitude of the second point.
+     * @return the distance between the two points, in kilometers.
+     */
+    public static double distanceInKm(final double latitude1,
+            final double longitude1, final double latitude2,
+            final double longitude2) {
+        double lat1 = Math.toRadians(latitude1);
+        double lat2 = Math.toRadians(latitude2);
+        double cosLat1 = Math.cos(lat1);
+        double cosLat2 = Math.cos(lat2);
+        double long1 = Math.toRadians(longitude1);
+        double long2 = Math.toRadians(longitude2);
+
+        double dx = cosLat1 * Math.cos(long1) - cosLat2 * Math.cos(long2);
+        double dy = cosLat1 * Math.sin(long1) - cosLat2 * Math.sin(long2);
+        double dz = Math.sin(lat1) - Math.sin(lat2);
+        return chordSquaredToKm(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * Converts GPS coordinates to unit vectors.
+     * @param latitudes the latitudes, in degrees.
+     * @param longitudes the longitudes, in degrees.
+     * @param count the number of points to convert.
+     * @param x receives the x coordinates.
+     * @param y receives the y coordinates.
+     * @param z receives the z coordinates.
+     */
+    public static void toUnitVectors(final double[] latitudes,
+            final double[] longitudes, final int count, final double[] x,
+            final double[] y, final double[] z) {
+        for (int i = 0; i < count; i++) {
+            double latitude = Math.toRadians(latitudes[i]);
+            double longitude = Math.toRadians(longitudes[i]);
+            double cosLatitude = Math.cos(latitude);
+            x[i] = cosLatitude * Math.cos(longitude);
+            y[i] = cosLatitude * Math.sin(longitude);
+            z[i] = Math.sin(latitude);
+        }
+    }
+
+    /**
+     * Converts GPS coordinates to a unit vector.
+     * @param latitude the latitude, in degrees.
+     * @param longitude the longitude, in degrees.
+     * @param vector receives the x, y and z coordinates.
+     */
+    public static void toUnitVector(final double latitude,
+            final double longitude, final double[] vector) {
+        double lat = Math.toRadians(latitude);
+        double lng = Math.toRadians(longitude);
+        double cosLatitude = Math.cos(lat);
+        vector[0] = cosLatitude * Math.cos(lng);
+        vector[1] = cosLatitude * Math.sin(lng);
+        vector[2] = Math.sin(lat);
+    }
+
+    /**
+     * Returns the squared chord length matching a great-circle distance.
+     * @param distanceInKm the distance, in kilometers.
+     * @return the squared chord length between two unit vectors that far
+     *      apart.
+     */
+    public static double kmToChordSquared(final double distanceInKm) {
+        double halfAngle = distanceInKm / (2 * PlacesHelper.EARTH_RADIUS);
+        if (halfAngle >= Math.PI / 2) {
+            return MAXIMUM_CHORD_SQUARED;
+        }
+        double chord = 2 * Math.sin(halfAngle);
+        return chord * chord;
+    }
+
+    /**
+     * Returns the great-circle distance matching a squared chord length.
+     * @param chordSquared the squared chord length between two unit vectors.
+     * @return the distance between the two points, in kilometers.
+     */
+    public static double chordSquaredToKm(final double chordSquared) {
+        double halfChord = Math.min(1, Math.sqrt(chordSquared) / 2);
+        return 2 * PlacesHelper.EARTH_RADIUS * Math.asin(halfChord);
+    }
+
+    /**
+     * Selects the nearest points of a range into a bounded max-heap kept in
+     * caller-provided arrays. Calls can be chained over several ranges with
+     * the same heap, then sortRanked turns the heap into the result.
+     * @param qx the x coordinate of the query point.
+     * @param qy the y coordinate of the query point.
+     * @param qz the z coordinate of the query point.
+     * @param x the x coordinates of the points.
+     * @param y the y coordinates of the points.
+     * @param z the z coordinates of the points.
+     * @param from the first point of the range, inclusive.
+     * @param to the last point of the range, exclusive.
+     * @param maxChordSquared the squared chord length above which points are
+     *      ignored.
+     * @param heapPositions the heap of point positions; its length is the
+     *      maximum number of points selected.
+     * @param heapKeys the heap of squared chord lengths.
+     * @param heapSize the number of entries already in the heap.
+     * @return the new number of entries in the heap.
+     */
+    public static int rankRange(final double qx, final double qy,
+            final double qz, final double[] x, final double[] y,
+            final double[] z, final int from, final int to,
+            final double maxChordSquared, final int[] heapPositions,
+            final double[] heapKeys, final int heapSize) {
+        return rankRangeAfter(qx, qy, qz, x, y, z, from, to, maxChordSquared,
+                -1, -1, heapPositions, heapKeys, heapSize);
+    }
+
+    /**
+     * Same as rankRange, but only selects the points ranked after a given
+     * point, ordering points by squared chord length then by position. This
+     * resumes a ranking from the last point of a previous page.
+     * @param qx the x coordinate of the query point.
+     * @param qy the y coordinate of the query point.
+     * @param qz the z coordinate of the query point.
+     * @param x the x coordinates of the points.
+     * @param y the y coordinates of the points.
+     * @param z the z coordinates of the points.
+     * @param from the first point of the range, inclusive.
+     * @param to the last point of the range, exclusive.
+     * @param maxChordSquared the squared chord length above which points are
+     *      ignored.
+     * @param afterKey the squared chord length of the last point already
+     *      returned, or -1 to select from the nearest point.
+     * @param afterPosition the position of the last point already returned.
+     * @param heapPositions the heap of point positions; its length is the
+     *      maximum number of points selected.
+     * @param heapKeys the heap of squared chord lengths.
+     * @param heapSize the number of entries already in the heap.
+     * @return the new number of entries in the heap.
+     */
+    public static int rankRangeAfter(final double qx, final double qy,
+            final double qz, final double[] x, final double[] y,
+            final double[] z, final int from, final int to,
+            final double maxChordSquared, final double afterKey,
+            final int afterPosition, final int[] heapPositions,
+            final double[] heapKeys, final int heapSize) {
+        int capacity = heapPositions.length;
+        int size = heapSize;
+        for (int i = from; i < to; i++) {
+            double dx = x[i] - qx;
+            double dy = y[i] - qy;
+            double dz = z[i] - qz;
+            double key = dx * dx + dy * dy + dz * dz;
+            if (key > maxChordSquared || key < afterKey
+                    || (key == afterKey && i <= afterPosition)) {
+                continue;
+            }
+            if (size < capacity) {
+                siftUp(heapPositions, heapKeys, size++, i, key);
+            } else if (capacity > 0 && isBefore(key, i, heapKeys[0],
+                    heapPositions[0])) {
+                siftDown(heapPositions, heapKeys, size, i, key);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Sorts a heap filled by rankRange by increasing distance and converts
+     * its keys to kilometers, in place.
+     * @param heapPositions the heap of point positions.
+     * @param heapKeys the heap of squared chord lengths; receives the
+     *      distances in kilometers.
+     * @param heapSize the number of entries in the heap.
+     */
+    public static void sortRanked(final int[] heapPositions,
+            final double[] heapKeys, final int heapSize) {
+        sortHeap(heapPositions, heapKeys, heapSize);
+        for (int i = 0; i < heapSize; i++) {
+            heapKeys[i] = chordSquaredToKm(heapKeys[i]);
+        }
+    }
+
+    /**
+     * Sorts a heap filled by rankRange by increasing squared chord length,
+     * then by position, in place.
+     * @param heapPositions the heap of point positions.
+     * @param heapKeys the heap of squared chord lengths.
+     * @param heapSize the number of entries in the heap.
+     */
+    public static void sortHeap(final int[] heapPositions,
+            final double[] heapKeys, final int heapSize) {
+        for (int last = heapSize - 1; last > 0; last--) {
+            int position = heapPositions[0];
+            double key = heapKeys[0];
+            siftDown(heapPositions, heapKeys, last, heapPositions[last],
+                    heapKeys[last]);
+            heapPositions[last] = position;
+            heapKeys[last] = key;
+        }
+    }
+
+    /**
+     * Ranks the points nearest to a query point.
+     * @param qx the x coordinate of the query point.
+     * @param qy the y coordinate of the query point.
+     * @param qz the z coordinate of the query point.
+     * @param x the x coordinates of the points.
+     * @param y the y coordinates of the points.
+     * @param z the z coordinates of the points.
+     * @param count the number of points.
+     * @param distanceInKm the maximum distance to the query point.
+     * @param positions receives the positions of the nearest points, nearest
+     *      first; its length is the maximum number of points selected.
+     * @param distances receives the distances of the nearest points, in
+     *      kilometers.
+     * @return the number of points selected.
+     */
+    public static int rank(final double qx, final double qy, final double qz,
+            final double[] x, final double[] y, final double[] z,
+            final int count, final double distanceInKm, final int[] positions,
+            final double[] distances) {
+        int size = rankRange(qx, qy, qz, x, y, z, 0, count,
+                kmToChordSquared(distanceInKm), positions, distances, 0);
+        sortRanked(positions, distances, size);
+        return size;
+    }
+
+    /**
+     * Inserts an entry at the end of a max-heap and restores the heap
+     * property.
+     * @param positions the heap of positions.
+     * @param keys the heap of keys.
+     * @param index the index of the new entry.
+     * @param position the position of the new entry.
+     * @param key the key of the new entry.
+     */
+    private static void siftUp(final int[] positions, final double[] keys,
+            final int index, final int position, final double key) {
+        int i = index;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!isBefore(keys[parent], positions[parent], key, position)) {
+                break;
+            }
+            positions[i] = positions[parent];
+            keys[i] = keys[parent];
+            i = parent;
+        }
+        positions[i] = position;
+        keys[i] = key;
+    }
+
+    /**
+     * Replaces the root of a max-heap and restores the heap property.
+     * @param positions the heap of positions.
+     * @param keys the heap of keys.
+     * @param size the number of entries in the heap.
+     * @param position the position of the new root.
+     * @param key the key of the new root.
+     */
+    private static void siftDown(final int[] positions, final double[] keys,
+            final int size, final int position, final double key) {
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && isBefore(keys[child], positions[child],
+                    keys[child + 1], positions[child + 1])) {
+                child++;
+            }
+            if (!isBefore(key, position, keys[child], positions[child])) {
+                break;
+            }
+            positions[i] = positions[child];
+            keys[i] = keys[child];
+            i = child;
+        }
+        positions[i] = position;
+        keys[i] = key;
+    }
+
+    /**
+     * Compares two ranked points by squared chord length, then by position.
+     * @param key1 the squared chord length of the first point.
+     * @param position1 the position of the first point.
+     * @param key2 the squared chord length of the second point.
+     * @param position2 the position of the second point.
+     * @return true if the first point is ranked before the second one.
+     */
+    private static boolean isBefore(final double key1, final int position1,
+            final double key2, final int position2) {
+        return key1 < key2 || (key1 == key2 && position1 < position2);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.sample.mobileassistantbackend.models.Place;
+import com.google.sample.mobileassistantbackend.models.PlaceInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import static com.google.sample.mobileassistantbackend.OfyService.ofy;
+
+/**
+ * PlaceSearchEngine answering queries from a PlaceSpatialIndex built from the
+ * Place entities and kept in the memory of the instance. It behaves the same
+ * on the dev server and in production.
+ */
+public final class InMemoryPlaceSearchEngine implements PlaceSearchEngine {
+
+    /**
+     * Log output.
+     */
+    private static final Logger LOG = Logger
+            .getLogger(InMemoryPlaceSearchEngine.class.getName());
+
+    /**
+     * How long a loaded snapshot of the places is used before being reloaded,
+     * so changes made through other instances become visible.
+     */
+    private static final long RELOAD_INTERVAL_IN_MILLISECONDS =
+            TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * The number of Place entities fetched per datastore batch when loading.
+     */
+    private static final int LOAD_BATCH_SIZE = 1000;
+
+    /**
+     * The number of meters in a kilometer.
+     */
+    private static final double METERS_IN_KILOMETER = 1000.0;
+
+    /**
+     * The prefix of the cursors created by this engine.
+     */
+    private static final String CURSOR_PREFIX = "m";
+
+    /**
+     * The current snapshot of the places.
+     */
+    private volatile PlaceSpatialIndex index;
+
+    /**
+     * The time the current snapshot expires at, or 0 to reload it.
+     */
+    private volatile long expiresAt;
+
+    /**
+     * Whether a thread is reloading the snapshot.
+     */
+    private final AtomicBoolean reloading = new AtomicBoolean();
+
+    @Override
+    public List<PlaceInfo> getPlaces(final GeoPt location,
+            final long distanceInMeters, final int resultCount) {
+        return getIndex().nearest(location.getLatitude(),
+                location.getLongitude(),
+                distanceInMeters / METERS_IN_KILOMETER, resultCount);
+    }
+
+    @Override
+    public List<List<PlaceInfo>> getPlacesBatch(
+            final List<NearbyQuery> queries) {
+        PlaceSpatialIndex current = getIndex();
+        List<List<PlaceInfo>> results = new ArrayList<>(queries.size());
+        for (NearbyQuery query : queries) {
+            results.add(current.nearest(query.getLocation().getLatitude(),
+                    query.getLocation().getLongitude(),
+                    query.getDistanceInMeters() / METERS_IN_KILOMETER,
+                    query.getResultCount()));
+        }
+        return results;
+    }
+
+    @Override
+    public List<PlaceInfo> getPlacesAlongRoute(final List<GeoPt> route,
+            final double widthInKm, final int resultCount) {
+        return getIndex().alongRoute(new RouteCorridor(route, widthInKm),
+                resultCount);
+    }
+
+    @Override
+    public PlacePage getPlacesPage(final GeoPt location,
+            final long distanceInMeters, final int pageSize,
+            final String cursor) {
+        String indexCursor = null;
+        if (cursor != null) {
+            if (!cursor.startsWith(CURSOR_PREFIX)) {
+                throw new IllegalArgumentException("Invalid cursor " + cursor);
+            }
+            indexCursor = cursor.substring(CURSOR_PREFIX.length());
+        }
+
+        PlacePage page = getIndex().page(location.getLatitude(),
+                location.getLongitude(),
+                distanceInMeters / METERS_IN_KILOMETER, pageSize, indexCursor);
+        if (page.getNextCursor() == null) {
+            return page;
+        }
+        return new PlacePage(page.getPlaces(),
+                CURSOR_PREFIX + page.getNextCursor());
+    }
+
+    @Override
+    public void invalidate() {
+        expiresAt = 0;
+    }
+
+    /**
+     * Returns the current snapshot of the places. Only the first calls wait
+     * for a snapshot to be loaded: once expired, the snapshot is reloaded by
+     * the one thread that claims the reload, and the others keep using the
+     * previous snapshot meanwhile.
+     * @return the current spatial index.
+     */
+    PlaceSpatialIndex getIndex() {
+        PlaceSpatialIndex current = index;
+        if (current == null) {
+            synchronized (this) {
+                if (index == null) {
+                    expiresAt = System.currentTimeMillis()
+                            + RELOAD_INTERVAL_IN_MILLISECONDS;
+                    index = load();
+                }
+                return index;
+            }
+        }
+        if (System.currentTimeMillis() >= expiresAt
+                && reloading.compareAndSet(false, true)) {
+            try {
+                // Set the expiry before loading, so an invalidation during
+                // the load triggers another one.
+                expiresAt = System.currentTimeMillis()
+                        + RELOAD_INTERVAL_IN_MILLISECONDS;
+                current = load();
+                index = current;
+            } catch (RuntimeException e) {
+                expiresAt = 0;
+                LOG.warning("Failed to reload the places, keeping the "
+                        + "previous snapshot: " + e);
+            } finally {
+                reloading.set(false);
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Loads all Place entities into a new spatial index.
+     * @return the new spatial index.
+     */
+    private PlaceSpatialIndex load() {
+        long start = System.currentTimeMillis();
+        PlaceSpatialIndex loaded = PlaceSpatialIndex.build(
+                ofy().load().type(Place.class).chunk(LOAD_BATCH_SIZE));
+        LOG.info("Loaded " + loaded.size() + " places in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return loaded;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bounded, thread-safe, least-recently-used cache kept in the memory of the
+ * instance, whose entries expire after a fixed time to live. The cache is
+ * bounded by the number of its entries, or by their total weight when the
+ * values vary in size.
+ * @param <K> the type of the keys.
+ * @param <V> the type of the values.
+ */
+public final class LocalCache<K, V> {
+
+    /**
+     * The load factor of the entry map.
+     */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * The maximum initial capacity of the entry map.
+     */
+    private static final int MAXIMUM_INITIAL_CAPACITY = 1024;
+
+    /**
+     * The entries, in access order.
+     */
+    private final LinkedHashMap<K, CachedValue<V>> entries;
+
+    /**
+     * How long an entry can be returned after it was put.
+     */
+    private final long timeToLiveInMilliseconds;
+
+    /**
+     * The maximum total weight of the entries kept.
+     */
+    private final long capacity;
+
+    /**
+     * The weigher of the values, or null if each entry weighs 1.
+     */
+    private final Weigher<? super V> weigher;
+
+    /**
+     * The total weight of the entries.
+     */
+    private long weight;
+
+    /**
+     * Creates a cache bounded by its number of entries.
+     * @param pCapacity the maximum number of entries kept.
+     * @param pTimeToLiveInMilliseconds how long an entry can be returned
+     *      after it was put.
+     */
+    public LocalCache(final int pCapacity,
+            final long pTimeToLiveInMilliseconds) {
+        this(pCapacity, pTimeToLiveInMilliseconds, null);
+    }
+
+    /**
+     * Creates a cache bounded by the total weight of its entries.
+     * @param pCapacity the maximum total weight of the entries kept.
+     * @param pTimeToLiveInMilliseconds how long an entry can be returned
+     *      after it was put.
+     * @param pWeigher the weigher of the values, or null if each entry
+     *      weighs 1.
+     */
+    public LocalCache(final long pCapacity,
+            final long pTimeToLiveInMilliseconds,
+            final Weigher<? super V> pWeigher) {
+        this.capacity = pCapacity;
+        this.timeToLiveInMilliseconds = pTimeToLiveInMilliseconds;
+        this.weigher = pWeigher;
+        this.entries = new LinkedHashMap<>(
+                (int) Math.min(pCapacity, MAXIMUM_INITIAL_CAPACITY),
+                LOAD_FACTOR, true);
+    }
+
+    /**
+     * Returns the value cached for a key.
+     * @param key the key.
+     * @return the value, or null if it is missing or expired.
+     */
+    public synchronized V get(final K key) {
+        CachedValue<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Caches a value.
+     * @param key the key.
+     * @param value the value.
+     */
+    public synchronized void put(final K key, final V value) {
+        int valueWeight = 1;
+        if (weigher != null) {
+            valueWeight = weigher.weigh(value);
+        }
+        CachedValue<V> replaced = entries.put(key, new CachedValue<>(value,
+                System.currentTimeMillis() + timeToLiveInMilliseconds,
+                valueWeight));
+        weight += valueWeight;
+        if (replaced != null) {
+            weight -= replaced.weight;
+        }
+
+        // Evict the least recently used entries, the new one last.
+        Iterator<CachedValue<V>> eldest = entries.values().iterator();
+        while (weight > capacity) {
+            weight -= eldest.next().weight;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Removes the value cached for a key.
+     * @param key the key.
+     */
+    public synchronized void remove(final K key) {
+        CachedValue<V> removed = entries.remove(key);
+        if (removed != null) {
+            weight -= removed.weight;
+        }
+    }
+
+    /**
+     * Removes all the cached values.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * Computes the weight of the values of a cache, counted against its
+     * capacity.
+     * @param <V> the type of the values.
+     */
+    public interface Weigher<V> {
+
+        /**
+         * Returns the weight of a value.
+         * @param value the value.
+         * @return the weight, not negative.
+         */
+        int weigh(V value);
+    }
+
+    /**
+     * A cached value and its expiration time.
+     * @param <V> the type of the value.
+     */
+    private static final class CachedValue<V> {
+
+        /**
+         * The cached value.
+         */
+        private final V value;
+
+        /**
+         * The time the value expires at.
+         */
+        private final long expiresAt;
+
+        /**
+         * The weight of the value.
+         */
+        private final int weight;
+
+        /**
+         * Creates an entry.
+         * @param pValue the cached value.
+         * @param pExpiresAt the time the value expires at.
+         * @param pWeight the weight of the value.
+         */
+        CachedValue(final V pValue, final long pExpiresAt,
+                final int pWeight) {
+            this.value = pValue;
+            this.expiresAt = pExpiresAt;
+            this.weight = pWeight;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Operational counters shared by all the instances, kept in memcache. They
+ * are best effort: an update that fails is only logged, and memcache may
+ * evict a counter, which then restarts from 0.
+ */
+public final class Metrics {
+
+    /**
+     * Log output.
+     */
+    private static final Logger LOG = Logger
+            .getLogger(Metrics.class.getName());
+
+    /**
+     * The number of recommendation tasks enqueued.
+     */
+    public static final String RECOMMENDATIONS_ENQUEUED =
+            "recommendations.enqueued";
+
+    /**
+     * The number of recommendation tasks dropped because a task of the same
+     * user, place and time window was already enqueued.
+     */
+    public static final String RECOMMENDATIONS_COALESCED =
+            "recommendations.coalesced";
+
+    /**
+     * The number of recommendation tasks run.
+     */
+    public static final String RECOMMENDATION_TASKS = "recommendations.tasks";
+
+    /**
+     * The total time the recommendation tasks occupied request threads, in
+     * milliseconds. Divided by RECOMMENDATION_TASKS, it is the occupancy of
+     * a thread per task.
+     */
+    public static final String RECOMMENDATION_TASK_MILLISECONDS =
+            "recommendations.task.millis";
+
+    /**
+     * The number of expired recommendations deleted.
+     */
+    public static final String RECOMMENDATIONS_SWEPT = "recommendations.swept";
+
+    /**
+     * All the counters, in the order they are reported.
+     */
+    private static final List<String> COUNTERS = Collections.unmodifiableList(
+            Arrays.asList(RECOMMENDATIONS_ENQUEUED, RECOMMENDATIONS_COALESCED,
+                    RECOMMENDATION_TASKS, RECOMMENDATION_TASK_MILLISECONDS,
+                    RECOMMENDATIONS_SWEPT));
+
+    /**
+     * The memcache namespace of the counters.
+     */
+    private static final String NAMESPACE = "metrics";
+
+    /**
+     * The memcache service.
+     */
+    private static final MemcacheService MEMCACHE =
+            MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+
+    /**
+     * Default constructor, never called.
+     */
+    private Metrics() {
+    }
+
+    /**
+     * Adds to a counter.
+     * @param counter the name of the counter.
+     * @param delta the value to add.
+     */
+    public static void increment(final String counter, final long delta) {
+        try {
+            MEMCACHE.increment(counter, delta, 0L);
+        } catch (RuntimeException e) {
+            LOG.warning("Could not update counter " + counter + ": " + e);
+        }
+    }
+
+    /**
+     * Returns the values of all the counters.
+     * @return the values of the counters by name, 0 if a counter is missing.
+     */
+    public static Map<String, Long> getAll() {
+        Map<String, Object> values = MEMCACHE.getAll(COUNTERS);
+        Map<String, Long> counters = new LinkedHashMap<>();
+        for (String counter : COUNTERS) {
+            Object value = values.get(counter);
+            if (value instanceof Number) {
+                counters.put(counter, ((Number) value).longValue());
+            } else {
+                counters.put(counter, 0L);
+            }
+        }
+        return counters;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.appengine.api.datastore.GeoPt;
+
+/**
+ * A query for the places nearest to a location, as passed to
+ * PlaceSearchEngine.getPlacesBatch. Equal queries have equal results.
+ */
+public final class NearbyQuery {
+
+    /**
+     * The location to search around.
+     */
+    private final GeoPt location;
+
+    /**
+     * The maximum distance to the location, in meters.
+     */
+    private final long distanceInMeters;
+
+    /**
+     * The maximum number of places returned.
+     */
+    private final int resultCount;
+
+    /**
+     * Creates a query.
+     * @param pLocation the location to search around.
+     * @param pDistanceInMeters the maximum distance to the location.
+     * @param pResultCount the maximum number of places returned.
+     */
+    public NearbyQuery(final GeoPt pLocation, final long pDistanceInMeters,
+            final int pResultCount) {
+        this.location = pLocation;
+        this.distanceInMeters = pDistanceInMeters;
+        this.resultCount = pResultCount;
+    }
+
+    /**
+     * Returns the location to search around.
+     * @return the location.
+     */
+    public GeoPt getLocation() {
+        return location;
+    }
+
+    /**
+     * Returns the maximum distance to the location.
+     * @return the maximum distance, in meters.
+     */
+    public long getDistanceInMeters() {
+        return distanceInMeters;
+    }
+
+    /**
+     * Returns the maximum number of places returned.
+     * @return the maximum number of places.
+     */
+    public int getResultCount() {
+        return resultCount;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (!(o instanceof NearbyQuery)) {
+            return false;
+        }
+        NearbyQuery other = (NearbyQuery) o;
+        return location.equals(other.location)
+                && distanceInMeters == other.distanceInMeters
+                && resultCount == other.resultCount;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int hash = location.hashCode();
+        hash = prime * hash + (int) (distanceInMeters ^ (distanceInMeters
+                >>> Integer.SIZE));
+        return prime * hash + resultCount;
+    }
+}
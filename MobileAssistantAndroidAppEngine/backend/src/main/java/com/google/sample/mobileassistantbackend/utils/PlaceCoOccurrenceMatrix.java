@@ -0,0 +1,243 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sparse matrix of the number of users who visited both places of each pair
+ * of places. The places are numbered in the order they are first seen, and
+ * each row keeps the numbers of the places co-visited with a place sorted in
+ * a primitive array, next to their counts, so scoring a place only scans
+ * its row. The methods are synchronized: updates and scoring both take a
+ * few microseconds.
+ */
+final class PlaceCoOccurrenceMatrix {
+
+    /**
+     * The initial capacity of the rows and of the place table.
+     */
+    private static final int INITIAL_CAPACITY = 4;
+
+    /**
+     * The numbers of the places, by place identifier.
+     */
+    private final Map<String, Integer> placeNumbers = new HashMap<>();
+
+    /**
+     * The place identifiers, by place number.
+     */
+    private final List<String> placeIds = new ArrayList<>();
+
+    /**
+     * The numbers of the places visited by each user, sorted.
+     */
+    private final Map<String, int[]> userPlaces = new HashMap<>();
+
+    /**
+     * The sorted numbers of the places co-visited with each place.
+     */
+    private int[][] neighbours = new int[INITIAL_CAPACITY][];
+
+    /**
+     * The number of users who visited each pair, parallel to neighbours.
+     */
+    private int[][] counts = new int[INITIAL_CAPACITY][];
+
+    /**
+     * The number of places in use in each row.
+     */
+    private int[] rowSizes = new int[INITIAL_CAPACITY];
+
+    /**
+     * Records a visit of a user to a place. The first visit of the user to
+     * the place counts a co-visit with each place the user visited before;
+     * visiting the place again changes nothing, so recording a visit twice
+     * is harmless.
+     * @param userEmail the email of the user.
+     * @param placeId the identifier of the place.
+     */
+    synchronized void addVisit(final String userEmail, final String placeId) {
+        if (userEmail == null || placeId == null) {
+            return;
+        }
+        int place = getOrAddPlace(placeId);
+        int[] visited = userPlaces.get(userEmail);
+        if (visited == null) {
+            userPlaces.put(userEmail, new int[] {place});
+            return;
+        }
+        int position = Arrays.binarySearch(visited, place);
+        if (position >= 0) {
+            return;
+        }
+        for (int other : visited) {
+            increment(place, other);
+            increment(other, place);
+        }
+
+        int insertion = -position - 1;
+        int[] updated = new int[visited.length + 1];
+        System.arraycopy(visited, 0, updated, 0, insertion);
+        updated[insertion] = place;
+        System.arraycopy(visited, insertion, updated, insertion + 1,
+                visited.length - insertion);
+        userPlaces.put(userEmail, updated);
+    }
+
+    /**
+     * Returns the places most often co-visited with a place, leaving out the
+     * places the user already visited.
+     * @param userEmail the email of the user.
+     * @param placeId the identifier of the place.
+     * @param count the maximum number of places to return.
+     * @return the identifiers of the places, most co-visited first.
+     */
+    synchronized List<String> getTopPlaces(final String userEmail,
+            final String placeId, final int count) {
+        Integer place = placeNumbers.get(placeId);
+        if (place == null || count <= 0) {
+            return Collections.emptyList();
+        }
+        int[] visited = userPlaces.get(userEmail);
+        int[] row = neighbours[place];
+        int[] rowCounts = counts[place];
+
+        // Keep the best places found so far sorted by decreasing count.
+        int[] best = new int[count];
+        int[] bestCounts = new int[count];
+        int found = 0;
+        for (int i = 0; i < rowSizes[place]; i++) {
+            int c = rowCounts[i];
+            if (found == count && c <= bestCounts[count - 1]) {
+                continue;
+            }
+            if (visited != null && Arrays.binarySearch(visited, row[i]) >= 0) {
+                continue;
+            }
+            int position;
+            if (found < count) {
+                position = found++;
+            } else {
+                position = count - 1;
+            }
+            while (position > 0 && bestCounts[position - 1] < c) {
+                best[position] = best[position - 1];
+                bestCounts[position] = bestCounts[position - 1];
+                position--;
+            }
+            best[position] = row[i];
+            bestCounts[position] = c;
+        }
+
+        List<String> result = new ArrayList<>(found);
+        for (int i = 0; i < found; i++) {
+            result.add(placeIds.get(best[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Tells whether a user visited a place.
+     * @param userEmail the email of the user.
+     * @param placeId the identifier of the place.
+     * @return true if the user visited the place.
+     */
+    synchronized boolean hasVisited(final String userEmail,
+            final String placeId) {
+        Integer place = placeNumbers.get(placeId);
+        int[] visited = userPlaces.get(userEmail);
+        return place != null && visited != null
+                && Arrays.binarySearch(visited, place) >= 0;
+    }
+
+    /**
+     * Returns the number of places in the matrix.
+     * @return the number of places.
+     */
+    synchronized int getPlaceCount() {
+        return placeIds.size();
+    }
+
+    /**
+     * Returns the number of users in the matrix.
+     * @return the number of users.
+     */
+    synchronized int getUserCount() {
+        return userPlaces.size();
+    }
+
+    /**
+     * Returns the number of a place, numbering it if it is new.
+     * @param placeId the identifier of the place.
+     * @return the number of the place.
+     */
+    private int getOrAddPlace(final String placeId) {
+        Integer place = placeNumbers.get(placeId);
+        if (place != null) {
+            return place;
+        }
+        int added = placeIds.size();
+        if (added == neighbours.length) {
+            int capacity = neighbours.length * 2;
+            neighbours = Arrays.copyOf(neighbours, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            rowSizes = Arrays.copyOf(rowSizes, capacity);
+        }
+        neighbours[added] = new int[INITIAL_CAPACITY];
+        counts[added] = new int[INITIAL_CAPACITY];
+        placeIds.add(placeId);
+        placeNumbers.put(placeId, added);
+        return added;
+    }
+
+    /**
+     * Adds a co-visit of a place with another one to the row of the place.
+     * @param place the number of the place.
+     * @param other the number of the other place.
+     */
+    private void increment(final int place, final int other) {
+        int[] row = neighbours[place];
+        int size = rowSizes[place];
+        int position = Arrays.binarySearch(row, 0, size, other);
+        if (position >= 0) {
+            counts[place][position]++;
+            return;
+        }
+        int insertion = -position - 1;
+        int[] rowCounts = counts[place];
+        if (size == row.length) {
+            row = Arrays.copyOf(row, size * 2);
+            rowCounts = Arrays.copyOf(rowCounts, size * 2);
+            neighbours[place] = row;
+            counts[place] = rowCounts;
+        }
+        System.arraycopy(row, insertion, row, insertion + 1,
+                size - insertion);
+        System.arraycopy(rowCounts, insertion, rowCounts, insertion + 1,
+                size - insertion);
+        row[insertion] = other;
+        rowCounts[insertion] = 1;
+        rowSizes[place] = size + 1;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.sample.mobileassistantbackend.models.CheckIn;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import static com.google.sample.mobileassistantbackend.OfyService.ofy;
+
+/**
+ * Recommends places from the places co-visited by the users, counted from
+ * the recent check-ins.
+ *
+ * Each instance loads the check-ins of the last HISTORY_IN_MILLISECONDS into
+ * a PlaceCoOccurrenceMatrix kept in memory, adds the check-ins it processes
+ * as they arrive, and loads the check-ins again every
+ * RELOAD_INTERVAL_IN_MILLISECONDS, so the check-ins processed by the other
+ * instances become visible.
+ */
+public final class PlaceCoOccurrences {
+
+    /**
+     * Log output.
+     */
+    private static final Logger LOG = Logger
+            .getLogger(PlaceCoOccurrences.class.getName());
+
+    /**
+     * How old the check-ins loaded into the matrix can be.
+     */
+    private static final long HISTORY_IN_MILLISECONDS =
+            TimeUnit.DAYS.toMillis(30);
+
+    /**
+     * The maximum number of check-ins loaded into the matrix, the most
+     * recent ones.
+     */
+    private static final int MAXIMUM_LOADED_CHECKINS = 50000;
+
+    /**
+     * The number of CheckIn entities fetched per datastore batch when
+     * loading.
+     */
+    private static final int LOAD_BATCH_SIZE = 1000;
+
+    /**
+     * How long a loaded matrix is used before being loaded again.
+     */
+    private static final long RELOAD_INTERVAL_IN_MILLISECONDS =
+            TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * The current matrix.
+     */
+    private static volatile PlaceCoOccurrenceMatrix matrix;
+
+    /**
+     * The time the current matrix expires at.
+     */
+    private static volatile long expiresAt;
+
+    /**
+     * Whether a thread is loading the matrix again.
+     */
+    private static final AtomicBoolean RELOADING = new AtomicBoolean();
+
+    /**
+     * Default constructor, never called.
+     */
+    private PlaceCoOccurrences() {
+    }
+
+    /**
+     * Adds a check-in to the matrix of this instance.
+     * @param userEmail the email of the user who checked in.
+     * @param placeId the identifier of the place.
+     */
+    public static void recordCheckIn(final String userEmail,
+            final String placeId) {
+        getMatrix().addVisit(userEmail, placeId);
+    }
+
+    /**
+     * Returns the places most often visited by the users who also visited a
+     * place, and which the user has not visited yet.
+     * @param userEmail the email of the user, or null to leave no place
+     *      out.
+     * @param placeId the identifier of the place.
+     * @param count the maximum number of places to return.
+     * @return the identifiers of the places, best first.
+     */
+    public static List<String> getRecommendedPlaces(final String userEmail,
+            final String placeId, final int count) {
+        return getMatrix().getTopPlaces(userEmail, placeId, count);
+    }
+
+    /**
+     * Tells whether a user visited a place, as far as this instance knows.
+     * @param userEmail the email of the user.
+     * @param placeId the identifier of the place.
+     * @return true if the user visited the place.
+     */
+    public static boolean hasVisited(final String userEmail,
+            final String placeId) {
+        return getMatrix().hasVisited(userEmail, placeId);
+    }
+
+    /**
+     * Returns the current matrix. Only the first calls wait for a matrix to
+     * be loaded: once expired, the matrix is loaded again by the one thread
+     * that claims the reload, and the others keep using the previous matrix
+     * meanwhile.
+     * @return the current matrix.
+     */
+    private static PlaceCoOccurrenceMatrix getMatrix() {
+        PlaceCoOccurrenceMatrix current = matrix;
+        if (current == null) {
+            synchronized (PlaceCoOccurrences.class) {
+                if (matrix == null) {
+                    expiresAt = System.currentTimeMillis()
+                            + RELOAD_INTERVAL_IN_MILLISECONDS;
+                    matrix = load();
+                }
+                return matrix;
+            }
+        }
+        if (System.currentTimeMillis() >= expiresAt
+                && RELOADING.compareAndSet(false, true)) {
+            try {
+                expiresAt = System.currentTimeMillis()
+                        + RELOAD_INTERVAL_IN_MILLISECONDS;
+                current = load();
+                matrix = current;
+            } catch (RuntimeException e) {
+                expiresAt = 0;
+                LOG.warning("Failed to load the check-ins again, keeping the "
+                        + "previous matrix: " + e);
+            } finally {
+                RELOADING.set(false);
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Loads the recent check-ins into a new matrix.
+     * @return the new matrix.
+     */
+    private static PlaceCoOccurrenceMatrix load() {
+        long start = System.currentTimeMillis();
+        PlaceCoOccurrenceMatrix loaded = new PlaceCoOccurrenceMatrix();
+        Date historyStart = new Date(start - HISTORY_IN_MILLISECONDS);
+        int checkIns = 0;
+        for (CheckIn checkIn : ofy().load().type(CheckIn.class)
+                .filter("checkinDate >=", historyStart)
+                .order("-checkinDate")
+                .limit(MAXIMUM_LOADED_CHECKINS)
+                .chunk(LOAD_BATCH_SIZE)) {
+            loaded.addVisit(checkIn.getUserEmail(), checkIn.getPlaceId());
+            checkIns++;
+        }
+        LOG.info("Loaded " + checkIns + " check-ins of "
+                + loaded.getUserCount() + " users at "
+                + loaded.getPlaceCount() + " places in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return loaded;
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.sample.mobileassistantbackend.models.PlaceCounterShard;
+import com.google.sample.mobileassistantbackend.models.PlaceInfo;
+import com.googlecode.objectify.VoidWork;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
+import static com.google.sample.mobileassistantbackend.OfyService.ofy;
+
+/**
+ * Check-in counts and trending scores of the places.
+ *
+ * The check-ins are accumulated in the memory of each instance and flushed
+ * every few seconds with a task adding them to PlaceCounterShard entities;
+ * the check-ins accumulated by an instance that shuts down are lost. The
+ * task then writes the totals of the places to memcache, from where the
+ * listed places read them through a cache local to the instance, so the
+ * nearby places queries never read the shards. Task retries may count a
+ * flush twice: the counts are meant for ranking, not accounting.
+ *
+ * The trending score of a place is its number of check-ins weighted by
+ * their age, halving every TRENDING_HALF_LIFE_IN_MILLISECONDS.
+ */
+public final class PlaceCounters {
+
+    /**
+     * Log output.
+     */
+    private static final Logger LOG = Logger
+            .getLogger(PlaceCounters.class.getName());
+
+    /**
+     * The queue of the tasks updating the counters.
+     */
+    public static final String QUEUE = "placecounter-queue";
+
+    /**
+     * The URL of the tasks updating the counters.
+     */
+    public static final String URL = "/tasks/placecounters";
+
+    /**
+     * The task parameter of the check-ins to add, as placeId:count.
+     */
+    public static final String COUNTS_PARAMETER = "counts";
+
+    /**
+     * The task parameter of the places whose totals must be written to
+     * memcache again.
+     */
+    public static final String REFRESH_PARAMETER = "refresh";
+
+    /**
+     * The number of shards of the counter of a place.
+     */
+    private static final int SHARDS = 16;
+
+    /**
+     * How often the check-ins accumulated by an instance are flushed.
+     */
+    private static final long FLUSH_INTERVAL_IN_MILLISECONDS =
+            TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * How long the totals are cached in the instance.
+     */
+    private static final long LOCAL_TIME_TO_LIVE_IN_MILLISECONDS =
+            TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * The maximum number of places whose totals are cached in the instance.
+     */
+    private static final int LOCAL_CAPACITY = 10000;
+
+    /**
+     * The time it takes for the weight of a check-in in the trending score
+     * to halve.
+     */
+    private static final long TRENDING_HALF_LIFE_IN_MILLISECONDS =
+            TimeUnit.HOURS.toMillis(6);
+
+    /**
+     * The memcache namespace of the totals.
+     */
+    private static final String NAMESPACE = "placecounters";
+
+    /**
+     * The distance that halves the trending score of a place when ranking
+     * by trending score, in kilometers.
+     */
+    private static final double TRENDING_DISTANCE_IN_KM = 1.0;
+
+    /**
+     * The totals of a place that was never checked into.
+     */
+    private static final Totals EMPTY = new Totals(0, 0, 0);
+
+    /**
+     * The check-ins accumulated by the instance since the last flush, by
+     * place.
+     */
+    private static final ConcurrentHashMap<Long, AtomicInteger> PENDING =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The time the accumulated check-ins are flushed at.
+     */
+    private static final AtomicLong NEXT_FLUSH = new AtomicLong();
+
+    /**
+     * The totals cached in the instance.
+     */
+    private static final LocalCache<Long, Totals> LOCAL_CACHE =
+            new LocalCache<>(LOCAL_CAPACITY,
+                    LOCAL_TIME_TO_LIVE_IN_MILLISECONDS);
+
+    /**
+     * The memcache service.
+     */
+    private static final MemcacheService MEMCACHE =
+            MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+
+    /**
+     * Random generator choosing the shards.
+     */
+    private static final Random RANDOM = new Random();
+
+    /**
+     * Default constructor, never called.
+     */
+    private PlaceCounters() {
+    }
+
+    /**
+     * Counts a check-in at a place.
+     * @param placeId the identifier of the place, as stored in the check-in.
+     */
+    public static void recordCheckIn(final String placeId) {
+        Long id;
+        try {
+            id = Long.valueOf(placeId);
+        } catch (NumberFormatException e) {
+            LOG.warning("Not counting the check-in at invalid place "
+                    + placeId);
+            return;
+        }
+        AtomicInteger count = PENDING.get(id);
+        if (count == null) {
+            AtomicInteger created = new AtomicInteger();
+            count = PENDING.putIfAbsent(id, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+        flushIfDue();
+    }
+
+    /**
+     * Sets the check-in counts and trending scores of places.
+     * @param places the places.
+     */
+    public static void annotate(final List<PlaceInfo> places) {
+        flushIfDue();
+
+        Map<Long, Totals> totals = new HashMap<>();
+        List<Long> missing = new ArrayList<>();
+        for (PlaceInfo place : places) {
+            Totals cached = LOCAL_CACHE.get(place.getPlaceId());
+            if (cached == null) {
+                missing.add(place.getPlaceId());
+            } else {
+                totals.put(place.getPlaceId(), cached);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            Map<Long, Object> loaded;
+            try {
+                loaded = MEMCACHE.getAll(missing);
+            } catch (RuntimeException e) {
+                LOG.warning("Could not read the place counters: " + e);
+                loaded = Collections.emptyMap();
+            }
+            TaskOptions refresh = null;
+            for (Long id : missing) {
+                Totals placeTotals = (Totals) loaded.get(id);
+                if (placeTotals == null) {
+                    // Unknown or evicted: show no check-ins until a task
+                    // writes the totals again.
+                    placeTotals = EMPTY;
+                    if (refresh == null) {
+                        refresh = withUrl(URL);
+                    }
+                    refresh.param(REFRESH_PARAMETER, id.toString());
+                }
+                LOCAL_CACHE.put(id, placeTotals);
+                totals.put(id, placeTotals);
+            }
+            if (refresh != null) {
+                QueueFactory.getQueue(QUEUE).addAsync(refresh);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        for (PlaceInfo place : places) {
+            Totals placeTotals = totals.get(place.getPlaceId());
+            place.setCheckInCount(placeTotals.checkInCount);
+            place.setTrendingScore(placeTotals.getTrendingScore(now));
+        }
+    }
+
+    /**
+     * Sorts places by decreasing check-in count, then by increasing
+     * distance.
+     * @param places the places, annotated.
+     */
+    public static void sortByPopularity(final List<PlaceInfo> places) {
+        Collections.sort(places, new Comparator<PlaceInfo>() {
+            @Override
+            public int compare(final PlaceInfo p1, final PlaceInfo p2) {
+                int result = Long.compare(p2.getCheckInCount(),
+                        p1.getCheckInCount());
+                if (result != 0) {
+                    return result;
+                }
+                return Double.compare(p1.getDistanceInKilometers(),
+                        p2.getDistanceInKilometers());
+            }
+        });
+    }
+
+    /**
+     * Sorts places by decreasing blend of trending score and distance: the
+     * trending score is divided by 1 + distance / TRENDING_DISTANCE_IN_KM.
+     * Places with the same blended score are sorted by increasing distance.
+     * @param places the places, annotated.
+     */
+    public static void sortByTrending(final List<PlaceInfo> places) {
+        Collections.sort(places, new Comparator<PlaceInfo>() {
+            @Override
+            public int compare(final PlaceInfo p1, final PlaceInfo p2) {
+                int result = Double.compare(blend(p2), blend(p1));
+                if (result != 0) {
+                    return result;
+                }
+                return Double.compare(p1.getDistanceInKilometers(),
+                        p2.getDistanceInKilometers());
+            }
+        });
+    }
+
+    /**
+     * Adds flushed check-ins to the counters of places, then writes their
+     * totals to memcache.
+     * @param counts the numbers of check-ins by place.
+     */
+    public static void add(final Map<Long, Integer> counts) {
+        final Date now = new Date();
+        for (final Map.Entry<Long, Integer> entry : counts.entrySet()) {
+            final int shardNumber = RANDOM.nextInt(SHARDS);
+            ofy().transact(new VoidWork() {
+                @Override
+                public void vrun() {
+                    PlaceCounterShard shard = ofy().load()
+                            .type(PlaceCounterShard.class)
+                            .id(PlaceCounterShard.getId(entry.getKey(),
+                                    shardNumber)).now();
+                    if (shard == null) {
+                        shard = new PlaceCounterShard(entry.getKey(),
+                                shardNumber);
+                    }
+                    shard.setCheckInCount(shard.getCheckInCount()
+                            + entry.getValue());
+                    shard.setTrendingScore(decay(shard.getTrendingScore(),
+                            shard.getScoreDate(), now.getTime())
+                            + entry.getValue());
+                    shard.setScoreDate(now);
+                    ofy().save().entity(shard);
+                }
+            });
+        }
+        refresh(counts.keySet());
+    }
+
+    /**
+     * Sums the shards of places and writes their totals to memcache.
+     * @param placeIds the identifiers of the places.
+     */
+    public static void refresh(final Collection<Long> placeIds) {
+        List<String> ids = new ArrayList<>(placeIds.size() * SHARDS);
+        for (Long placeId : placeIds) {
+            for (int shard = 0; shard < SHARDS; shard++) {
+                ids.add(PlaceCounterShard.getId(placeId, shard));
+            }
+        }
+        Map<String, PlaceCounterShard> shards = ofy().load()
+                .type(PlaceCounterShard.class).ids(ids);
+
+        long now = System.currentTimeMillis();
+        Map<Long, Totals> totals = new HashMap<>();
+        for (Long placeId : placeIds) {
+            long count = 0;
+            double score = 0;
+            for (int shard = 0; shard < SHARDS; shard++) {
+                PlaceCounterShard counter = shards.get(
+                        PlaceCounterShard.getId(placeId, shard));
+                if (counter != null) {
+                    count += counter.getCheckInCount();
+                    score += decay(counter.getTrendingScore(),
+                            counter.getScoreDate(), now);
+                }
+            }
+            totals.put(placeId, new Totals(count, score, now));
+        }
+        MEMCACHE.putAll(totals);
+    }
+
+    /**
+     * Flushes the check-ins accumulated by the instance if the flush
+     * interval elapsed.
+     */
+    private static void flushIfDue() {
+        long now = System.currentTimeMillis();
+        long next = NEXT_FLUSH.get();
+        if (now < next || !NEXT_FLUSH.compareAndSet(next,
+                now + FLUSH_INTERVAL_IN_MILLISECONDS)) {
+            return;
+        }
+
+        TaskOptions task = withUrl(URL);
+        int places = 0;
+        for (Long id : PENDING.keySet()) {
+            AtomicInteger count = PENDING.remove(id);
+            if (count != null) {
+                // A check-in racing with the removal may still increment the
+                // removed counter; it is lost.
+                task.param(COUNTS_PARAMETER, id + ":" + count.get());
+                places++;
+            }
+        }
+        if (places == 0) {
+            return;
+        }
+        try {
+            QueueFactory.getQueue(QUEUE).add(task);
+        } catch (RuntimeException e) {
+            LOG.warning("Could not flush the check-ins of " + places
+                    + " places: " + e);
+        }
+    }
+
+    /**
+     * Decays a trending score.
+     * @param score the score.
+     * @param scoreDate the date of the score, or null if it is 0.
+     * @param now the time to decay the score to.
+     * @return the score at time now.
+     */
+    private static double decay(final double score, final Date scoreDate,
+            final long now) {
+        if (scoreDate == null) {
+            return score;
+        }
+        return decay(score, scoreDate.getTime(), now);
+    }
+
+    /**
+     * Decays a trending score.
+     * @param score the score.
+     * @param scoreTime the time of the score.
+     * @param now the time to decay the score to.
+     * @return the score at time now.
+     */
+    private static double decay(final double score, final long scoreTime,
+            final long now) {
+        long age = Math.max(0, now - scoreTime);
+        return score * Math.pow(2,
+                -(double) age / TRENDING_HALF_LIFE_IN_MILLISECONDS);
+    }
+
+    /**
+     * Returns the blend of the trending score and the distance of a place.
+     * @param place the place, annotated.
+     * @return the blended score.
+     */
+    private static double blend(final PlaceInfo place) {
+        return place.getTrendingScore() / (1
+                + place.getDistanceInKilometers() / TRENDING_DISTANCE_IN_KM);
+    }
+
+    /**
+     * The totals of the counters of a place, cached in memcache and in the
+     * instance.
+     */
+    static final class Totals implements Serializable {
+
+        /**
+         * Serialization version.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The number of check-ins.
+         */
+        private final long checkInCount;
+
+        /**
+         * The trending score, as of scoreTime.
+         */
+        private final double trendingScore;
+
+        /**
+         * The time of the trending score.
+         */
+        private final long scoreTime;
+
+        /**
+         * Creates totals.
+         * @param pCheckInCount the number of check-ins.
+         * @param pTrendingScore the trending score, as of pScoreTime.
+         * @param pScoreTime the time of the trending score.
+         */
+        Totals(final long pCheckInCount, final double pTrendingScore,
+                final long pScoreTime) {
+            this.checkInCount = pCheckInCount;
+            this.trendingScore = pTrendingScore;
+            this.scoreTime = pScoreTime;
+        }
+
+        /**
+         * Returns the trending score at a given time.
+         * @param now the time.
+         * @return the decayed trending score.
+         */
+        double getTrendingScore(final long now) {
+            return decay(trendingScore, scoreTime, now);
+        }
+    }
+}
@@ -0,0 +1,521 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.GetRequest;
+import com.google.appengine.api.search.Index;
+import com.google.appengine.api.search.PutException;
+import com.google.appengine.api.search.PutResponse;
+import com.google.appengine.api.search.StatusCode;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.sample.mobileassistantbackend.models.Place;
+import com.google.sample.mobileassistantbackend.models.PlaceIndexBuild;
+import com.google.sample.mobileassistantbackend.models.PlaceIndexBuild.Status;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
+import static com.google.sample.mobileassistantbackend.OfyService.ofy;
+
+/**
+ * Rebuilds the Places search index into a new version with a chain of push
+ * queue tasks, so it scales to any number of places.
+ *
+ * Each task indexes one slice of SLICE_SIZE places, read from the datastore
+ * cursor recorded in the PlaceIndexBuild entity, then records the cursor
+ * after the slice and enqueues the task of the next slice. A failed task is
+ * retried by the queue from the last recorded cursor. Task names include
+ * the version, the start time of the rebuild and the slice number, so a
+ * task run twice doesn't fork the chain, and a rebuild never collides with
+ * the task names of an earlier one, which stay reserved for days. The last
+ * task verifies the new version and activates it.
+ */
+public final class PlaceIndexBuilder {
+
+    /**
+     * Log output.
+     */
+    private static final Logger LOG = Logger
+            .getLogger(PlaceIndexBuilder.class.getName());
+
+    /**
+     * The queue of the rebuild tasks.
+     */
+    private static final String QUEUE = "placeindexbuild-queue";
+
+    /**
+     * The URL of the rebuild task handler.
+     */
+    private static final String URL = "/tasks/placeindexbuild";
+
+    /**
+     * The number of places indexed per task.
+     */
+    private static final int SLICE_SIZE = 2000;
+
+    /**
+     * The maximum number of documents per index put or delete call.
+     */
+    private static final int DOCUMENTS_PER_WRITE = 200;
+
+    /**
+     * The number of documents read per index getRange call.
+     */
+    private static final int DOCUMENTS_PER_READ = 1000;
+
+    /**
+     * The maximum number of asynchronous index puts waited for at once.
+     */
+    private static final int PUTS_IN_FLIGHT = 8;
+
+    /**
+     * The maximum number of asynchronous index deletes waited for at once.
+     */
+    private static final int DELETES_IN_FLIGHT = 8;
+
+    /**
+     * The number of times a batch of documents is put before giving up on
+     * transient errors.
+     */
+    private static final int PUT_ATTEMPTS = 3;
+
+    /**
+     * The number of times a task is run before the rebuild is given up.
+     */
+    private static final int TASK_ATTEMPTS = 10;
+
+    /**
+     * The tolerated difference between the number of documents of a rebuilt
+     * index and the number of documents put, as a fraction of the latter.
+     */
+    private static final double VERIFICATION_TOLERANCE = 0.01;
+
+    /**
+     * Default constructor, never called.
+     */
+    private PlaceIndexBuilder() {
+    }
+
+    /**
+     * Starts the rebuild of the index into a new version, superseding the
+     * rebuild running, if any.
+     * @return the new version.
+     */
+    public static long start() {
+        long version = PlaceIndexVersions.startBuild();
+        PlaceIndexBuild build = new PlaceIndexBuild();
+        build.setVersion(version);
+        build.setStatus(Status.RUNNING);
+        build.setStartTime(new Date());
+        build.setUpdateTime(build.getStartTime());
+        ofy().save().entity(build).now();
+        if (!enqueue(build, 0)) {
+            // Without its first task the rebuild would never run.
+            IllegalStateException e = new IllegalStateException("The first "
+                    + "task of version " + version + " already exists");
+            fail(version, e);
+            throw e;
+        }
+        LOG.info("Started building version " + version
+                + " of the places index");
+        return version;
+    }
+
+    /**
+     * Runs the task of a slice of a rebuild.
+     * @param version the version being built.
+     * @param slice the number of the slice; the slice after the last one
+     *      verifies and activates the version.
+     * @param attempt the number of previous runs of the task.
+     */
+    public static void runTask(final long version, final int slice,
+            final int attempt) {
+        PlaceIndexBuild build = loadBuild(version);
+        if (build == null || build.getStatus() == Status.DONE
+                || build.getStatus() == Status.FAILED) {
+            return;
+        }
+        if (!PlaceIndexVersions.isBuilding(build.getVersion().intValue())) {
+            // A newer rebuild took over, or this one was aborted; the
+            // version no longer receives the document updates.
+            fail(version, new IllegalStateException("Superseded by another "
+                    + "build"));
+            return;
+        }
+        if (build.getNextSlice() > slice) {
+            // Run twice; make sure the chain goes on.
+            enqueue(build, build.getNextSlice());
+            return;
+        }
+
+        try {
+            if (build.getStatus() == Status.RUNNING) {
+                indexSlice(build);
+            } else {
+                activate(build);
+            }
+        } catch (RuntimeException e) {
+            if (attempt + 1 < TASK_ATTEMPTS) {
+                throw e;
+            }
+            fail(version, e);
+        }
+    }
+
+    /**
+     * Returns the rebuilds, most recent first.
+     * @param limit the maximum number of rebuilds returned.
+     * @return the rebuilds.
+     */
+    public static List<PlaceIndexBuild> getBuilds(final int limit) {
+        return ofy().load().type(PlaceIndexBuild.class).orderKey(true)
+                .limit(limit).list();
+    }
+
+    /**
+     * Indexes the next slice of places of a rebuild and records the
+     * progress.
+     * @param build the rebuild.
+     */
+    private static void indexSlice(final PlaceIndexBuild build) {
+        Query<Place> query = ofy().load().type(Place.class).limit(SLICE_SIZE)
+                .chunk(SLICE_SIZE);
+        if (build.getCursor() != null) {
+            query = query.startAt(Cursor.fromWebSafeString(build.getCursor()));
+        }
+
+        List<Document> documents = new ArrayList<>(SLICE_SIZE);
+        int places = 0;
+        QueryResultIterator<Place> iterator = query.iterator();
+        while (iterator.hasNext()) {
+            Place place = iterator.next();
+            places++;
+            if (place.getLocation() != null) {
+                documents.add(PlacesHelper.buildDocument(place.getPlaceId(),
+                        place.getName(), place.getAddress(),
+                        place.getLocation()));
+            }
+        }
+        putAll(PlaceIndexVersions.getIndex(build.getVersion().intValue()),
+                documents);
+
+        boolean last = places < SLICE_SIZE;
+        String cursor = iterator.getCursor().toWebSafeString();
+        int nextSlice = record(build.getVersion(), build.getNextSlice(),
+                cursor, documents.size(), last);
+        enqueue(build, nextSlice);
+    }
+
+    /**
+     * Records the progress of a rebuild after a slice, unless another run of
+     * the same task already did.
+     * @param version the version being built.
+     * @param slice the number of the slice indexed.
+     * @param cursor the datastore cursor after the slice.
+     * @param documents the number of documents put for the slice.
+     * @param last whether the slice was the last one.
+     * @return the number of the next slice.
+     */
+    private static int record(final long version, final int slice,
+            final String cursor, final int documents, final boolean last) {
+        return ofy().transact(new Work<Integer>() {
+            @Override
+            public Integer run() {
+                PlaceIndexBuild build = loadBuild(version);
+                if (build.getNextSlice() == slice) {
+                    build.setCursor(cursor);
+                    build.setNextSlice(slice + 1);
+                    build.setDocumentsPut(build.getDocumentsPut()
+                            + documents);
+                    build.setUpdateTime(new Date());
+                    if (last) {
+                        build.setStatus(Status.VERIFYING);
+                    }
+                    ofy().save().entity(build).now();
+                }
+                return build.getNextSlice();
+            }
+        });
+    }
+
+    /**
+     * Verifies the index built and activates it, then deletes the obsolete
+     * versions.
+     * @param build the rebuild.
+     */
+    private static void activate(final PlaceIndexBuild build) {
+        int version = build.getVersion().intValue();
+        long indexed = countDocuments(PlaceIndexVersions.getIndex(version));
+        // Places inserted or removed meanwhile are written to the new
+        // version too, by the index update tasks.
+        if (Math.abs(indexed - build.getDocumentsPut())
+                > build.getDocumentsPut() * VERIFICATION_TOLERANCE) {
+            fail(version, new IllegalStateException("The index has "
+                    + indexed + " documents, expected "
+                    + build.getDocumentsPut()));
+            return;
+        }
+
+        if (!PlaceIndexVersions.activate(version)) {
+            fail(version, new IllegalStateException("Superseded by another "
+                    + "build before activation"));
+            return;
+        }
+        PlacesHelper.invalidate();
+        update(version, Status.DONE, null);
+        LOG.info("Activated version " + version + " of the places index");
+
+        for (Index obsolete : PlaceIndexVersions.getObsoleteIndexes()) {
+            removeAllDocumentsFromIndex(obsolete);
+            LOG.info("Deleted the documents of " + obsolete.getName());
+        }
+    }
+
+    /**
+     * Gives up a rebuild.
+     * @param version the version being built.
+     * @param e the cause.
+     */
+    private static void fail(final long version, final Exception e) {
+        LOG.warning("Build of version " + version + " of the places index "
+                + "failed: " + e.getMessage());
+        PlaceIndexVersions.abortBuild((int) version);
+        update(version, Status.FAILED, String.valueOf(e.getMessage()));
+    }
+
+    /**
+     * Records the new stage of a rebuild.
+     * @param version the version being built.
+     * @param status the new status.
+     * @param error the reason of the failure, or null.
+     */
+    private static void update(final long version, final Status status,
+            final String error) {
+        ofy().transact(new Work<Void>() {
+            @Override
+            public Void run() {
+                PlaceIndexBuild build = loadBuild(version);
+                build.setStatus(status);
+                build.setError(error);
+                build.setUpdateTime(new Date());
+                ofy().save().entity(build).now();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Enqueues the task of a slice of a rebuild, once.
+     * @param build the rebuild.
+     * @param slice the number of the slice.
+     * @return true if the task was enqueued, false if it already existed.
+     */
+    private static boolean enqueue(final PlaceIndexBuild build,
+            final int slice) {
+        long version = build.getVersion();
+        Queue queue = QueueFactory.getQueue(QUEUE);
+        try {
+            queue.add(withUrl(URL)
+                    .taskName("build-" + version + "-"
+                            + build.getStartTime().getTime() + "-" + slice)
+                    .param("version", Long.toString(version))
+                    .param("slice", Integer.toString(slice)));
+            return true;
+        } catch (TaskAlreadyExistsException e) {
+            LOG.info("Slice " + slice + " of version " + version
+                    + " already enqueued");
+            return false;
+        }
+    }
+
+    /**
+     * Loads the progress of a rebuild.
+     * @param version the version being built.
+     * @return the rebuild, or null if unknown.
+     */
+    private static PlaceIndexBuild loadBuild(final long version) {
+        return ofy().load().type(PlaceIndexBuild.class).id(version).now();
+    }
+
+    /**
+     * Puts documents into an index, with up to PUTS_IN_FLIGHT batches of
+     * DOCUMENTS_PER_WRITE documents written concurrently.
+     * @param index the index.
+     * @param documents the documents.
+     */
+    public static void putAll(final Index index,
+            final List<Document> documents) {
+        Deque<Future<PutResponse>> puts = new ArrayDeque<>();
+        Deque<List<Document>> batches = new ArrayDeque<>();
+        for (int i = 0; i < documents.size(); i += DOCUMENTS_PER_WRITE) {
+            if (puts.size() == PUTS_IN_FLIGHT) {
+                waitForPut(index, puts.poll(), batches.poll());
+            }
+            List<Document> batch = documents.subList(i,
+                    Math.min(i + DOCUMENTS_PER_WRITE, documents.size()));
+            puts.add(index.putAsync(batch));
+            batches.add(batch);
+        }
+        while (!puts.isEmpty()) {
+            waitForPut(index, puts.poll(), batches.poll());
+        }
+    }
+
+    /**
+     * Waits for an asynchronous put, and puts the batch again if it failed
+     * with a transient error.
+     * @param index the index.
+     * @param put the pending put.
+     * @param batch the documents of the put.
+     */
+    private static void waitForPut(final Index index,
+            final Future<PutResponse> put, final List<Document> batch) {
+        try {
+            put.get();
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (!(e.getCause() instanceof PutException)
+                    || !StatusCode.TRANSIENT_ERROR.equals(((PutException)
+                            e.getCause()).getOperationResult().getCode())) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        for (int attempt = 2;; attempt++) {
+            try {
+                index.put(batch);
+                return;
+            } catch (PutException e) {
+                if (attempt == PUT_ATTEMPTS || !StatusCode.TRANSIENT_ERROR
+                        .equals(e.getOperationResult().getCode())) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the documents of an index.
+     * @param index the index.
+     * @return the number of documents.
+     */
+    private static long countDocuments(final Index index) {
+        long count = 0;
+        String startId = null;
+        while (true) {
+            GetRequest.Builder request = GetRequest.newBuilder()
+                    .setReturningIdsOnly(true)
+                    .setLimit(DOCUMENTS_PER_READ);
+            if (startId != null) {
+                request.setStartId(startId).setIncludeStart(false);
+            }
+            List<Document> documents = index.getRange(request).getResults();
+            if (documents.isEmpty()) {
+                return count;
+            }
+            count += documents.size();
+            startId = documents.get(documents.size() - 1).getId();
+        }
+    }
+
+    /**
+     * Cleans an index of places from all entries. Document ids are read in
+     * pages of DOCUMENTS_PER_READ, each page starting after the last id of
+     * the previous one, and deleted in batches of DOCUMENTS_PER_WRITE with
+     * up to DELETES_IN_FLIGHT batches deleted concurrently.
+     * @param index the index to clean.
+     * @return the number of documents deleted.
+     */
+    public static long removeAllDocumentsFromIndex(final Index index) {
+        long start = System.currentTimeMillis();
+        Deque<Future<Void>> deletes = new ArrayDeque<>();
+        long count = 0;
+        String startId = null;
+        while (true) {
+            GetRequest.Builder request = GetRequest.newBuilder()
+                    .setReturningIdsOnly(true)
+                    .setLimit(DOCUMENTS_PER_READ);
+            if (startId != null) {
+                request.setStartId(startId).setIncludeStart(false);
+            }
+            List<Document> documents = index.getRange(request).getResults();
+            if (documents.isEmpty()) {
+                break;
+            }
+            startId = documents.get(documents.size() - 1).getId();
+
+            for (int i = 0; i < documents.size(); i += DOCUMENTS_PER_WRITE) {
+                List<Document> batch = documents.subList(i,
+                        Math.min(i + DOCUMENTS_PER_WRITE, documents.size()));
+                List<String> documentIds = new ArrayList<>(batch.size());
+                for (Document document : batch) {
+                    documentIds.add(document.getId());
+                }
+                if (deletes.size() == DELETES_IN_FLIGHT) {
+                    waitFor(deletes.poll());
+                }
+                deletes.add(index.deleteAsync(documentIds));
+                count += documentIds.size();
+            }
+        }
+        while (!deletes.isEmpty()) {
+            waitFor(deletes.poll());
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        LOG.info("Deleted " + count + " documents from " + index.getName()
+                + " in " + elapsed + " ms, "
+                + count * TimeUnit.SECONDS.toMillis(1) / elapsed
+                + " documents/s");
+        return count;
+    }
+
+    /**
+     * Waits for an asynchronous index operation.
+     * @param operation the pending operation.
+     */
+    private static void waitFor(final Future<?> operation) {
+        try {
+            operation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
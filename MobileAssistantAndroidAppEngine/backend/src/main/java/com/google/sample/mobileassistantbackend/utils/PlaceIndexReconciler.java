@@ -0,0 +1,461 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.GeoPoint;
+import com.google.appengine.api.search.GetRequest;
+import com.google.appengine.api.search.GetResponse;
+import com.google.appengine.api.search.Index;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.sample.mobileassistantbackend.models.Place;
+import com.google.sample.mobileassistantbackend.models.PlaceIndexReconciliation;
+import com.google.sample.mobileassistantbackend.models.PlaceIndexReconciliation.Phase;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
+import static com.google.sample.mobileassistantbackend.OfyService.ofy;
+
+/**
+ * Brings the active version of the Places search index in line with the
+ * Place entities, which the Place index update tasks normally keep in sync,
+ * writing only the documents that are missing, outdated or orphaned.
+ *
+ * Like PlaceIndexBuilder, it runs as a chain of push queue tasks, each
+ * checking one slice and recording its position in the
+ * PlaceIndexReconciliation entity, so it scales to any number of places.
+ * The documents of the index are checked first, in the order of their
+ * identifiers, against the places loaded by key in one batch per slice.
+ * The places are then checked in the datastore order, looking up their
+ * documents concurrently. A reconciliation stops if its version of the index
+ * is no longer the active one.
+ */
+public final class PlaceIndexReconciler {
+
+    /**
+     * Log output.
+     */
+    private static final Logger LOG = Logger
+            .getLogger(PlaceIndexReconciler.class.getName());
+
+    /**
+     * The queue of the reconciliation tasks, shared with the rebuilds.
+     */
+    private static final String QUEUE = "placeindexbuild-queue";
+
+    /**
+     * The URL of the reconciliation task handler.
+     */
+    private static final String URL = "/tasks/placeindexreconcile";
+
+    /**
+     * The number of documents or places checked per task, which is also the
+     * maximum number of documents of an index getRange call.
+     */
+    private static final int SLICE_SIZE = 1000;
+
+    /**
+     * The maximum number of documents per index delete call.
+     */
+    private static final int DOCUMENTS_PER_WRITE = 200;
+
+    /**
+     * The maximum number of asynchronous document lookups waited for at
+     * once.
+     */
+    private static final int LOOKUPS_IN_FLIGHT = 50;
+
+    /**
+     * The number of times a task is run before the reconciliation is given
+     * up.
+     */
+    private static final int TASK_ATTEMPTS = 10;
+
+    /**
+     * Default constructor, never called.
+     */
+    private PlaceIndexReconciler() {
+    }
+
+    /**
+     * Starts a reconciliation of the active version of the index.
+     * @return the identifier of the reconciliation.
+     */
+    public static long start() {
+        PlaceIndexReconciliation reconciliation =
+                new PlaceIndexReconciliation();
+        reconciliation.setStartTime(new Date());
+        reconciliation.setUpdateTime(reconciliation.getStartTime());
+        reconciliation.setId(reconciliation.getStartTime().getTime());
+        reconciliation.setVersion(PlaceIndexVersions.getActiveVersion());
+        reconciliation.setPhase(Phase.DOCUMENTS);
+        ofy().save().entity(reconciliation).now();
+        if (!enqueue(reconciliation.getId(), 0)) {
+            IllegalStateException e = new IllegalStateException("The first "
+                    + "task of reconciliation " + reconciliation.getId()
+                    + " already exists");
+            fail(reconciliation.getId(), e);
+            throw e;
+        }
+        LOG.info("Started reconciling version "
+                + reconciliation.getVersion() + " of the places index");
+        return reconciliation.getId();
+    }
+
+    /**
+     * Runs the task of a slice of a reconciliation.
+     * @param id the identifier of the reconciliation.
+     * @param slice the number of the slice.
+     * @param attempt the number of previous runs of the task.
+     */
+    public static void runTask(final long id, final int slice,
+            final int attempt) {
+        PlaceIndexReconciliation reconciliation = loadReconciliation(id);
+        if (reconciliation == null
+                || reconciliation.getPhase() == Phase.DONE
+                || reconciliation.getPhase() == Phase.FAILED) {
+            return;
+        }
+        if (reconciliation.getVersion()
+                != PlaceIndexVersions.getActiveVersion()) {
+            // A rebuild replaced the index, which is up to date.
+            fail(id, new IllegalStateException("Version "
+                    + reconciliation.getVersion() + " is no longer active"));
+            return;
+        }
+        if (reconciliation.getNextSlice() > slice) {
+            // Run twice; make sure the chain goes on.
+            enqueue(id, reconciliation.getNextSlice());
+            return;
+        }
+
+        try {
+            Index index = PlaceIndexVersions.getIndex(
+                    reconciliation.getVersion());
+            if (reconciliation.getPhase() == Phase.DOCUMENTS) {
+                checkDocuments(index, reconciliation);
+            } else {
+                checkPlaces(index, reconciliation);
+            }
+        } catch (RuntimeException e) {
+            if (attempt + 1 < TASK_ATTEMPTS) {
+                throw e;
+            }
+            fail(id, e);
+        }
+    }
+
+    /**
+     * Returns the reconciliations, most recent first.
+     * @param limit the maximum number of reconciliations returned.
+     * @return the reconciliations.
+     */
+    public static List<PlaceIndexReconciliation> getReconciliations(
+            final int limit) {
+        return ofy().load().type(PlaceIndexReconciliation.class)
+                .orderKey(true).limit(limit).list();
+    }
+
+    /**
+     * Checks the next slice of documents of the index against the places,
+     * updating the outdated documents and deleting the orphaned ones, and
+     * records the progress.
+     * @param index the index reconciled.
+     * @param reconciliation the reconciliation.
+     */
+    private static void checkDocuments(final Index index,
+            final PlaceIndexReconciliation reconciliation) {
+        GetRequest.Builder request = GetRequest.newBuilder()
+                .setLimit(SLICE_SIZE);
+        if (reconciliation.getCursor() != null) {
+            request.setStartId(reconciliation.getCursor())
+                    .setIncludeStart(false);
+        }
+        List<Document> documents = index.getRange(request).getResults();
+
+        List<Long> placeIds = new ArrayList<>(documents.size());
+        for (Document document : documents) {
+            Long placeId = parsePlaceId(document.getId());
+            if (placeId != null) {
+                placeIds.add(placeId);
+            }
+        }
+        Map<Long, Place> places = ofy().load().type(Place.class)
+                .ids(placeIds);
+
+        List<Document> outdated = new ArrayList<>();
+        List<String> orphans = new ArrayList<>();
+        for (Document document : documents) {
+            Place place = places.get(parsePlaceId(document.getId()));
+            if (place == null || place.getLocation() == null) {
+                orphans.add(document.getId());
+            } else if (!isIndexed(place, document)) {
+                outdated.add(toDocument(place));
+            }
+        }
+        PlaceIndexBuilder.putAll(index, outdated);
+        for (int i = 0; i < orphans.size(); i += DOCUMENTS_PER_WRITE) {
+            index.delete(orphans.subList(i,
+                    Math.min(i + DOCUMENTS_PER_WRITE, orphans.size())));
+        }
+
+        String cursor = null;
+        Phase phase = Phase.PLACES;
+        if (documents.size() == SLICE_SIZE) {
+            cursor = documents.get(documents.size() - 1).getId();
+            phase = Phase.DOCUMENTS;
+        }
+        record(reconciliation, phase, cursor, outdated.size(),
+                orphans.size());
+    }
+
+    /**
+     * Checks the next slice of places against the index, putting the
+     * missing documents, and records the progress.
+     * @param index the index reconciled.
+     * @param reconciliation the reconciliation.
+     */
+    private static void checkPlaces(final Index index,
+            final PlaceIndexReconciliation reconciliation) {
+        Query<Place> query = ofy().load().type(Place.class).limit(SLICE_SIZE)
+                .chunk(SLICE_SIZE);
+        if (reconciliation.getCursor() != null) {
+            query = query.startAt(
+                    Cursor.fromWebSafeString(reconciliation.getCursor()));
+        }
+
+        List<Document> missing = new ArrayList<>();
+        Deque<Future<GetResponse<Document>>> lookups = new ArrayDeque<>();
+        Deque<Place> looked = new ArrayDeque<>();
+        int places = 0;
+        QueryResultIterator<Place> iterator = query.iterator();
+        while (iterator.hasNext()) {
+            Place place = iterator.next();
+            places++;
+            if (place.getLocation() == null) {
+                continue;
+            }
+            if (lookups.size() == LOOKUPS_IN_FLIGHT) {
+                checkIndexed(lookups.poll(), looked.poll(), missing);
+            }
+            lookups.add(index.getRangeAsync(GetRequest.newBuilder()
+                    .setStartId(place.getPlaceId().toString())
+                    .setLimit(1)
+                    .setReturningIdsOnly(true)));
+            looked.add(place);
+        }
+        while (!lookups.isEmpty()) {
+            checkIndexed(lookups.poll(), looked.poll(), missing);
+        }
+        PlaceIndexBuilder.putAll(index, missing);
+
+        Phase phase = Phase.DONE;
+        String cursor = null;
+        if (places == SLICE_SIZE) {
+            phase = Phase.PLACES;
+            cursor = iterator.getCursor().toWebSafeString();
+        }
+        record(reconciliation, phase, cursor, missing.size(), 0);
+    }
+
+    /**
+     * Waits for the lookup of the document of a place, and adds the
+     * document of the place to the missing ones if it was not found.
+     * @param lookup the pending lookup.
+     * @param place the place.
+     * @param missing receives the missing documents.
+     */
+    private static void checkIndexed(
+            final Future<GetResponse<Document>> lookup, final Place place,
+            final List<Document> missing) {
+        List<Document> found;
+        try {
+            found = lookup.get().getResults();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        if (found.isEmpty() || !found.get(0).getId()
+                .equals(place.getPlaceId().toString())) {
+            missing.add(toDocument(place));
+        }
+    }
+
+    /**
+     * Records the progress of a reconciliation after a slice, unless
+     * another run of the same task already did, then enqueues the task of
+     * the next slice if any.
+     * @param reconciliation the reconciliation, as loaded by the task.
+     * @param phase the stage after the slice.
+     * @param cursor the position after the slice.
+     * @param put the number of documents put for the slice.
+     * @param deleted the number of documents deleted for the slice.
+     */
+    private static void record(final PlaceIndexReconciliation reconciliation,
+            final Phase phase, final String cursor, final int put,
+            final int deleted) {
+        final long id = reconciliation.getId();
+        final int slice = reconciliation.getNextSlice();
+        int nextSlice = ofy().transact(new Work<Integer>() {
+            @Override
+            public Integer run() {
+                PlaceIndexReconciliation current = loadReconciliation(id);
+                if (current.getNextSlice() == slice) {
+                    current.setPhase(phase);
+                    current.setCursor(cursor);
+                    current.setNextSlice(slice + 1);
+                    current.setDocumentsPut(current.getDocumentsPut() + put);
+                    current.setDocumentsDeleted(
+                            current.getDocumentsDeleted() + deleted);
+                    current.setUpdateTime(new Date());
+                    ofy().save().entity(current).now();
+                }
+                return current.getNextSlice();
+            }
+        });
+        if (put > 0 || deleted > 0) {
+            PlacesHelper.invalidate();
+        }
+        if (phase == Phase.DONE) {
+            LOG.info("Reconciled version " + reconciliation.getVersion()
+                    + " of the places index");
+            return;
+        }
+        enqueue(id, nextSlice);
+    }
+
+    /**
+     * Gives up a reconciliation.
+     * @param id the identifier of the reconciliation.
+     * @param e the cause.
+     */
+    private static void fail(final long id, final Exception e) {
+        LOG.warning("Reconciliation " + id + " of the places index failed: "
+                + e.getMessage());
+        ofy().transact(new Work<Void>() {
+            @Override
+            public Void run() {
+                PlaceIndexReconciliation reconciliation =
+                        loadReconciliation(id);
+                reconciliation.setPhase(Phase.FAILED);
+                reconciliation.setError(String.valueOf(e.getMessage()));
+                reconciliation.setUpdateTime(new Date());
+                ofy().save().entity(reconciliation).now();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Enqueues the task of a slice of a reconciliation, once.
+     * @param id the identifier of the reconciliation.
+     * @param slice the number of the slice.
+     * @return true if the task was enqueued, false if it already existed.
+     */
+    private static boolean enqueue(final long id, final int slice) {
+        try {
+            QueueFactory.getQueue(QUEUE).add(withUrl(URL)
+                    .taskName("reconcile-" + id + "-" + slice)
+                    .param("id", Long.toString(id))
+                    .param("slice", Integer.toString(slice)));
+            return true;
+        } catch (TaskAlreadyExistsException e) {
+            LOG.info("Slice " + slice + " of reconciliation " + id
+                    + " already enqueued");
+            return false;
+        }
+    }
+
+    /**
+     * Loads the progress of a reconciliation.
+     * @param id the identifier of the reconciliation.
+     * @return the reconciliation, or null if unknown.
+     */
+    private static PlaceIndexReconciliation loadReconciliation(
+            final long id) {
+        return ofy().load().type(PlaceIndexReconciliation.class).id(id)
+                .now();
+    }
+
+    /**
+     * Returns the identifier of the place of a document.
+     * @param documentId the identifier of the document.
+     * @return the identifier of the place, or null if the document is not
+     *      the document of a place.
+     */
+    private static Long parsePlaceId(final String documentId) {
+        try {
+            return Long.valueOf(documentId);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether a document of the index matches the current state of a
+     * place.
+     * @param place the place.
+     * @param document the document of the place in the index.
+     * @return true if the document is up to date.
+     */
+    private static boolean isIndexed(final Place place,
+            final Document document) {
+        try {
+            GeoPoint location = document.getOnlyField("place_location")
+                    .getGeoPoint();
+            return Objects.equals(place.getName(),
+                            document.getOnlyField("name").getText())
+                    && Objects.equals(place.getAddress(),
+                            document.getOnlyField("address").getText())
+                    && location.getLatitude()
+                            == place.getLocation().getLatitude()
+                    && location.getLongitude()
+                            == place.getLocation().getLongitude();
+        } catch (IllegalArgumentException e) {
+            // Missing or repeated field.
+            return false;
+        }
+    }
+
+    /**
+     * Builds the index document of a place.
+     * @param place the place.
+     * @return the document.
+     */
+    private static Document toDocument(final Place place) {
+        return PlacesHelper.buildDocument(place.getPlaceId(), place.getName(),
+                place.getAddress(), place.getLocation());
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.appengine.api.search.GetIndexesRequest;
+import com.google.appengine.api.search.GetResponse;
+import com.google.appengine.api.search.Index;
+import com.google.appengine.api.search.IndexSpec;
+import com.google.appengine.api.search.SearchService;
+import com.google.appengine.api.search.SearchServiceFactory;
+import com.google.sample.mobileassistantbackend.models.PlaceIndexState;
+import com.googlecode.objectify.Work;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.sample.mobileassistantbackend.OfyService.ofy;
+
+/**
+ * Versions of the Places search index, for rebuilding it without downtime.
+ *
+ * Searches use the active version, recorded in the PlaceIndexState entity.
+ * A rebuild fills a new version while the active one keeps answering, then
+ * activates it in a transaction. Place updates are written to both versions
+ * during the rebuild. Version 0 is the original Places index; the others are
+ * named Places_v{n}.
+ */
+public final class PlaceIndexVersions {
+
+    /**
+     * The name of the Places index, and the prefix of its versions.
+     */
+    private static final String INDEX_NAME = "Places";
+
+    /**
+     * The separator between the index name and the version.
+     */
+    private static final String VERSION_SEPARATOR = "_v";
+
+    /**
+     * How long the active version is cached in the instance. Instances
+     * switch to a newly activated version after this delay.
+     */
+    private static final long STATE_TIME_TO_LIVE_IN_MILLISECONDS =
+            TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * The maximum number of indexes listed per call.
+     */
+    private static final int INDEXES_PER_READ = 1000;
+
+    /**
+     * The active version last read.
+     */
+    private static volatile int activeVersion;
+
+    /**
+     * The time the active version must be read again at.
+     */
+    private static volatile long activeVersionExpiresAt;
+
+    /**
+     * Default constructor, never called.
+     */
+    private PlaceIndexVersions() {
+    }
+
+    /**
+     * Returns the version of the index answering the searches.
+     * @return the active index.
+     */
+    public static Index getActiveIndex() {
+        long now = System.currentTimeMillis();
+        if (now >= activeVersionExpiresAt) {
+            activeVersion = loadState().getActiveVersion();
+            activeVersionExpiresAt = now + STATE_TIME_TO_LIVE_IN_MILLISECONDS;
+        }
+        return getIndex(activeVersion);
+    }
+
+    /**
+     * Returns the versions of the index that document updates must be
+     * written to: the active one and the one being built, if any.
+     * @return the indexes to write to.
+     */
+    public static List<Index> getWriteIndexes() {
+        PlaceIndexState state = loadState();
+        List<Index> indexes = new ArrayList<>();
+        indexes.add(getIndex(state.getActiveVersion()));
+        if (state.getBuildingVersion() != null) {
+            indexes.add(getIndex(state.getBuildingVersion()));
+        }
+        return indexes;
+    }
+
+    /**
+     * Returns the version of the index answering the searches, as currently
+     * recorded rather than as cached by the instance.
+     * @return the active version.
+     */
+    public static int getActiveVersion() {
+        return loadState().getActiveVersion();
+    }
+
+    /**
+     * Tells whether a rebuild of the index is running.
+     * @return true if a version is being built.
+     */
+    public static boolean isBuilding() {
+        return loadState().getBuildingVersion() != null;
+    }
+
+    /**
+     * Returns a version of the index.
+     * @param version the version.
+     * @return the index.
+     */
+    public static Index getIndex(final int version) {
+        String name = INDEX_NAME;
+        if (version > 0) {
+            name = INDEX_NAME + VERSION_SEPARATOR + version;
+        }
+        IndexSpec indexSpec = IndexSpec.newBuilder().setName(name).build();
+        return SearchServiceFactory.getSearchService().getIndex(indexSpec);
+    }
+
+    /**
+     * Records the start of a rebuild in a new version. Document updates are
+     * written to it from now on. A rebuild already running is aborted: its
+     * version stops receiving document updates, so it could never be
+     * activated, and its tasks stop at their next slice.
+     * @return the new version, never used before: versions are allocated
+     *      from the last version recorded in the state, which only grows,
+     *      so a rebuild never reuses the version of a failed one.
+     */
+    public static int startBuild() {
+        return ofy().transact(new Work<Integer>() {
+            @Override
+            public Integer run() {
+                PlaceIndexState state = loadState();
+                // States saved before the last version was recorded start
+                // from the versions they know of.
+                int version = Math.max(state.getLastVersion(),
+                        state.getActiveVersion()) + 1;
+                if (state.getBuildingVersion() != null) {
+                    version = Math.max(version,
+                            state.getBuildingVersion() + 1);
+                }
+                state.setLastVersion(version);
+                state.setBuildingVersion(version);
+                ofy().save().entity(state).now();
+                return version;
+            }
+        });
+    }
+
+    /**
+     * Tells whether a version is the one being built, so its rebuild was
+     * neither aborted nor superseded.
+     * @param version the version.
+     * @return true if the version is being built.
+     */
+    public static boolean isBuilding(final int version) {
+        return Integer.valueOf(version)
+                .equals(loadState().getBuildingVersion());
+    }
+
+    /**
+     * Makes a version built by startBuild the active one, if it is still the
+     * one being built.
+     * @param version the version.
+     * @return true if the version was activated, false if its rebuild was
+     *      aborted or superseded meanwhile.
+     */
+    public static boolean activate(final int version) {
+        boolean activated = ofy().transact(new Work<Boolean>() {
+            @Override
+            public Boolean run() {
+                PlaceIndexState state = loadState();
+                if (!Integer.valueOf(version)
+                        .equals(state.getBuildingVersion())) {
+                    return false;
+                }
+                state.setActiveVersion(version);
+                state.setBuildingVersion(null);
+                ofy().save().entity(state).now();
+                return true;
+            }
+        });
+        activeVersionExpiresAt = 0;
+        return activated;
+    }
+
+    /**
+     * Records that the rebuild of a version was given up.
+     * @param version the version.
+     */
+    public static void abortBuild(final int version) {
+        ofy().transact(new Work<Void>() {
+            @Override
+            public Void run() {
+                PlaceIndexState state = loadState();
+                if (Integer.valueOf(version)
+                        .equals(state.getBuildingVersion())) {
+                    state.setBuildingVersion(null);
+                    ofy().save().entity(state).now();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns the versions of the index that are not used anymore: those
+     * before the active one, but the one just before it, which instances
+     * may still search for up to STATE_TIME_TO_LIVE_IN_MILLISECONDS, and
+     * those after it that were abandoned by a failed or superseded build.
+     * The version being built and versions allocated after the state was
+     * read are kept.
+     * @return the obsolete indexes.
+     */
+    public static List<Index> getObsoleteIndexes() {
+        PlaceIndexState state = loadState();
+        SearchService searchService = SearchServiceFactory.getSearchService();
+        List<Index> obsolete = new ArrayList<>();
+        String startName = null;
+        while (true) {
+            GetIndexesRequest.Builder request = GetIndexesRequest.newBuilder()
+                    .setIndexNamePrefix(INDEX_NAME)
+                    .setLimit(INDEXES_PER_READ);
+            if (startName != null) {
+                request.setStartIndexName(startName)
+                        .setIncludeStartIndex(false);
+            }
+            GetResponse<Index> response = searchService.getIndexes(request);
+            if (response.getResults().isEmpty()) {
+                break;
+            }
+            for (Index index : response.getResults()) {
+                startName = index.getName();
+                int version = getVersion(index.getName());
+                if (version < 0 || Integer.valueOf(version)
+                        .equals(state.getBuildingVersion())) {
+                    continue;
+                }
+                if (version < state.getActiveVersion() - 1
+                        || (version > state.getActiveVersion()
+                        && version <= state.getLastVersion())) {
+                    obsolete.add(index);
+                }
+            }
+        }
+        return obsolete;
+    }
+
+    /**
+     * Returns the version of an index from its name.
+     * @param name the name of the index.
+     * @return the version, or -1 if it is not a version of the Places index.
+     */
+    private static int getVersion(final String name) {
+        if (name.equals(INDEX_NAME)) {
+            return 0;
+        }
+        String prefix = INDEX_NAME + VERSION_SEPARATOR;
+        if (!name.startsWith(prefix)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Loads the state of the index, which starts with version 0 active.
+     * @return the state.
+     */
+    private static PlaceIndexState loadState() {
+        PlaceIndexState state = ofy().load().type(PlaceIndexState.class)
+                .id(PlaceIndexState.SINGLETON_ID).now();
+        if (state == null) {
+            state = new PlaceIndexState();
+        }
+        return state;
+    }
+}
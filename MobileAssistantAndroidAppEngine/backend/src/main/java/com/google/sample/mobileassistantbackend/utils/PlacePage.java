@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.sample.mobileassistantbackend.models.PlaceInfo;
+
+import java.util.List;
+
+/**
+ * A page of nearby places and the cursor to the next page.
+ */
+public final class PlacePage {
+
+    /**
+     * The places of this page.
+     */
+    private final List<PlaceInfo> places;
+
+    /**
+     * The opaque cursor to the next page, or null if this is the last page.
+     */
+    private final String nextCursor;
+
+    /**
+     * Creates a page.
+     * @param pPlaces the places of this page.
+     * @param pNextCursor the cursor to the next page, or null if this is the
+     *      last page.
+     */
+    public PlacePage(final List<PlaceInfo> pPlaces, final String pNextCursor) {
+        this.places = pPlaces;
+        this.nextCursor = pNextCursor;
+    }
+
+    /**
+     * Returns the places of this page.
+     * @return the places, nearest first.
+     */
+    public List<PlaceInfo> getPlaces() {
+        return places;
+    }
+
+    /**
+     * Returns the cursor to the next page.
+     * @return the opaque cursor, or null if this is the last page.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.sample.mobileassistantbackend.models.Recommendation;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static com.google.sample.mobileassistantbackend.OfyService.ofy;
+
+/**
+ * The unexpired recommendations of each place, read with the (placeId,
+ * expiration) index and cached in memcache for a short time, so listing
+ * them costs the same whatever the number of recommendations of the other
+ * places. The recommendations without a place apply to all places and are
+ * cached like those of a place.
+ *
+ * Saving or deleting a recommendation must invalidate the cache of its
+ * place. The recommendations generated for a user are not stored here but
+ * in the inbox of the user, see RecommendationInboxes.
+ */
+public final class PlaceRecommendations {
+
+    /**
+     * Log output.
+     */
+    private static final Logger LOG = Logger
+            .getLogger(PlaceRecommendations.class.getName());
+
+    /**
+     * How long the recommendations of a place are cached.
+     */
+    private static final int CACHE_EXPIRATION_IN_SECONDS = 30;
+
+    /**
+     * The memcache namespace of the cache.
+     */
+    private static final String NAMESPACE = "recommendations";
+
+    /**
+     * The memcache key of the recommendations that apply to all places.
+     */
+    private static final String ALL_PLACES_KEY = "all";
+
+    /**
+     * The memcache service.
+     */
+    private static final MemcacheService MEMCACHE =
+            MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+
+    /**
+     * Default constructor, never called.
+     */
+    private PlaceRecommendations() {
+    }
+
+    /**
+     * Lists the unexpired recommendations of a place for a user.
+     * @param placeId the identifier of the place.
+     * @param userEmail the email of the user, or null for the
+     *      recommendations that apply to all users only.
+     * @return the recommendations of the place and those that apply to all
+     *      places, for the user and for all users.
+     */
+    public static List<Recommendation> list(final Long placeId,
+            final String userEmail) {
+        Date now = new Date();
+        List<Recommendation> result = new ArrayList<>();
+        select(load(placeId, now), userEmail, now, result);
+        if (placeId != null) {
+            select(load(null, now), userEmail, now, result);
+        }
+        return result;
+    }
+
+    /**
+     * Invalidates the cached recommendations of a place.
+     * @param placeId the identifier of the place, or null for the
+     *      recommendations that apply to all places.
+     */
+    public static void invalidate(final Long placeId) {
+        try {
+            MEMCACHE.delete(getKey(placeId));
+        } catch (RuntimeException e) {
+            LOG.warning("Could not invalidate the recommendations of place "
+                    + placeId + ": " + e);
+        }
+    }
+
+    /**
+     * Returns the unexpired recommendations of a place, from the cache if
+     * possible.
+     * @param placeId the identifier of the place, or null for the
+     *      recommendations that apply to all places.
+     * @param now the current date.
+     * @return the recommendations, possibly expired since they were cached.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Recommendation> load(final Long placeId,
+            final Date now) {
+        String key = getKey(placeId);
+        List<Recommendation> recommendations = null;
+        try {
+            recommendations = (List<Recommendation>) MEMCACHE.get(key);
+        } catch (RuntimeException e) {
+            LOG.warning("Could not read the recommendations of place "
+                    + placeId + ": " + e);
+        }
+        if (recommendations == null) {
+            recommendations = new ArrayList<>(ofy().load()
+                    .type(Recommendation.class)
+                    .filter("placeId", placeId)
+                    .filter("expiration >", now)
+                    .list());
+            try {
+                MEMCACHE.put(key, recommendations, Expiration
+                        .byDeltaSeconds(CACHE_EXPIRATION_IN_SECONDS));
+            } catch (RuntimeException e) {
+                LOG.warning("Could not cache the recommendations of place "
+                        + placeId + ": " + e);
+            }
+        }
+        return recommendations;
+    }
+
+    /**
+     * Selects the unexpired recommendations of a user, leaving out the
+     * recommendation templates.
+     * @param recommendations the recommendations of a place.
+     * @param userEmail the email of the user, or null.
+     * @param now the current date.
+     * @param result receives the selected recommendations.
+     */
+    private static void select(final List<Recommendation> recommendations,
+            final String userEmail, final Date now,
+            final List<Recommendation> result) {
+        for (Recommendation recommendation : recommendations) {
+            if (recommendation.getExpiration().after(now)
+                    && (recommendation.getUserEmail() == null
+                    || recommendation.getUserEmail().equals(userEmail))
+                    && !RecommendationTemplates.isTemplate(
+                            Key.create(recommendation).getName())) {
+                result.add(recommendation);
+            }
+        }
+    }
+
+    /**
+     * Returns the memcache key of the recommendations of a place.
+     * @param placeId the identifier of the place, or null.
+     * @return the key.
+     */
+    private static String getKey(final Long placeId) {
+        if (placeId == null) {
+            return ALL_PLACES_KEY;
+        }
+        return placeId.toString();
+    }
+}
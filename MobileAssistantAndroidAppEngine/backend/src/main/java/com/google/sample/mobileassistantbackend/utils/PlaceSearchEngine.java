@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.sample.mobileassistantbackend.models.PlaceInfo;
+
+import java.util.List;
+
+/**
+ * Strategy used by PlacesHelper to answer geo-proximity queries over Places.
+ */
+public interface PlaceSearchEngine {
+
+    /**
+     * Returns the nearest places to a location.
+     * @param location the location to search around.
+     * @param distanceInMeters the maximum distance to the location.
+     * @param resultCount the maximum number of places returned.
+     * @return List of up to resultCount places ordered by the distance to
+     *      the location parameter and less than distanceInMeters meters to
+     *      the location parameter.
+     */
+    List<PlaceInfo> getPlaces(GeoPt location, long distanceInMeters,
+            int resultCount);
+
+    /**
+     * Runs several nearest-places queries at once.
+     * @param queries the queries.
+     * @return the places of each query, in the order of the queries, as
+     *      getPlaces would return them.
+     */
+    List<List<PlaceInfo>> getPlacesBatch(List<NearbyQuery> queries);
+
+    /**
+     * Returns the places within a corridor around a route.
+     * @param route the vertices of the route, at least one.
+     * @param widthInKm the maximum distance to the route, in kilometers.
+     * @param resultCount the maximum number of places returned.
+     * @return List of up to resultCount places ordered by their position
+     *      along the route, which is set as their distance.
+     */
+    List<PlaceInfo> getPlacesAlongRoute(List<GeoPt> route, double widthInKm,
+            int resultCount);
+
+    /**
+     * Returns a page of the places nearest to a location.
+     * @param location the location to search around.
+     * @param distanceInMeters the maximum distance to the location.
+     * @param pageSize the maximum number of places returned.
+     * @param cursor the cursor returned with the previous page, or null for
+     *      the first page.
+     * @return the page of places, ordered by the distance to the location.
+     * @throws IllegalArgumentException if the cursor is invalid.
+     */
+    PlacePage getPlacesPage(GeoPt location, long distanceInMeters,
+            int pageSize, String cursor);
+
+    /**
+     * Signals that the Place entities changed and that any state derived
+     * from them should be refreshed.
+     */
+    void invalidate();
+}
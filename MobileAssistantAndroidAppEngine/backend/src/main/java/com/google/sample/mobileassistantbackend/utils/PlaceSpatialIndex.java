@@ -0,0 +1,613 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.sample.mobileassistantbackend.models.Place;
+import com.google.sample.mobileassistantbackend.models.PlaceInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Immutable grid index over the locations of a snapshot of Places.
+ *
+ * The globe is cut into square cells of CELL_SIZE_IN_DEGREES. Places are
+ * sorted by cell key (row-major), so all the places of the cells of one grid
+ * row that intersect a search circle are a contiguous slice of the arrays and
+ * are found with a single binary search per row.
+ */
+public final class PlaceSpatialIndex {
+
+    /**
+     * The size of a grid cell, in degrees (about 5.5 km of latitude).
+     */
+    static final double CELL_SIZE_IN_DEGREES = 0.05;
+
+    /**
+     * The number of kilometers in a degree of latitude.
+     */
+    static final double KM_PER_DEGREE =
+            Math.toRadians(1) * PlacesHelper.EARTH_RADIUS;
+
+    /**
+     * The number of grid columns.
+     */
+    private static final int COLUMNS =
+            (int) Math.ceil(360 / CELL_SIZE_IN_DEGREES);
+
+    /**
+     * The number of grid rows.
+     */
+    private static final int ROWS =
+            (int) Math.ceil(180 / CELL_SIZE_IN_DEGREES);
+
+    /**
+     * The number of bits used for the place position when packing it with its
+     * cell key for sorting.
+     */
+    private static final int POSITION_BITS = 32;
+
+    /**
+     * Mask extracting the place position from a packed cell key.
+     */
+    private static final long POSITION_MASK = (1L << POSITION_BITS) - 1;
+
+    /**
+     * The radix used to encode the cursor fields.
+     */
+    private static final int CURSOR_RADIX = 16;
+
+    /**
+     * The separator of the cursor fields.
+     */
+    private static final String CURSOR_SEPARATOR = ".";
+
+    /**
+     * The multiplier of the fingerprint hash.
+     */
+    private static final long FINGERPRINT_MULTIPLIER = 31;
+
+    /**
+     * Hash of the indexed places in cell order. Two indexes with the same
+     * fingerprint give the same positions to the same places, so cursors
+     * can be resumed by any instance holding the same snapshot.
+     */
+    private final long fingerprint;
+
+    /**
+     * Sorted cell keys, one per place.
+     */
+    private final long[] cells;
+
+    /**
+     * The x coordinates of the places as unit vectors, in cell order.
+     */
+    private final double[] x;
+
+    /**
+     * The y coordinates of the places as unit vectors, in cell order.
+     */
+    private final double[] y;
+
+    /**
+     * The z coordinates of the places as unit vectors, in cell order.
+     */
+    private final double[] z;
+
+    /**
+     * The places, in cell order.
+     */
+    private final Place[] places;
+
+    /**
+     * Creates an index from arrays already sorted by cell key.
+     * @param pCells the sorted cell keys.
+     * @param pX the x coordinates of the places.
+     * @param pY the y coordinates of the places.
+     * @param pZ the z coordinates of the places.
+     * @param pPlaces the places.
+     */
+    private PlaceSpatialIndex(final long[] pCells, final double[] pX,
+            final double[] pY, final double[] pZ, final Place[] pPlaces) {
+        this.cells = pCells;
+        this.x = pX;
+        this.y = pY;
+        this.z = pZ;
+        this.places = pPlaces;
+
+        long hash = 0;
+        for (int i = 0; i < pPlaces.length; i++) {
+            hash = hash * FINGERPRINT_MULTIPLIER + pCells[i];
+            hash = hash * FINGERPRINT_MULTIPLIER + pPlaces[i].getPlaceId();
+        }
+        this.fingerprint = hash;
+    }
+
+    /**
+     * Builds an index over places. Places without a location are skipped.
+     * @param source the places to index.
+     * @return the index.
+     */
+    public static PlaceSpatialIndex build(final Iterable<Place> source) {
+        List<Place> located = new ArrayList<>();
+        for (Place place : source) {
+            if (place.getLocation() != null && place.getPlaceId() != null) {
+                located.add(place);
+            }
+        }
+
+        int size = located.size();
+        long[] packed = new long[size];
+        for (int i = 0; i < size; i++) {
+            GeoPt location = located.get(i).getLocation();
+            packed[i] = (cellKey(location.getLatitude(),
+                    location.getLongitude()) << POSITION_BITS) | i;
+        }
+        Arrays.sort(packed);
+
+        long[] cells = new long[size];
+        double[] latitudes = new double[size];
+        double[] longitudes = new double[size];
+        Place[] places = new Place[size];
+        for (int i = 0; i < size; i++) {
+            int position = (int) (packed[i] & POSITION_MASK);
+            Place place = located.get(position);
+            cells[i] = packed[i] >>> POSITION_BITS;
+            latitudes[i] = place.getLocation().getLatitude();
+            longitudes[i] = place.getLocation().getLongitude();
+            places[i] = place;
+        }
+        double[] x = new double[size];
+        double[] y = new double[size];
+        double[] z = new double[size];
+        GeoDistanceKernel.toUnitVectors(latitudes, longitudes, size, x, y, z);
+        return new PlaceSpatialIndex(cells, x, y, z, places);
+    }
+
+    /**
+     * Returns the number of indexed places.
+     * @return the number of indexed places.
+     */
+    public int size() {
+        return places.length;
+    }
+
+    /**
+     * Returns the nearest places to a location.
+     * @param latitude the latitude of the location.
+     * @param longitude the longitude of the location.
+     * @param distanceInKm the maximum distance to the location.
+     * @param resultCount the maximum number of places returned.
+     * @return up to resultCount places closer than distanceInKm, nearest
+     *      first.
+     */
+    public List<PlaceInfo> nearest(final double latitude,
+            final double longitude, final double distanceInKm,
+            final int resultCount) {
+        int[] positions = new int[resultCount];
+        double[] distances = new double[resultCount];
+        int found = scan(latitude, longitude, distanceInKm, -1, -1,
+                positions, distances);
+        GeoDistanceKernel.sortRanked(positions, distances, found);
+
+        List<PlaceInfo> result = new ArrayList<>(found);
+        for (int i = 0; i < found; i++) {
+            result.add(toPlaceInfo(places[positions[i]], distances[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Returns a page of the places nearest to a location. The cursor records
+     * the rank of the last place returned, so the next page only selects the
+     * places ranked after it instead of sorting all the previous pages again.
+     * A cursor created by an index with other contents resumes after the
+     * distance of the last place returned.
+     * @param latitude the latitude of the location.
+     * @param longitude the longitude of the location.
+     * @param distanceInKm the maximum distance to the location.
+     * @param pageSize the maximum number of places returned.
+     * @param cursor the cursor returned with the previous page, or null for
+     *      the first page.
+     * @return the page of places, nearest first.
+     * @throws IllegalArgumentException if the cursor is invalid.
+     */
+    public PlacePage page(final double latitude, final double longitude,
+            final double distanceInKm, final int pageSize,
+            final String cursor) {
+        double afterKey = -1;
+        int afterPosition = -1;
+        if (cursor != null) {
+            String[] fields = cursor.split("\\" + CURSOR_SEPARATOR);
+            try {
+                if (fields.length != 3) {
+                    throw new NumberFormatException();
+                }
+                afterKey = Double.longBitsToDouble(
+                        Long.parseLong(fields[1], CURSOR_RADIX));
+                if (Long.parseLong(fields[0], CURSOR_RADIX) == fingerprint) {
+                    afterPosition = Integer.parseInt(fields[2], CURSOR_RADIX);
+                } else {
+                    afterPosition = Integer.MAX_VALUE;
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor " + cursor);
+            }
+        }
+
+        // Select one more place than requested to know if there are more.
+        int[] positions = new int[pageSize + 1];
+        double[] keys = new double[pageSize + 1];
+        int found = scan(latitude, longitude, distanceInKm, afterKey,
+                afterPosition, positions, keys);
+        GeoDistanceKernel.sortHeap(positions, keys, found);
+
+        String nextCursor = null;
+        if (found > pageSize) {
+            found = pageSize;
+            nextCursor = Long.toString(fingerprint, CURSOR_RADIX)
+                    + CURSOR_SEPARATOR
+                    + Long.toString(Double.doubleToLongBits(
+                            keys[found - 1]), CURSOR_RADIX)
+                    + CURSOR_SEPARATOR
+                    + Integer.toString(positions[found - 1], CURSOR_RADIX);
+        }
+
+        List<PlaceInfo> result = new ArrayList<>(found);
+        for (int i = 0; i < found; i++) {
+            result.add(toPlaceInfo(places[positions[i]],
+                    GeoDistanceKernel.chordSquaredToKm(keys[i])));
+        }
+        return new PlacePage(result, nextCursor);
+    }
+
+    /**
+     * Selects the places closer than distanceInKm to a location into a
+     * bounded heap, see GeoDistanceKernel.rankRangeAfter.
+     * @param latitude the latitude of the location.
+     * @param longitude the longitude of the location.
+     * @param distanceInKm the maximum distance to the location.
+     * @param afterKey the squared chord length of the last place already
+     *      returned, or -1 to select from the nearest place.
+     * @param afterPosition the position of the last place already returned.
+     * @param heapPositions the heap of place positions.
+     * @param heapKeys the heap of squared chord lengths.
+     * @return the number of entries in the heap.
+     */
+    private int scan(final double latitude, final double longitude,
+            final double distanceInKm, final double afterKey,
+            final int afterPosition, final int[] heapPositions,
+            final double[] heapKeys) {
+        double[] query = new double[3];
+        GeoDistanceKernel.toUnitVector(latitude, longitude, query);
+        double maxChordSquared = GeoDistanceKernel.kmToChordSquared(
+                distanceInKm);
+        RowScanner scanner = new RowScanner(query, maxChordSquared, afterKey,
+                afterPosition, heapPositions, heapKeys);
+
+        double latitudeDelta = distanceInKm / KM_PER_DEGREE;
+        int rowMin = row(Math.max(-90, latitude - latitudeDelta));
+        int rowMax = row(Math.min(90, latitude + latitudeDelta));
+
+        double farthestLatitude = Math.min(90,
+                Math.abs(latitude) + latitudeDelta);
+        double cosine = Math.cos(Math.toRadians(farthestLatitude));
+        double longitudeDelta = cosine <= 0 ? 180 : latitudeDelta / cosine;
+
+        int columnMin;
+        int columnMax;
+        if (longitudeDelta >= 180) {
+            columnMin = 0;
+            columnMax = COLUMNS - 1;
+        } else {
+            columnMin = (int) Math.floor(
+                    (longitude - longitudeDelta + 180) / CELL_SIZE_IN_DEGREES);
+            columnMax = (int) Math.floor(
+                    (longitude + longitudeDelta + 180) / CELL_SIZE_IN_DEGREES);
+        }
+
+        scanBox(scanner, rowMin, rowMax, columnMin, columnMax);
+        return scanner.size;
+    }
+
+    /**
+     * Returns the places within a corridor around a route, ordered by
+     * position along the route. Only the grid cells around each part of the
+     * route are scanned.
+     * @param corridor the corridor.
+     * @param resultCount the maximum number of places returned.
+     * @return up to resultCount places, in route order; their distance is
+     *      their position along the route.
+     */
+    List<PlaceInfo> alongRoute(final RouteCorridor corridor,
+            final int resultCount) {
+        CorridorScanner scanner = new CorridorScanner(corridor);
+        double latitudeDelta = corridor.getWidthInKm() / KM_PER_DEGREE;
+        for (int segment = 0; segment < corridor.getSegmentCount();
+                segment++) {
+            // Cut long segments into pieces, so the cells scanned follow the
+            // segment instead of covering its whole bounding box.
+            int pieces = Math.max(1, (int) Math.ceil(
+                    corridor.getSegmentLengthInKm(segment)
+                            / (CELL_SIZE_IN_DEGREES * KM_PER_DEGREE)));
+            for (int piece = 0; piece < pieces; piece++) {
+                double start = (double) piece / pieces;
+                double end = (double) (piece + 1) / pieces;
+                double latitude1 = corridor.getLatitude(segment, start);
+                double latitude2 = corridor.getLatitude(segment, end);
+                double longitude1 = corridor.getLongitude(segment, start);
+                double longitude2 = corridor.getLongitude(segment, end);
+
+                double farthestLatitude = Math.min(90, Math.max(
+                        Math.abs(latitude1), Math.abs(latitude2))
+                        + latitudeDelta);
+                double cosine = Math.cos(Math.toRadians(farthestLatitude));
+                double longitudeDelta = cosine <= 0 ? 180
+                        : latitudeDelta / cosine;
+
+                int columnMin = 0;
+                int columnMax = COLUMNS - 1;
+                if (longitudeDelta < 180) {
+                    columnMin = (int) Math.floor((Math.min(longitude1,
+                            longitude2) - longitudeDelta + 180)
+                            / CELL_SIZE_IN_DEGREES);
+                    columnMax = (int) Math.floor((Math.max(longitude1,
+                            longitude2) + longitudeDelta + 180)
+                            / CELL_SIZE_IN_DEGREES);
+                }
+                scanBox(scanner,
+                        row(Math.max(-90, Math.min(latitude1, latitude2)
+                                - latitudeDelta)),
+                        row(Math.min(90, Math.max(latitude1, latitude2)
+                                + latitudeDelta)),
+                        columnMin, columnMax);
+            }
+        }
+        return RouteCorridor.inRouteOrder(scanner.found, resultCount);
+    }
+
+    /**
+     * Feeds the cells of a box of the grid to a scanner.
+     * @param scanner the scanner.
+     * @param rowMin the first row, inclusive.
+     * @param rowMax the last row, inclusive.
+     * @param pColumnMin the first column, inclusive; it may be out of the
+     *      grid on either side of the antimeridian.
+     * @param pColumnMax the last column, inclusive.
+     */
+    private static void scanBox(final CellScanner scanner, final int rowMin,
+            final int rowMax, final int pColumnMin, final int pColumnMax) {
+        int columnMin = pColumnMin;
+        int columnMax = pColumnMax;
+        if (columnMax - columnMin + 1 >= COLUMNS) {
+            columnMin = 0;
+            columnMax = COLUMNS - 1;
+        } else {
+            int shift = (columnMin % COLUMNS + COLUMNS) % COLUMNS - columnMin;
+            columnMin += shift;
+            columnMax += shift;
+        }
+
+        for (int row = rowMin; row <= rowMax; row++) {
+            long rowStart = (long) row * COLUMNS;
+            if (columnMax >= COLUMNS) {
+                scanner.scanCells(rowStart + columnMin, rowStart + COLUMNS - 1);
+                scanner.scanCells(rowStart, rowStart + columnMax - COLUMNS);
+            } else {
+                scanner.scanCells(rowStart + columnMin, rowStart + columnMax);
+            }
+        }
+    }
+
+    /**
+     * Visits runs of grid cells.
+     */
+    private interface CellScanner {
+
+        /**
+         * Visits the places of a contiguous run of cells of one grid row.
+         * @param firstCell the first cell key, inclusive.
+         * @param lastCell the last cell key, inclusive.
+         */
+        void scanCells(long firstCell, long lastCell);
+    }
+
+    /**
+     * Collects the places within a route corridor, each one once.
+     */
+    private final class CorridorScanner implements CellScanner {
+
+        /**
+         * The corridor.
+         */
+        private final RouteCorridor corridor;
+
+        /**
+         * The positions of the places already visited.
+         */
+        private final BitSet visited = new BitSet(places.length);
+
+        /**
+         * The places found, with their position along the route.
+         */
+        private final List<PlaceInfo> found = new ArrayList<>();
+
+        /**
+         * Creates a scanner.
+         * @param pCorridor the corridor.
+         */
+        CorridorScanner(final RouteCorridor pCorridor) {
+            this.corridor = pCorridor;
+        }
+
+        @Override
+        public void scanCells(final long firstCell, final long lastCell) {
+            int to = lowerBound(lastCell + 1);
+            for (int i = lowerBound(firstCell); i < to; i++) {
+                if (visited.get(i)) {
+                    continue;
+                }
+                visited.set(i);
+                GeoPt location = places[i].getLocation();
+                double position = corridor.locate(location.getLatitude(),
+                        location.getLongitude());
+                if (position >= 0) {
+                    found.add(toPlaceInfo(places[i], position));
+                }
+            }
+        }
+    }
+
+    /**
+     * Feeds runs of grid cells to a heap shared across the rows of a query.
+     */
+    private final class RowScanner implements CellScanner {
+
+        /**
+         * The unit vector of the query location.
+         */
+        private final double[] query;
+
+        /**
+         * The squared chord length above which places are ignored.
+         */
+        private final double maxChordSquared;
+
+        /**
+         * The squared chord length of the last place already returned.
+         */
+        private final double afterKey;
+
+        /**
+         * The position of the last place already returned.
+         */
+        private final int afterPosition;
+
+        /**
+         * The heap of place positions.
+         */
+        private final int[] heapPositions;
+
+        /**
+         * The heap of squared chord lengths.
+         */
+        private final double[] heapKeys;
+
+        /**
+         * The number of entries in the heap.
+         */
+        private int size;
+
+        /**
+         * Creates a scanner.
+         * @param pQuery the unit vector of the query location.
+         * @param pMaxChordSquared the squared chord length above which places
+         *      are ignored.
+         * @param pAfterKey the squared chord length of the last place already
+         *      returned, or -1.
+         * @param pAfterPosition the position of the last place already
+         *      returned.
+         * @param pHeapPositions the heap of place positions.
+         * @param pHeapKeys the heap of squared chord lengths.
+         */
+        RowScanner(final double[] pQuery, final double pMaxChordSquared,
+                final double pAfterKey, final int pAfterPosition,
+                final int[] pHeapPositions, final double[] pHeapKeys) {
+            this.query = pQuery;
+            this.maxChordSquared = pMaxChordSquared;
+            this.afterKey = pAfterKey;
+            this.afterPosition = pAfterPosition;
+            this.heapPositions = pHeapPositions;
+            this.heapKeys = pHeapKeys;
+        }
+
+        /**
+         * Selects the places of a contiguous run of cells of one grid row.
+         * @param firstCell the first cell key, inclusive.
+         * @param lastCell the last cell key, inclusive.
+         */
+        @Override
+        public void scanCells(final long firstCell, final long lastCell) {
+            size = GeoDistanceKernel.rankRangeAfter(query[0], query[1],
+                    query[2], x, y, z, lowerBound(firstCell),
+                    lowerBound(lastCell + 1), maxChordSquared, afterKey,
+                    afterPosition, heapPositions, heapKeys, size);
+        }
+    }
+
+    /**
+     * Returns the position of the first place whose cell key is not lower
+     * than key.
+     * @param key the cell key to search.
+     * @return the insertion position of key.
+     */
+    private int lowerBound(final long key) {
+        int low = 0;
+        int high = cells.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cells[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the cell key of a location.
+     * @param latitude the latitude of the location.
+     * @param longitude the longitude of the location.
+     * @return the row-major cell key.
+     */
+    static long cellKey(final double latitude, final double longitude) {
+        int column = (int) Math.floor((longitude + 180) / CELL_SIZE_IN_DEGREES);
+        column = Math.min(Math.max(column, 0), COLUMNS - 1);
+        return (long) row(latitude) * COLUMNS + column;
+    }
+
+    /**
+     * Returns the grid row of a latitude.
+     * @param latitude the latitude.
+     * @return the grid row.
+     */
+    private static int row(final double latitude) {
+        int row = (int) Math.floor((latitude + 90) / CELL_SIZE_IN_DEGREES);
+        return Math.min(Math.max(row, 0), ROWS - 1);
+    }
+
+    /**
+     * Converts an indexed place into a PlaceInfo.
+     * @param place the place.
+     * @param distance the distance to the place, in kilometers.
+     * @return the PlaceInfo.
+     */
+    private static PlaceInfo toPlaceInfo(final Place place,
+            final double distance) {
+        PlaceInfo info = new PlaceInfo();
+        info.setPlaceId(place.getPlaceId());
+        info.setName(place.getName());
+        info.setAddress(place.getAddress());
+        info.setLocation(place.getLocation());
+        info.setDistanceInKilometers(distance);
+        return info;
+    }
+}
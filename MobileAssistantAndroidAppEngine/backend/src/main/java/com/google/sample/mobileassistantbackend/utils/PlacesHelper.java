@@ -21,23 +21,21 @@ import com.google.appengine.api.search.Document;
 import com.google.appengine.api.search.Field;
 import com.google.appengine.api.search.GeoPoint;
 import com.google.appengine.api.search.Index;
-import com.google.appengine.api.search.IndexSpec;
-import com.google.appengine.api.search.Query;
-import com.google.appengine.api.search.QueryOptions;
-import com.google.appengine.api.search.Results;
-import com.google.appengine.api.search.ScoredDocument;
-import com.google.appengine.api.search.SearchServiceFactory;
-import com.google.appengine.api.search.SortExpression;
-import com.google.appengine.api.search.SortOptions;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.sample.mobileassistantbackend.models.Place;
 import com.google.sample.mobileassistantbackend.models.PlaceInfo;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
 import static com.google.appengine.api.utils.
         SystemProperty.Environment.Value.Development;
 import static com.google.appengine.api.utils.SystemProperty.environment;
+import static com.google.sample.mobileassistantbackend.OfyService.ofy;
 
 /**
  * Helper class for geo-proximity related management of Places.
@@ -51,29 +49,45 @@ public final class PlacesHelper {
             .getLogger(PlacesHelper.class.getName());
 
     /**
-     * The datastore index containing the places that we will use to search.
+     * The queue of the Places index update tasks.
      */
-    private static final String INDEX_NAME = "Places";
+    private static final String INDEX_UPDATE_QUEUE = "placeindex-queue";
 
     /**
-     * The double precision to use for comparisons.
+     * The URL of the Places index update task handler.
      */
-    private static final double EPSILON = 0.0001;
+    private static final String INDEX_UPDATE_URL = "/tasks/placeindex";
 
     /**
-     * The number of meters in a kilometer.
+     * The interval within which the index updates of a place are coalesced.
      */
-    private static final int METERS_IN_KILOMETER = 1000;
+    private static final long INDEX_UPDATE_INTERVAL_IN_MILLISECONDS =
+            TimeUnit.SECONDS.toMillis(10);
 
     /**
      * The radius of the earth, in kilometers.
      */
-    private static final double EARTH_RADIUS = 6378.1;
+    static final double EARTH_RADIUS = 6378.1;
 
     /**
-     * A fake distance used in the dev environment.
+     * The system property selecting the PlaceSearchEngine.
      */
-    private static  final int FAKE_DISTANCE_FOR_DEV = 5;
+    private static final String ENGINE_PROPERTY = "places.search.engine";
+
+    /**
+     * ENGINE_PROPERTY value selecting the App Engine Search API engine.
+     */
+    private static final String SEARCH_API_ENGINE = "search";
+
+    /**
+     * ENGINE_PROPERTY value selecting the in-memory engine.
+     */
+    private static final String IN_MEMORY_ENGINE = "memory";
+
+    /**
+     * The engine answering the geo-proximity queries.
+     */
+    private static final PlaceSearchEngine ENGINE = createEngine();
 
     /**
      * Default constructor, never called.
@@ -82,13 +96,58 @@ public final class PlacesHelper {
     }
 
     /**
-     * Returns the Places index in the datastore.
+     * Returns the active version of the Places index in the datastore.
      * @return The index to use to search places in the datastore.
      */
     public static Index getIndex() {
-        IndexSpec indexSpec = IndexSpec.newBuilder().setName(INDEX_NAME)
-                .build();
-        return SearchServiceFactory.getSearchService().getIndex(indexSpec);
+        return PlaceIndexVersions.getActiveIndex();
+    }
+
+    /**
+     * Schedules the update of the document of a place in the Places index,
+     * after the place was inserted, updated or removed. Updates of the same
+     * place within INDEX_UPDATE_INTERVAL_IN_MILLISECONDS are coalesced into
+     * one task, which runs at the end of the interval and indexes the place
+     * as it is then.
+     * @param placeId the identifier of the place.
+     */
+    public static void scheduleIndexUpdate(final Long placeId) {
+        long interval = System.currentTimeMillis()
+                / INDEX_UPDATE_INTERVAL_IN_MILLISECONDS;
+        Queue queue = QueueFactory.getQueue(INDEX_UPDATE_QUEUE);
+        try {
+            queue.add(withUrl(INDEX_UPDATE_URL)
+                    .taskName("place-" + placeId + "-" + interval)
+                    .etaMillis((interval + 1)
+                            * INDEX_UPDATE_INTERVAL_IN_MILLISECONDS)
+                    .param("placeId", placeId.toString()));
+        } catch (TaskAlreadyExistsException e) {
+            LOG.fine("Index update of place " + placeId + " already "
+                    + "scheduled");
+        }
+    }
+
+    /**
+     * Updates the document of a place in the Places index with the current
+     * state of the place: puts it if the place exists and has a location,
+     * deletes it otherwise, in the active index and in the index being
+     * rebuilt. Running it several times is harmless.
+     * @param placeId the identifier of the place.
+     */
+    public static void updateDocument(final Long placeId) {
+        // Read the indexes before the place, so a rebuild started meanwhile
+        // reads the place after this update.
+        List<Index> indexes = PlaceIndexVersions.getWriteIndexes();
+        Place place = ofy().load().type(Place.class).id(placeId).now();
+        for (Index index : indexes) {
+            if (place == null || place.getLocation() == null) {
+                index.delete(placeId.toString());
+            } else {
+                index.put(buildDocument(place.getPlaceId(), place.getName(),
+                        place.getAddress(), place.getLocation()));
+            }
+        }
+        ENGINE.invalidate();
     }
 
     /**
@@ -106,6 +165,7 @@ public final class PlacesHelper {
                 location.getLongitude());
 
         Document.Builder builder = Document.newBuilder()
+                .setId(placeId.toString())
                 .addField(Field.newBuilder().setName("id")
                         .setText(placeId.toString()))
                 .addField(Field.newBuilder().setName("name").setText(placeName))
@@ -134,87 +194,84 @@ public final class PlacesHelper {
      */
     public static List<PlaceInfo> getPlaces(final GeoPt location,
             final long distanceInMeters, final int resultCount) {
+        return ENGINE.getPlaces(location, distanceInMeters, resultCount);
+    }
 
-        // Optional: use memcache
-
-        String geoPoint = "geopoint(" + location.getLatitude() + ", " + location
-                .getLongitude()
-                + ")";
-        String locExpr = "distance(place_location, " + geoPoint + ")";
-
-        // Build the SortOptions with 2 sort keys
-        SortOptions sortOptions = SortOptions.newBuilder()
-                .addSortExpression(SortExpression.newBuilder()
-                        .setExpression(locExpr)
-                        .setDirection(SortExpression.SortDirection.ASCENDING)
-                        .setDefaultValueNumeric(distanceInMeters + 1))
-                .setLimit(resultCount)
-                .build();
-        // Build the QueryOptions
-        QueryOptions options = QueryOptions.newBuilder()
-                .setSortOptions(sortOptions)
-                .build();
-        // Query string
-        String searchQuery = "distance(place_location, " + geoPoint + ") < "
-                + distanceInMeters;
-
-        Query query = Query.newBuilder().setOptions(options).build(searchQuery);
-
-        Results<ScoredDocument> results = getIndex().search(query);
-
-        if (results.getNumberFound() == 0) {
-            // geo-location doesn't work under dev_server
-            if (environment.value() == Development) {
-                // return all documents
-                results = getIndex().search("value > 0");
-            }
-        }
+    /**
+     * Runs several nearest places queries at once.
+     * @param queries the queries.
+     * @return the places of each query, in the order of the queries, as
+     *      getPlaces would return them.
+     */
+    public static List<List<PlaceInfo>> getPlacesBatch(
+            final List<NearbyQuery> queries) {
+        return ENGINE.getPlacesBatch(queries);
+    }
 
-        List<PlaceInfo> places = new ArrayList<>();
+    /**
+     * Returns the places within a corridor around a route.
+     * @param route the vertices of the route, at least one.
+     * @param widthInKm the maximum distance to the route, in kilometers.
+     * @param resultCount the maximum number of places returned.
+     * @return List of up to resultCount places ordered by their position
+     *      along the route, which is set as their distance.
+     */
+    public static List<PlaceInfo> getPlacesAlongRoute(final List<GeoPt> route,
+            final double widthInKm, final int resultCount) {
+        return ENGINE.getPlacesAlongRoute(route, widthInKm, resultCount);
+    }
 
-        for (ScoredDocument document : results) {
-            if (places.size() >= resultCount) {
-                break;
-            }
+    /**
+     * Returns a page of the nearest places to the location of the user.
+     * @param location the location of the user.
+     * @param distanceInMeters the maximum distance to the user.
+     * @param pageSize the maximum number of places returned.
+     * @param cursor the cursor returned with the previous page, or null for
+     *      the first page.
+     * @return the page of places ordered by the distance to the location
+     *      parameter and less than distanceInMeters meters to the location
+     *      parameter.
+     * @throws IllegalArgumentException if the cursor is invalid.
+     */
+    public static PlacePage getPlacesPage(final GeoPt location,
+            final long distanceInMeters, final int pageSize,
+            final String cursor) {
+        return ENGINE.getPlacesPage(location, distanceInMeters, pageSize,
+                cursor);
+    }
 
-            GeoPoint p = document.getOnlyField("place_location").getGeoPoint();
-
-            PlaceInfo place = new PlaceInfo();
-            place.setPlaceId(Long.valueOf(document.getOnlyField("id")
-                    .getText()));
-            place.setName(document.getOnlyField("name").getText());
-            place.setAddress(document.getOnlyField("address").getText());
-
-            place.setLocation(new GeoPt((float) p.getLatitude(),
-                    (float) p.getLongitude()));
-
-            // GeoPoints are not implemented on dev server and latitude and
-            // longitude are set to zero
-            // But since those are doubles let's play safe
-            // and use double comparison with epsilon set to EPSILON
-            if (Math.abs(p.getLatitude()) <= EPSILON
-                    && Math.abs(p.getLongitude()) <= EPSILON) {
-                // set a fake distance of 5+ km
-                place.setDistanceInKilometers(FAKE_DISTANCE_FOR_DEV + places
-                        .size());
-            } else {
-                double distance = distanceInMeters / METERS_IN_KILOMETER;
-                try {
-                    distance = getDistanceInKm(
-                            p.getLatitude(), p.getLongitude(),
-                            location.getLatitude(),
-                            location.getLongitude());
-                } catch (Exception e) {
-                    LOG.warning("Exception when calculating a distance: " + e
-                            .getMessage());
-                }
-
-                place.setDistanceInKilometers(distance);
-            }
+    /**
+     * Returns the engine answering the geo-proximity queries.
+     * @return the configured PlaceSearchEngine.
+     */
+    public static PlaceSearchEngine getEngine() {
+        return ENGINE;
+    }
+
+    /**
+     * Discards the state derived from the Place entities after they changed.
+     */
+    public static void invalidate() {
+        ENGINE.invalidate();
+    }
 
-            places.add(place);
+    /**
+     * Creates the PlaceSearchEngine selected by the ENGINE_PROPERTY system
+     * property.
+     * @return the configured PlaceSearchEngine.
+     */
+    private static PlaceSearchEngine createEngine() {
+        String engine = System.getProperty(ENGINE_PROPERTY, SEARCH_API_ENGINE);
+        LOG.info("Using the " + engine + " place search engine");
+        if (IN_MEMORY_ENGINE.equals(engine)) {
+            return new InMemoryPlaceSearchEngine();
+        }
+        // Geo-location doesn't work under dev_server, so the distances the
+        // cache would recompute are meaningless there.
+        if (environment.value() == Development) {
+            return new SearchApiPlaceSearchEngine();
         }
-        return places;
+        return new CachingPlaceSearchEngine(new SearchApiPlaceSearchEngine());
     }
 
     /**
@@ -228,14 +285,7 @@ public final class PlacesHelper {
     static double getDistanceInKm(
             final double latitude1, final double longitude1,
             final double latitude2, final double longitude2) {
-
-        double lat1 = Math.toRadians(latitude1);
-        double lat2 = Math.toRadians(latitude2);
-        double long1 = Math.toRadians(longitude1);
-        double long2 = Math.toRadians(longitude2);
-
-        return EARTH_RADIUS * Math
-                .acos(Math.sin(lat1) * Math.sin(lat2) + Math.cos(lat1)
-                        * Math.cos(lat2) * Math.cos(Math.abs(long1 - long2)));
+        return GeoDistanceKernel.distanceInKm(latitude1, longitude1,
+                latitude2, longitude2);
     }
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Recent check-in times of each (user, place) pair, maintained on the
+ * check-in write path so the recommendation tasks can count the recent
+ * visits of a user without querying the datastore.
+ *
+ * The times are kept in memcache, shared by all the instances and updated
+ * with compare-and-set, and in a cache local to the instance. A pair missing
+ * from memcache is unknown rather than never visited: the callers fall back
+ * to the datastore then, and seed memcache with the result.
+ */
+public final class RecentVisits {
+
+    /**
+     * Log output.
+     */
+    private static final Logger LOG = Logger
+            .getLogger(RecentVisits.class.getName());
+
+    /**
+     * How long check-in times are kept; the windows counted must be shorter.
+     */
+    public static final long RETENTION_IN_MILLISECONDS =
+            TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * The maximum number of check-in times kept per pair, the most recent
+     * ones.
+     */
+    private static final int MAXIMUM_VISITS = 8;
+
+    /**
+     * The number of times a compare-and-set update is attempted.
+     */
+    private static final int UPDATE_ATTEMPTS = 3;
+
+    /**
+     * The maximum number of pairs kept in the cache local to the instance.
+     */
+    private static final int LOCAL_CAPACITY = 10000;
+
+    /**
+     * The memcache namespace of the check-in times.
+     */
+    private static final String NAMESPACE = "visits";
+
+    /**
+     * The check-in times read or written by this instance. A pair cached
+     * locally may miss the check-ins recorded by other instances, so only a
+     * count reaching the threshold can be answered from it.
+     */
+    private static final LocalCache<String, long[]> LOCAL_CACHE =
+            new LocalCache<>(LOCAL_CAPACITY, RETENTION_IN_MILLISECONDS);
+
+    /**
+     * The memcache service.
+     */
+    private static final MemcacheService MEMCACHE =
+            MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+
+    /**
+     * Default constructor, never called.
+     */
+    private RecentVisits() {
+    }
+
+    /**
+     * Records a check-in of a user at a place.
+     * @param userEmail the email of the user.
+     * @param placeId the identifier of the place.
+     * @param checkInDate the date of the check-in.
+     */
+    public static void record(final String userEmail, final String placeId,
+            final Date checkInDate) {
+        String key = getKey(userEmail, placeId);
+        long time = checkInDate.getTime();
+        try {
+            for (int attempt = 0; attempt < UPDATE_ATTEMPTS; attempt++) {
+                IdentifiableValue current = MEMCACHE.getIdentifiable(key);
+                long[] times;
+                boolean stored;
+                if (current == null) {
+                    // Nothing recorded for the pair in the retention period,
+                    // unless it was evicted; a count missing the evicted
+                    // times only lets a duplicate recommendation through.
+                    times = add(new long[0], time);
+                    stored = MEMCACHE.put(key, times, getExpiration(),
+                            SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+                } else {
+                    times = add((long[]) current.getValue(), time);
+                    stored = MEMCACHE.putIfUntouched(key, current, times,
+                            getExpiration());
+                }
+                if (stored) {
+                    LOCAL_CACHE.put(key, times);
+                    return;
+                }
+            }
+            // Contended: drop the pair so readers fall back to the datastore
+            // rather than miss this check-in.
+            MEMCACHE.delete(key);
+        } catch (RuntimeException e) {
+            LOG.warning("Could not record the check-in of " + userEmail
+                    + " at " + placeId + ": " + e);
+            try {
+                MEMCACHE.delete(key);
+            } catch (RuntimeException ignored) {
+                LOG.warning("Could not drop the check-ins of " + userEmail
+                        + " at " + placeId);
+            }
+        }
+        LOCAL_CACHE.remove(key);
+    }
+
+    /**
+     * Counts the recorded check-ins of a user at a place in a period.
+     * @param userEmail the email of the user.
+     * @param placeId the identifier of the place.
+     * @param dateFrom the start date of the check-ins counted, exclusive,
+     *      within the retention period.
+     * @param dateTo the end date of the check-ins counted, inclusive.
+     * @param threshold the count from which the exact number does not
+     *      matter to the caller, so it can be answered from the check-ins
+     *      known to the instance.
+     * @return the number of check-ins, capped at threshold if answered
+     *      locally, or -1 if the check-ins of the pair are unknown.
+     */
+    public static int count(final String userEmail, final String placeId,
+            final Date dateFrom, final Date dateTo, final int threshold) {
+        String key = getKey(userEmail, placeId);
+        long since = dateFrom.getTime();
+        long until = dateTo.getTime();
+        long[] times = LOCAL_CACHE.get(key);
+        if (times != null
+                && countBetween(times, since, until) >= threshold) {
+            return threshold;
+        }
+        try {
+            times = (long[]) MEMCACHE.get(key);
+        } catch (RuntimeException e) {
+            LOG.warning("Could not read the check-ins of " + userEmail
+                    + " at " + placeId + ": " + e);
+            return -1;
+        }
+        if (times == null) {
+            return -1;
+        }
+        LOCAL_CACHE.put(key, times);
+        return countBetween(times, since, until);
+    }
+
+    /**
+     * Seeds the check-in times of a pair missing from memcache, loaded from
+     * the datastore. Times recorded meanwhile are not overwritten.
+     * @param userEmail the email of the user.
+     * @param placeId the identifier of the place.
+     * @param checkInDates the dates of the check-ins of the pair in the
+     *      retention period.
+     */
+    public static void seed(final String userEmail, final String placeId,
+            final List<Date> checkInDates) {
+        long[] times = new long[0];
+        for (Date date : checkInDates) {
+            times = add(times, date.getTime());
+        }
+        try {
+            MEMCACHE.put(getKey(userEmail, placeId), times, getExpiration(),
+                    SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        } catch (RuntimeException e) {
+            LOG.warning("Could not seed the check-ins of " + userEmail
+                    + " at " + placeId + ": " + e);
+        }
+    }
+
+    /**
+     * Returns the memcache key of a pair.
+     * @param userEmail the email of the user.
+     * @param placeId the identifier of the place.
+     * @return the key.
+     */
+    private static String getKey(final String userEmail,
+            final String placeId) {
+        return placeId + ":" + userEmail;
+    }
+
+    /**
+     * Returns the memcache expiration of the check-in times just updated.
+     * @return the expiration.
+     */
+    private static Expiration getExpiration() {
+        return Expiration.byDeltaMillis((int) RETENTION_IN_MILLISECONDS);
+    }
+
+    /**
+     * Adds a check-in time to sorted times, dropping the times past the
+     * retention period and the oldest ones above MAXIMUM_VISITS.
+     * @param times the sorted times, not modified.
+     * @param time the time to add.
+     * @return the new sorted times.
+     */
+    private static long[] add(final long[] times, final long time) {
+        long oldest = System.currentTimeMillis() - RETENTION_IN_MILLISECONDS;
+        long[] result = new long[times.length + 1];
+        int count = 0;
+        for (long t : times) {
+            if (t >= oldest) {
+                result[count++] = t;
+            }
+        }
+        result[count++] = time;
+        Arrays.sort(result, 0, count);
+        return Arrays.copyOfRange(result, Math.max(0, count - MAXIMUM_VISITS),
+                count);
+    }
+
+    /**
+     * Counts the times in a period.
+     * @param times the sorted times.
+     * @param since the start of the period, exclusive.
+     * @param until the end of the period, inclusive.
+     * @return the number of times after since and up to until.
+     */
+    private static int countBetween(final long[] times, final long since,
+            final long until) {
+        int count = 0;
+        for (int i = times.length - 1; i >= 0 && times[i] > since; i--) {
+            if (times[i] <= until) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
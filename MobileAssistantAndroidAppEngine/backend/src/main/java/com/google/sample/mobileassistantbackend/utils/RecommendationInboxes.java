@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.sample.mobileassistantbackend.models.Recommendation;
+import com.google.sample.mobileassistantbackend.models.RecommendationInbox;
+import com.googlecode.objectify.VoidWork;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static com.google.sample.mobileassistantbackend.OfyService.ofy;
+
+/**
+ * The recommendation inboxes of the users. Adding recommendations to an
+ * inbox trims its expired recommendations and keeps the MAXIMUM_SIZE newest
+ * ones, so the inbox stays small however many check-ins the user makes.
+ */
+public final class RecommendationInboxes {
+
+    /**
+     * The maximum number of recommendations kept in an inbox.
+     */
+    public static final int MAXIMUM_SIZE = 20;
+
+    /**
+     * Default constructor, never called.
+     */
+    private RecommendationInboxes() {
+    }
+
+    /**
+     * Adds recommendations to the inbox of a user, in a transaction.
+     * @param userEmail the email of the user.
+     * @param recommendations the new recommendations, newest first.
+     */
+    public static void add(final String userEmail,
+            final List<Recommendation> recommendations) {
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                RecommendationInbox inbox = ofy().load()
+                        .type(RecommendationInbox.class).id(userEmail).now();
+                List<Recommendation> previous = new ArrayList<>();
+                if (inbox == null) {
+                    inbox = new RecommendationInbox();
+                    inbox.setUserEmail(userEmail);
+                } else {
+                    previous = inbox.getRecommendations();
+                }
+
+                List<Recommendation> kept = new ArrayList<>(MAXIMUM_SIZE);
+                Date now = new Date();
+                select(recommendations, now, kept);
+                select(previous, now, kept);
+                inbox.setRecommendations(kept);
+                ofy().save().entity(inbox);
+            }
+        });
+    }
+
+    /**
+     * Lists the unexpired recommendations of a user for a place.
+     * @param userEmail the email of the user.
+     * @param placeId the identifier of the place.
+     * @return the recommendations of the place and those that apply to all
+     *      places, newest first.
+     */
+    public static List<Recommendation> list(final String userEmail,
+            final Long placeId) {
+        List<Recommendation> result = new ArrayList<>();
+        RecommendationInbox inbox = ofy().load()
+                .type(RecommendationInbox.class).id(userEmail).now();
+        if (inbox == null) {
+            return result;
+        }
+        Date now = new Date();
+        for (Recommendation recommendation : inbox.getRecommendations()) {
+            if (recommendation.getExpiration().after(now)
+                    && (recommendation.getPlaceId() == null
+                    || recommendation.getPlaceId().equals(placeId))) {
+                result.add(recommendation);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Selects unexpired recommendations, up to MAXIMUM_SIZE in all.
+     * @param recommendations the recommendations to select from.
+     * @param now the current date.
+     * @param kept receives the selected recommendations.
+     */
+    private static void select(final List<Recommendation> recommendations,
+            final Date now, final List<Recommendation> kept) {
+        for (Recommendation recommendation : recommendations) {
+            if (kept.size() == MAXIMUM_SIZE) {
+                return;
+            }
+            if (recommendation.getExpiration() != null
+                    && recommendation.getExpiration().after(now)) {
+                kept.add(recommendation);
+            }
+        }
+    }
+}
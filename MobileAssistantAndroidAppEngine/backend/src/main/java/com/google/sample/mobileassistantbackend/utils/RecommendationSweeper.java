@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.sample.mobileassistantbackend.models.Recommendation;
+import com.google.sample.mobileassistantbackend.models.RecommendationSweepState;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.cmd.Query;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static com.google.sample.mobileassistantbackend.OfyService.ofy;
+
+/**
+ * Sweep deleting the expired recommendations, which would otherwise be kept
+ * forever.
+ *
+ * A sweep deletes the recommendations that expired before its cutoff date,
+ * found with a keys-only query, in batches deleted asynchronously with a few
+ * batches in flight. The cursor of the query is checkpointed in the
+ * RecommendationSweepState entity as batches are acknowledged, so a sweep
+ * cut short by its deadline resumes where it stopped. The recommendation
+ * templates are never deleted.
+ */
+public final class RecommendationSweeper {
+
+    /**
+     * Log output.
+     */
+    private static final Logger LOG = Logger
+            .getLogger(RecommendationSweeper.class.getName());
+
+    /**
+     * The number of keys per delete call, and per datastore batch of the
+     * keys-only query.
+     */
+    private static final int KEYS_PER_DELETE = 500;
+
+    /**
+     * The maximum number of delete calls in flight.
+     */
+    private static final int DELETES_IN_FLIGHT = 4;
+
+    /**
+     * Default constructor, never called.
+     */
+    private RecommendationSweeper() {
+    }
+
+    /**
+     * Deletes the expired recommendations, resuming the sweep in progress
+     * if any.
+     * @param deadline the time no new batch is started after.
+     * @return the number of recommendations deleted.
+     */
+    public static long run(final long deadline) {
+        RecommendationSweepState state = ofy().load()
+                .type(RecommendationSweepState.class)
+                .id(RecommendationSweepState.SINGLETON_ID).now();
+        if (state == null) {
+            state = new RecommendationSweepState();
+        }
+        if (state.getCutoff() == null) {
+            state.setCutoff(new Date());
+            state.setCursor(null);
+        }
+
+        Query<Recommendation> query = ofy().load().type(Recommendation.class)
+                .filter("expiration <", state.getCutoff())
+                .chunk(KEYS_PER_DELETE);
+        if (state.getCursor() != null) {
+            query = query.startAt(Cursor.fromWebSafeString(state.getCursor()));
+        }
+        QueryResultIterator<Key<Recommendation>> iterator = query.keys()
+                .iterator();
+
+        long deleted = 0;
+        boolean complete = true;
+        Deque<Batch> inFlight = new ArrayDeque<>();
+        List<Key<Recommendation>> keys = new ArrayList<>(KEYS_PER_DELETE);
+        while (iterator.hasNext()) {
+            Key<Recommendation> key = iterator.next();
+            if (!RecommendationTemplates.isTemplate(key.getName())) {
+                keys.add(key);
+            }
+            if (keys.size() < KEYS_PER_DELETE) {
+                continue;
+            }
+
+            inFlight.addLast(new Batch(ofy().delete().keys(keys), keys.size(),
+                    iterator.getCursor().toWebSafeString()));
+            keys = new ArrayList<>(KEYS_PER_DELETE);
+            if (inFlight.size() >= DELETES_IN_FLIGHT) {
+                deleted += checkpoint(state, inFlight.removeFirst());
+            }
+            if (System.currentTimeMillis() >= deadline
+                    && iterator.hasNext()) {
+                complete = false;
+                break;
+            }
+        }
+        if (!keys.isEmpty()) {
+            inFlight.addLast(new Batch(ofy().delete().keys(keys), keys.size(),
+                    iterator.getCursor().toWebSafeString()));
+        }
+        while (!inFlight.isEmpty()) {
+            deleted += checkpoint(state, inFlight.removeFirst());
+        }
+
+        if (complete) {
+            LOG.info("Swept the recommendations expired before "
+                    + state.getCutoff());
+            state.setCutoff(null);
+            state.setCursor(null);
+            ofy().save().entity(state).now();
+        }
+        Metrics.increment(Metrics.RECOMMENDATIONS_SWEPT, deleted);
+        return deleted;
+    }
+
+    /**
+     * Waits for a delete call and checkpoints the sweep after it.
+     * @param state the state of the sweep.
+     * @param batch the delete call.
+     * @return the number of recommendations deleted.
+     */
+    private static int checkpoint(final RecommendationSweepState state,
+            final Batch batch) {
+        batch.result.now();
+        state.setCursor(batch.cursor);
+        ofy().save().entity(state);
+        return batch.size;
+    }
+
+    /**
+     * A delete call in flight.
+     */
+    private static final class Batch {
+
+        /**
+         * The result of the delete call.
+         */
+        private final Result<Void> result;
+
+        /**
+         * The number of keys deleted.
+         */
+        private final int size;
+
+        /**
+         * The cursor of the query after the keys deleted.
+         */
+        private final String cursor;
+
+        /**
+         * Creates a batch.
+         * @param pResult the result of the delete call.
+         * @param pSize the number of keys deleted.
+         * @param pCursor the cursor of the query after the keys deleted.
+         */
+        Batch(final Result<Void> pResult, final int pSize,
+                final String pCursor) {
+            this.result = pResult;
+            this.size = pSize;
+            this.cursor = pCursor;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.sample.mobileassistantbackend.models.Recommendation;
+
+import java.util.ArrayList;
+import java.util.IllegalFormatException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Recommendation template compiled for generating recommendations: its title
+ * is split once, and its description and image URL patterns are parsed once
+ * into formatters.
+ *
+ * A template is a Recommendation entity whose title holds the title of the
+ * generated recommendations and the name of the first product, separated by
+ * a semicolon, whose description is a pattern taking the regular and reduced
+ * prices, and whose image URL is a pattern taking the number of an image.
+ */
+public final class RecommendationTemplate {
+
+    /**
+     * The separator of the title and the product name in the template title.
+     */
+    private static final String TITLE_SEPARATOR = ";";
+
+    /**
+     * The number of parts of the template title.
+     */
+    private static final int TITLE_PARTS = 2;
+
+    /**
+     * Sample arguments validating the description pattern.
+     */
+    private static final Object[] SAMPLE_PRICES = {1, 1};
+
+    /**
+     * Sample arguments validating the image URL pattern.
+     */
+    private static final Object[] SAMPLE_IMAGE = {1};
+
+    /**
+     * The title of the generated recommendations.
+     */
+    private final String title;
+
+    /**
+     * The name of the first product of the generated recommendations.
+     */
+    private final String productName;
+
+    /**
+     * The formatter of the descriptions.
+     */
+    private final Formatter description;
+
+    /**
+     * The formatter of the image URLs.
+     */
+    private final Formatter imageUrl;
+
+    /**
+     * Creates a compiled template.
+     * @param pTitle the title of the generated recommendations.
+     * @param pProductName the name of the first product.
+     * @param pDescription the formatter of the descriptions.
+     * @param pImageUrl the formatter of the image URLs.
+     */
+    private RecommendationTemplate(final String pTitle,
+            final String pProductName, final Formatter pDescription,
+            final Formatter pImageUrl) {
+        this.title = pTitle;
+        this.productName = pProductName;
+        this.description = pDescription;
+        this.imageUrl = pImageUrl;
+    }
+
+    /**
+     * Compiles a template.
+     * @param template the template entity.
+     * @return the compiled template.
+     * @throws IllegalArgumentException if the template is invalid.
+     */
+    public static RecommendationTemplate compile(
+            final Recommendation template) {
+        if (template.getTitle() == null || template.getDescription() == null
+                || template.getImageUrl() == null) {
+            throw new IllegalArgumentException("Incomplete template");
+        }
+        String[] titleParts = template.getTitle().split(TITLE_SEPARATOR);
+        if (titleParts.length != TITLE_PARTS) {
+            throw new IllegalArgumentException("The title should have two "
+                    + "parts separated by a semicolon");
+        }
+        return new RecommendationTemplate(titleParts[0], titleParts[1],
+                Formatter.compile(template.getDescription(), SAMPLE_PRICES),
+                Formatter.compile(template.getImageUrl(), SAMPLE_IMAGE));
+    }
+
+    /**
+     * Returns the title of the generated recommendations.
+     * @return the title.
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Returns the name of the first product of the generated
+     * recommendations.
+     * @return the product name.
+     */
+    public String getProductName() {
+        return productName;
+    }
+
+    /**
+     * Formats the description of a recommendation.
+     * @param regularPrice the regular price.
+     * @param reducedPrice the reduced price.
+     * @return the description.
+     */
+    public String formatDescription(final int regularPrice,
+            final int reducedPrice) {
+        return description.format(regularPrice, reducedPrice);
+    }
+
+    /**
+     * Formats the image URL of a recommendation.
+     * @param image the number of the image.
+     * @return the image URL.
+     */
+    public String formatImageUrl(final int image) {
+        return imageUrl.format(image);
+    }
+
+    /**
+     * A String.format pattern parsed once. Patterns only made of %s, %d, %%
+     * and %n conversions without flags, width or index, the usual ones, are
+     * formatted by concatenating their literal parts and arguments; the
+     * others are passed to String.format.
+     */
+    static final class Formatter {
+
+        /**
+         * The literal parts of the pattern, around the arguments; null if
+         * the pattern is formatted by String.format.
+         */
+        private final String[] literals;
+
+        /**
+         * The pattern, for String.format.
+         */
+        private final String pattern;
+
+        /**
+         * Creates a formatter.
+         * @param pLiterals the literal parts of the pattern, or null.
+         * @param pPattern the pattern.
+         */
+        private Formatter(final String[] pLiterals, final String pPattern) {
+            this.literals = pLiterals;
+            this.pattern = pPattern;
+        }
+
+        /**
+         * Parses a pattern.
+         * @param pattern the String.format pattern.
+         * @param sampleArguments arguments validating the pattern.
+         * @return the formatter.
+         * @throws IllegalArgumentException if the pattern is invalid for
+         *      the sample arguments.
+         */
+        static Formatter compile(final String pattern,
+                final Object[] sampleArguments) {
+            try {
+                String.format(Locale.ROOT, pattern, sampleArguments);
+            } catch (IllegalFormatException e) {
+                throw new IllegalArgumentException("Invalid pattern "
+                        + pattern, e);
+            }
+
+            List<String> parts = new ArrayList<>();
+            StringBuilder literal = new StringBuilder();
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c != '%') {
+                    literal.append(c);
+                    continue;
+                }
+                char conversion = ++i < pattern.length()
+                        ? pattern.charAt(i) : 0;
+                if (conversion == '%') {
+                    literal.append('%');
+                } else if (conversion == 'n') {
+                    literal.append(System.lineSeparator());
+                } else if (conversion == 's' || conversion == 'd') {
+                    parts.add(literal.toString());
+                    literal.setLength(0);
+                } else {
+                    return new Formatter(null, pattern);
+                }
+            }
+            parts.add(literal.toString());
+            if (parts.size() - 1 != sampleArguments.length) {
+                // Unused arguments are allowed by String.format.
+                return new Formatter(null, pattern);
+            }
+            return new Formatter(parts.toArray(new String[parts.size()]),
+                    pattern);
+        }
+
+        /**
+         * Formats arguments.
+         * @param arguments the arguments, as many as the sample arguments.
+         * @return the formatted string.
+         */
+        String format(final Object... arguments) {
+            if (literals == null) {
+                return String.format(pattern, arguments);
+            }
+            StringBuilder result = new StringBuilder(literals[0]);
+            for (int i = 0; i < arguments.length; i++) {
+                result.append(arguments[i]).append(literals[i + 1]);
+            }
+            return result.toString();
+        }
+    }
+}
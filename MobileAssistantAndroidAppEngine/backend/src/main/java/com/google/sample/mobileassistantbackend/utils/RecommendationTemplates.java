@@ -0,0 +1,226 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.sample.mobileassistantbackend.models.Recommendation;
+import com.google.sample.mobileassistantbackend.models.RecommendationTemplateVersion;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static com.google.sample.mobileassistantbackend.OfyService.ofy;
+
+/**
+ * Registry of the recommendation templates, compiled once per instance.
+ *
+ * The templates are the Recommendation entities whose identifiers start
+ * with TEMPLATE_PREFIX. Changing one must go through templateChanged, which
+ * increments the version stamped in the RecommendationTemplateVersion
+ * entity; the instances check the stamp every few seconds and load the
+ * templates again when it changed.
+ */
+public final class RecommendationTemplates {
+
+    /**
+     * Log output.
+     */
+    private static final Logger LOG = Logger
+            .getLogger(RecommendationTemplates.class.getName());
+
+    /**
+     * The prefix of the identifiers of the templates.
+     */
+    public static final String TEMPLATE_PREFIX = "template";
+
+    /**
+     * The identifier of the template used for the places without their own.
+     */
+    public static final String DEFAULT_TEMPLATE_ID = "template1";
+
+    /**
+     * The prefix of the identifiers of the templates of specific places,
+     * followed by the identifier of the place.
+     */
+    private static final String PLACE_TEMPLATE_PREFIX = "template-";
+
+    /**
+     * How long the version stamp is trusted before being checked again.
+     */
+    private static final long VERSION_CHECK_INTERVAL_IN_MILLISECONDS =
+            TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * The character following all the characters allowed in identifiers,
+     * bounding the key range of the templates.
+     */
+    private static final char LAST_CHARACTER = '\uffff';
+
+    /**
+     * The compiled templates by identifier, with the version they were
+     * loaded at.
+     */
+    private static volatile Snapshot snapshot;
+
+    /**
+     * The time the version stamp must be checked again at.
+     */
+    private static volatile long nextVersionCheck;
+
+    /**
+     * Default constructor, never called.
+     */
+    private RecommendationTemplates() {
+    }
+
+    /**
+     * Returns the template of a place: the template identified by
+     * template-{placeId} if there is one, the default template otherwise.
+     * @param placeId the identifier of the place.
+     * @return the compiled template, or null if there is none.
+     */
+    public static RecommendationTemplate getForPlace(final String placeId) {
+        Map<String, RecommendationTemplate> templates = getSnapshot()
+                .templates;
+        RecommendationTemplate template = templates.get(
+                PLACE_TEMPLATE_PREFIX + placeId);
+        if (template == null) {
+            template = templates.get(DEFAULT_TEMPLATE_ID);
+        }
+        return template;
+    }
+
+    /**
+     * Tells whether a Recommendation entity is a template.
+     * @param id the identifier of the entity.
+     * @return true if it is a template.
+     */
+    public static boolean isTemplate(final String id) {
+        return id != null && id.startsWith(TEMPLATE_PREFIX);
+    }
+
+    /**
+     * Records that a template changed, so all the instances load them
+     * again within VERSION_CHECK_INTERVAL, and this one right away.
+     */
+    public static void templateChanged() {
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                RecommendationTemplateVersion version = loadVersion();
+                version.setVersion(version.getVersion() + 1);
+                ofy().save().entity(version);
+            }
+        });
+        nextVersionCheck = 0;
+    }
+
+    /**
+     * Returns the current templates, loading them if the version stamp
+     * changed.
+     * @return the current templates.
+     */
+    private static Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        long now = System.currentTimeMillis();
+        if (current != null && now < nextVersionCheck) {
+            return current;
+        }
+        synchronized (RecommendationTemplates.class) {
+            if (snapshot == null || now >= nextVersionCheck) {
+                long version = loadVersion().getVersion();
+                if (snapshot == null || snapshot.version != version) {
+                    snapshot = load(version);
+                }
+                nextVersionCheck = now + VERSION_CHECK_INTERVAL_IN_MILLISECONDS;
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Loads and compiles the templates. Invalid templates are skipped.
+     * @param version the version of the templates.
+     * @return the templates.
+     */
+    private static Snapshot load(final long version) {
+        Map<String, RecommendationTemplate> templates = new HashMap<>();
+        for (Recommendation template : ofy().load()
+                .type(Recommendation.class)
+                .filterKey(">=", Key.create(Recommendation.class,
+                        TEMPLATE_PREFIX))
+                .filterKey("<", Key.create(Recommendation.class,
+                        TEMPLATE_PREFIX + LAST_CHARACTER))) {
+            String id = Key.create(template).getName();
+            try {
+                templates.put(id, RecommendationTemplate.compile(template));
+            } catch (IllegalArgumentException e) {
+                LOG.warning("Skipping invalid recommendation template " + id
+                        + ": " + e.getMessage());
+            }
+        }
+        LOG.info("Loaded " + templates.size()
+                + " recommendation templates, version " + version);
+        return new Snapshot(version, Collections.unmodifiableMap(templates));
+    }
+
+    /**
+     * Loads the version stamp, from memcache if possible.
+     * @return the version stamp, new if there is none.
+     */
+    private static RecommendationTemplateVersion loadVersion() {
+        RecommendationTemplateVersion version = ofy().load()
+                .type(RecommendationTemplateVersion.class)
+                .id(RecommendationTemplateVersion.SINGLETON_ID).now();
+        if (version == null) {
+            version = new RecommendationTemplateVersion();
+        }
+        return version;
+    }
+
+    /**
+     * The compiled templates of a version.
+     */
+    private static final class Snapshot {
+
+        /**
+         * The version of the templates.
+         */
+        private final long version;
+
+        /**
+         * The compiled templates by identifier.
+         */
+        private final Map<String, RecommendationTemplate> templates;
+
+        /**
+         * Creates a snapshot.
+         * @param pVersion the version of the templates.
+         * @param pTemplates the compiled templates by identifier.
+         */
+        Snapshot(final long pVersion,
+                final Map<String, RecommendationTemplate> pTemplates) {
+            this.version = pVersion;
+            this.templates = pTemplates;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.sample.mobileassistantbackend.models.PlaceInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A corridor of a given width around a route, given as a polyline.
+ *
+ * Each segment is measured in an equirectangular projection centered on its
+ * own latitude, which is accurate for the segment lengths of road routes.
+ * The position of a location along the route is the route distance from the
+ * start to the point of the route nearest to the location.
+ */
+final class RouteCorridor {
+
+    /**
+     * The number of degrees of longitude around the globe.
+     */
+    private static final double FULL_TURN_IN_DEGREES = 360;
+
+    /**
+     * The latitudes of the route vertices.
+     */
+    private final double[] latitudes;
+
+    /**
+     * The longitudes of the route vertices.
+     */
+    private final double[] longitudes;
+
+    /**
+     * The route distance from the start to each vertex, in kilometers.
+     */
+    private final double[] offsets;
+
+    /**
+     * The maximum distance to the route, in kilometers.
+     */
+    private final double widthInKm;
+
+    /**
+     * Creates a corridor.
+     * @param route the vertices of the route, at least one.
+     * @param pWidthInKm the maximum distance to the route, in kilometers.
+     */
+    RouteCorridor(final List<GeoPt> route, final double pWidthInKm) {
+        int size = route.size();
+        latitudes = new double[size];
+        longitudes = new double[size];
+        offsets = new double[size];
+        for (int i = 0; i < size; i++) {
+            latitudes[i] = route.get(i).getLatitude();
+            longitudes[i] = route.get(i).getLongitude();
+            if (i > 0) {
+                offsets[i] = offsets[i - 1] + GeoDistanceKernel.distanceInKm(
+                        latitudes[i - 1], longitudes[i - 1], latitudes[i],
+                        longitudes[i]);
+            }
+        }
+        widthInKm = pWidthInKm;
+    }
+
+    /**
+     * Returns the maximum distance to the route.
+     * @return the maximum distance, in kilometers.
+     */
+    double getWidthInKm() {
+        return widthInKm;
+    }
+
+    /**
+     * Returns the number of route segments.
+     * @return the number of segments; a single vertex counts as one empty
+     *      segment.
+     */
+    int getSegmentCount() {
+        return Math.max(1, latitudes.length - 1);
+    }
+
+    /**
+     * Returns the length of the route.
+     * @return the length, in kilometers.
+     */
+    double getLengthInKm() {
+        return offsets[offsets.length - 1];
+    }
+
+    /**
+     * Returns the length of a segment.
+     * @param segment the index of the segment.
+     * @return the length, in kilometers.
+     */
+    double getSegmentLengthInKm(final int segment) {
+        return offsets[end(segment)] - offsets[segment];
+    }
+
+    /**
+     * Returns the latitude of a point of a segment.
+     * @param segment the index of the segment.
+     * @param fraction the position of the point, from 0 at the start of the
+     *      segment to 1 at its end.
+     * @return the latitude of the point.
+     */
+    double getLatitude(final int segment, final double fraction) {
+        return latitudes[segment]
+                + fraction * (latitudes[end(segment)] - latitudes[segment]);
+    }
+
+    /**
+     * Returns the longitude of a point of a segment. Segments crossing the
+     * antimeridian return longitudes beyond [-180, 180].
+     * @param segment the index of the segment.
+     * @param fraction the position of the point, from 0 at the start of the
+     *      segment to 1 at its end.
+     * @return the longitude of the point.
+     */
+    double getLongitude(final int segment, final double fraction) {
+        return longitudes[segment] + fraction * wrap(
+                longitudes[end(segment)] - longitudes[segment]);
+    }
+
+    /**
+     * Returns the position of a location along the route.
+     * @param latitude the latitude of the location.
+     * @param longitude the longitude of the location.
+     * @return the route distance from the start to the point of the route
+     *      nearest to the location, in kilometers, or -1 if the location is
+     *      farther than the width of the corridor from the route.
+     */
+    double locate(final double latitude, final double longitude) {
+        double maxSquared = widthInKm * widthInKm;
+        double bestSquared = Double.MAX_VALUE;
+        double bestPosition = -1;
+        for (int i = 0; i < getSegmentCount(); i++) {
+            int end = end(i);
+            double scale = PlaceSpatialIndex.KM_PER_DEGREE * Math.cos(
+                    Math.toRadians((latitudes[i] + latitudes[end]) / 2));
+            double segmentX = wrap(longitudes[end] - longitudes[i]) * scale;
+            double segmentY = (latitudes[end] - latitudes[i])
+                    * PlaceSpatialIndex.KM_PER_DEGREE;
+            double pointX = wrap(longitude - longitudes[i]) * scale;
+            double pointY = (latitude - latitudes[i])
+                    * PlaceSpatialIndex.KM_PER_DEGREE;
+
+            double lengthSquared = segmentX * segmentX + segmentY * segmentY;
+            double fraction = 0;
+            if (lengthSquared > 0) {
+                fraction = Math.min(1, Math.max(0, (pointX * segmentX
+                        + pointY * segmentY) / lengthSquared));
+            }
+            double dx = pointX - fraction * segmentX;
+            double dy = pointY - fraction * segmentY;
+            double distanceSquared = dx * dx + dy * dy;
+            if (distanceSquared <= maxSquared
+                    && distanceSquared < bestSquared) {
+                bestSquared = distanceSquared;
+                bestPosition = offsets[i]
+                        + fraction * getSegmentLengthInKm(i);
+            }
+        }
+        return bestPosition;
+    }
+
+    /**
+     * Returns points spread along the route, including its start and end.
+     * @param spacingInKm the maximum route distance between two points.
+     * @return the points.
+     */
+    List<GeoPt> sample(final double spacingInKm) {
+        List<GeoPt> points = new ArrayList<>();
+        points.add(new GeoPt((float) latitudes[0], (float) longitudes[0]));
+        for (int i = 0; i < latitudes.length - 1; i++) {
+            int steps = Math.max(1, (int) Math.ceil(
+                    getSegmentLengthInKm(i) / spacingInKm));
+            for (int step = 1; step <= steps; step++) {
+                double fraction = (double) step / steps;
+                points.add(new GeoPt((float) getLatitude(i, fraction),
+                        (float) wrap(getLongitude(i, fraction))));
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Orders places by position along the route and keeps the first ones.
+     * @param places the places, whose distance is their position along the
+     *      route.
+     * @param resultCount the maximum number of places returned.
+     * @return up to resultCount places, in route order.
+     */
+    static List<PlaceInfo> inRouteOrder(final List<PlaceInfo> places,
+            final int resultCount) {
+        Collections.sort(places, new Comparator<PlaceInfo>() {
+            @Override
+            public int compare(final PlaceInfo p1, final PlaceInfo p2) {
+                int result = Double.compare(p1.getDistanceInKilometers(),
+                        p2.getDistanceInKilometers());
+                if (result == 0) {
+                    result = p1.getPlaceId().compareTo(p2.getPlaceId());
+                }
+                return result;
+            }
+        });
+        if (places.size() > resultCount) {
+            return new ArrayList<>(places.subList(0, resultCount));
+        }
+        return places;
+    }
+
+    /**
+     * Returns the index of the last vertex of a segment.
+     * @param segment the index of the segment.
+     * @return the index of its last vertex.
+     */
+    private int end(final int segment) {
+        return Math.min(segment + 1, latitudes.length - 1);
+    }
+
+    /**
+     * Brings a longitude, or a longitude difference, into [-180, 180].
+     * @param delta the longitude or longitude difference, in degrees.
+     * @return the equivalent value.
+     */
+    private static double wrap(final double delta) {
+        return delta - FULL_TURN_IN_DEGREES
+                * Math.floor(delta / FULL_TURN_IN_DEGREES + 0.5);
+    }
+}
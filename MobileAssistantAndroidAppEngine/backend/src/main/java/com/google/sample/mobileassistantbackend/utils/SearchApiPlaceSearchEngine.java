@@ -0,0 +1,376 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.search.Cursor;
+import com.google.appengine.api.search.GeoPoint;
+import com.google.appengine.api.search.Index;
+import com.google.appengine.api.search.Query;
+import com.google.appengine.api.search.QueryOptions;
+import com.google.appengine.api.search.Results;
+import com.google.appengine.api.search.ScoredDocument;
+import com.google.appengine.api.search.SearchServiceException;
+import com.google.appengine.api.search.SortExpression;
+import com.google.appengine.api.search.SortOptions;
+import com.google.sample.mobileassistantbackend.models.PlaceInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import static com.google.appengine.api.utils.
+        SystemProperty.Environment.Value.Development;
+import static com.google.appengine.api.utils.SystemProperty.environment;
+
+/**
+ * PlaceSearchEngine answering queries with the App Engine Search API Places
+ * index.
+ */
+public final class SearchApiPlaceSearchEngine implements PlaceSearchEngine {
+
+    /**
+     * Log output.
+     */
+    private static final Logger LOG = Logger
+            .getLogger(SearchApiPlaceSearchEngine.class.getName());
+
+    /**
+     * The double precision to use for comparisons.
+     */
+    private static final double EPSILON = 0.0001;
+
+    /**
+     * The number of meters in a kilometer.
+     */
+    private static final int METERS_IN_KILOMETER = 1000;
+
+    /**
+     * A fake distance used in the dev environment.
+     */
+    private static  final int FAKE_DISTANCE_FOR_DEV = 5;
+
+    /**
+     * The maximum number of documents the Search API sorts.
+     */
+    private static final int MAXIMUM_SORTED_DOCUMENTS = 10000;
+
+    /**
+     * The maximum number of circles searched to cover a route corridor.
+     */
+    private static final int MAXIMUM_ROUTE_SAMPLES = 200;
+
+    /**
+     * The minimum distance between the centers of the circles covering a
+     * route corridor, in kilometers.
+     */
+    private static final double MINIMUM_SAMPLE_SPACING_IN_KM = 0.1;
+
+    /**
+     * The prefix of the cursors created by this engine.
+     */
+    private static final String CURSOR_PREFIX = "s";
+
+    @Override
+    public List<PlaceInfo> getPlaces(final GeoPt location,
+            final long distanceInMeters, final int resultCount) {
+        Results<ScoredDocument> results = PlacesHelper.getIndex().search(
+                buildNearestQuery(location, distanceInMeters, resultCount));
+        return toNearest(results, location, distanceInMeters, resultCount);
+    }
+
+    @Override
+    public List<List<PlaceInfo>> getPlacesBatch(
+            final List<NearbyQuery> queries) {
+        // Start one search per distinct query, so they all run concurrently.
+        Index index = PlacesHelper.getIndex();
+        Map<NearbyQuery, Future<Results<ScoredDocument>>> searches =
+                new LinkedHashMap<>();
+        for (NearbyQuery query : queries) {
+            if (!searches.containsKey(query)) {
+                searches.put(query, index.searchAsync(buildNearestQuery(
+                        query.getLocation(), query.getDistanceInMeters(),
+                        query.getResultCount())));
+            }
+        }
+
+        Map<NearbyQuery, List<PlaceInfo>> places = new HashMap<>();
+        for (Map.Entry<NearbyQuery, Future<Results<ScoredDocument>>> search
+                : searches.entrySet()) {
+            NearbyQuery query = search.getKey();
+            places.put(query, toNearest(getResults(search.getValue()),
+                    query.getLocation(), query.getDistanceInMeters(),
+                    query.getResultCount()));
+        }
+
+        List<List<PlaceInfo>> results = new ArrayList<>(queries.size());
+        for (NearbyQuery query : queries) {
+            results.add(new ArrayList<>(places.get(query)));
+        }
+        return results;
+    }
+
+    @Override
+    public List<PlaceInfo> getPlacesAlongRoute(final List<GeoPt> route,
+            final double widthInKm, final int resultCount) {
+        // The index has no polyline queries, so cover the corridor with
+        // circles centered along the route, searched concurrently. Circles
+        // of radius sqrt(2) * w spaced by 2 * w cover a corridor of width w.
+        RouteCorridor corridor = new RouteCorridor(route, widthInKm);
+        double spacing = Math.max(MINIMUM_SAMPLE_SPACING_IN_KM, Math.max(
+                2 * widthInKm,
+                corridor.getLengthInKm() / (MAXIMUM_ROUTE_SAMPLES - 1)));
+        long radiusInMeters = (long) Math.ceil(METERS_IN_KILOMETER
+                * Math.hypot(widthInKm, spacing / 2));
+        List<NearbyQuery> queries = new ArrayList<>();
+        for (GeoPt sample : corridor.sample(spacing)) {
+            queries.add(new NearbyQuery(sample, radiusInMeters, resultCount));
+        }
+
+        Map<Long, PlaceInfo> found = new HashMap<>();
+        for (List<PlaceInfo> places : getPlacesBatch(queries)) {
+            for (PlaceInfo place : places) {
+                if (found.containsKey(place.getPlaceId())) {
+                    continue;
+                }
+                double position = corridor.locate(
+                        place.getLocation().getLatitude(),
+                        place.getLocation().getLongitude());
+                if (position >= 0) {
+                    place.setDistanceInKilometers(position);
+                    found.put(place.getPlaceId(), place);
+                }
+            }
+        }
+        return RouteCorridor.inRouteOrder(new ArrayList<>(found.values()),
+                resultCount);
+    }
+
+    @Override
+    public PlacePage getPlacesPage(final GeoPt location,
+            final long distanceInMeters, final int pageSize,
+            final String cursor) {
+        Cursor searchCursor;
+        if (cursor == null) {
+            searchCursor = Cursor.newBuilder().build();
+        } else {
+            if (!cursor.startsWith(CURSOR_PREFIX)) {
+                throw new IllegalArgumentException("Invalid cursor " + cursor);
+            }
+            searchCursor = Cursor.newBuilder()
+                    .build(cursor.substring(CURSOR_PREFIX.length()));
+        }
+
+        // The Search API only sorts the first SortOptions limit documents, so
+        // sort as many as it allows to be able to page through all of them.
+        QueryOptions options = QueryOptions.newBuilder()
+                .setSortOptions(buildSortOptions(location, distanceInMeters,
+                        MAXIMUM_SORTED_DOCUMENTS))
+                .setLimit(pageSize)
+                .setCursor(searchCursor)
+                .build();
+
+        Query query = Query.newBuilder().setOptions(options)
+                .build(buildSearchQuery(location, distanceInMeters));
+
+        Results<ScoredDocument> results = PlacesHelper.getIndex().search(query);
+
+        String nextCursor = null;
+        if (results.getCursor() != null) {
+            nextCursor = CURSOR_PREFIX + results.getCursor().toWebSafeString();
+        }
+        return new PlacePage(toPlaceInfos(results, location, distanceInMeters,
+                pageSize), nextCursor);
+    }
+
+    /**
+     * Builds the query of the places nearest to a location.
+     * @param location the location to search around.
+     * @param distanceInMeters the maximum distance to the location.
+     * @param resultCount the maximum number of places returned.
+     * @return the query.
+     */
+    static Query buildNearestQuery(final GeoPt location,
+            final long distanceInMeters, final int resultCount) {
+        // Build the SortOptions with 2 sort keys
+        SortOptions sortOptions = buildSortOptions(location, distanceInMeters,
+                resultCount);
+        // Build the QueryOptions
+        QueryOptions options = QueryOptions.newBuilder()
+                .setSortOptions(sortOptions)
+                .setLimit(resultCount)
+                .build();
+
+        return Query.newBuilder().setOptions(options)
+                .build(buildSearchQuery(location, distanceInMeters));
+    }
+
+    /**
+     * Converts the results of a nearest places query into PlaceInfo objects.
+     * @param results the search results.
+     * @param location the location searched around.
+     * @param distanceInMeters the maximum distance to the location.
+     * @param resultCount the maximum number of places returned.
+     * @return the places.
+     */
+    private static List<PlaceInfo> toNearest(
+            final Results<ScoredDocument> results, final GeoPt location,
+            final long distanceInMeters, final int resultCount) {
+        Results<ScoredDocument> found = results;
+        if (found.getNumberFound() == 0) {
+            // geo-location doesn't work under dev_server
+            if (environment.value() == Development) {
+                // return all documents
+                found = PlacesHelper.getIndex().search("value > 0");
+            }
+        }
+
+        return toPlaceInfos(found, location, distanceInMeters, resultCount);
+    }
+
+    /**
+     * Waits for the results of an asynchronous search.
+     * @param search the pending search.
+     * @return the search results.
+     */
+    private static Results<ScoredDocument> getResults(
+            final Future<Results<ScoredDocument>> search) {
+        try {
+            return search.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new SearchServiceException("Search failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SearchServiceException("Search interrupted", e);
+        }
+    }
+
+    /**
+     * Builds the options sorting documents by distance to a location.
+     * @param location the location to search around.
+     * @param distanceInMeters the maximum distance to the location.
+     * @param limit the maximum number of documents to sort.
+     * @return the sort options.
+     */
+    private static SortOptions buildSortOptions(final GeoPt location,
+            final long distanceInMeters, final int limit) {
+        String locExpr = "distance(place_location, " + toGeoPoint(location)
+                + ")";
+
+        return SortOptions.newBuilder()
+                .addSortExpression(SortExpression.newBuilder()
+                        .setExpression(locExpr)
+                        .setDirection(SortExpression.SortDirection.ASCENDING)
+                        .setDefaultValueNumeric(distanceInMeters + 1))
+                .setLimit(limit)
+                .build();
+    }
+
+    /**
+     * Builds the query string matching documents close to a location.
+     * @param location the location to search around.
+     * @param distanceInMeters the maximum distance to the location.
+     * @return the query string.
+     */
+    private static String buildSearchQuery(final GeoPt location,
+            final long distanceInMeters) {
+        return "distance(place_location, " + toGeoPoint(location) + ") < "
+                + distanceInMeters;
+    }
+
+    /**
+     * Formats a location as a geopoint of the query language.
+     * @param location the location.
+     * @return the geopoint expression.
+     */
+    private static String toGeoPoint(final GeoPt location) {
+        return "geopoint(" + location.getLatitude() + ", " + location
+                .getLongitude()
+                + ")";
+    }
+
+    /**
+     * Converts search results into PlaceInfo objects.
+     * @param results the search results.
+     * @param location the location searched around.
+     * @param distanceInMeters the maximum distance to the location.
+     * @param resultCount the maximum number of places returned.
+     * @return the places.
+     */
+    private static List<PlaceInfo> toPlaceInfos(
+            final Results<ScoredDocument> results, final GeoPt location,
+            final long distanceInMeters, final int resultCount) {
+        List<PlaceInfo> places = new ArrayList<>();
+
+        for (ScoredDocument document : results) {
+            if (places.size() >= resultCount) {
+                break;
+            }
+
+            GeoPoint p = document.getOnlyField("place_location").getGeoPoint();
+
+            PlaceInfo place = new PlaceInfo();
+            place.setPlaceId(Long.valueOf(document.getOnlyField("id")
+                    .getText()));
+            place.setName(document.getOnlyField("name").getText());
+            place.setAddress(document.getOnlyField("address").getText());
+
+            place.setLocation(new GeoPt((float) p.getLatitude(),
+                    (float) p.getLongitude()));
+
+            // GeoPoints are not implemented on dev server and latitude and
+            // longitude are set to zero
+            // But since those are doubles let's play safe
+            // and use double comparison with epsilon set to EPSILON
+            if (Math.abs(p.getLatitude()) <= EPSILON
+                    && Math.abs(p.getLongitude()) <= EPSILON) {
+                // set a fake distance of 5+ km
+                place.setDistanceInKilometers(FAKE_DISTANCE_FOR_DEV + places
+                        .size());
+            } else {
+                double distance = distanceInMeters / METERS_IN_KILOMETER;
+                try {
+                    distance = PlacesHelper.getDistanceInKm(
+                            p.getLatitude(), p.getLongitude(),
+                            location.getLatitude(),
+                            location.getLongitude());
+                } catch (Exception e) {
+                    LOG.warning("Exception when calculating a distance: " + e
+                            .getMessage());
+                }
+
+                place.setDistanceInKilometers(distance);
+            }
+
+            places.add(place);
+        }
+        return places;
+    }
+
+    @Override
+    public void invalidate() {
+        // The Search API index is maintained separately from this engine.
+    }
+}
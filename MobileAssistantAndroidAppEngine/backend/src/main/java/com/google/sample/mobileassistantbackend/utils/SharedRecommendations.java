@@ -0,0 +1,281 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.sample.mobileassistantbackend.models.Recommendation;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The candidate recommendations of the places, generated once per place and
+ * WINDOW_IN_MILLISECONDS and shared by all the users checking into the place
+ * in that window, so a crowd checking into a place costs one generation.
+ *
+ * The candidates of a window are added to memcache only if no other
+ * instance added them first, and read back, so all the instances hand out
+ * the same candidates; each instance also keeps them in memory. The
+ * recommendations of a user are then selected from the candidates of the
+ * place, leaving out those of the places the user already visited.
+ */
+public final class SharedRecommendations {
+
+    /**
+     * Log output.
+     */
+    private static final Logger LOG = Logger
+            .getLogger(SharedRecommendations.class.getName());
+
+    /**
+     * The length of the windows the candidates are generated for.
+     */
+    private static final long WINDOW_IN_MILLISECONDS =
+            TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * The number of co-visited places the candidates are generated from.
+     */
+    private static final int CO_VISITED_PLACE_COUNT = 8;
+
+    /**
+     * The number of candidates generated from the template of the place
+     * itself, handed out once the co-visited places run out.
+     */
+    private static final int PLACE_CANDIDATE_COUNT = 2;
+
+    /**
+     * The maximum number of places whose candidates are kept in the
+     * instance.
+     */
+    private static final int LOCAL_CAPACITY = 1000;
+
+    /**
+     * The memcache namespace of the candidates.
+     */
+    private static final String NAMESPACE = "sharedrecommendations";
+
+    /**
+     * The candidates kept in the instance, by memcache key.
+     */
+    private static final LocalCache<String, ArrayList<Candidate>>
+            LOCAL_CACHE = new LocalCache<>(LOCAL_CAPACITY,
+                    WINDOW_IN_MILLISECONDS);
+
+    /**
+     * The memcache service.
+     */
+    private static final MemcacheService MEMCACHE =
+            MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+
+    /**
+     * Random generator of the prices and images.
+     */
+    private static final Random RANDOM = new Random();
+
+    /**
+     * Default constructor, never called.
+     */
+    private SharedRecommendations() {
+    }
+
+    /**
+     * Returns the candidate recommendations of a place for the window of a
+     * check-in, generating them if no instance did yet.
+     * @param placeId the identifier of the place.
+     * @param checkInTime the time of the check-in, in milliseconds.
+     * @return the candidates, best first, empty if there is no template.
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Candidate> getCandidates(final String placeId,
+            final long checkInTime) {
+        String key = placeId + ":" + (checkInTime / WINDOW_IN_MILLISECONDS);
+        ArrayList<Candidate> candidates = LOCAL_CACHE.get(key);
+        if (candidates != null) {
+            return candidates;
+        }
+
+        try {
+            candidates = (ArrayList<Candidate>) MEMCACHE.get(key);
+            if (candidates == null) {
+                ArrayList<Candidate> generated = generate(placeId);
+                // Keep the candidates of the instance which added them
+                // first.
+                MEMCACHE.put(key, generated, Expiration.byDeltaMillis(
+                        (int) (2 * WINDOW_IN_MILLISECONDS)),
+                        MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+                candidates = (ArrayList<Candidate>) MEMCACHE.get(key);
+                if (candidates == null) {
+                    candidates = generated;
+                }
+            }
+        } catch (RuntimeException e) {
+            LOG.warning("Could not share the candidates of place " + placeId
+                    + ": " + e);
+            candidates = generate(placeId);
+        }
+        LOCAL_CACHE.put(key, candidates);
+        return candidates;
+    }
+
+    /**
+     * Selects the recommendations of a user from the candidates of a place:
+     * the best candidates from places the user has not visited yet.
+     * @param candidates the candidates of the place, best first.
+     * @param userEmail the email of the user.
+     * @param count the maximum number of candidates to select.
+     * @return the selected candidates, best first.
+     */
+    public static List<Candidate> select(final List<Candidate> candidates,
+            final String userEmail, final int count) {
+        List<Candidate> selected = new ArrayList<>(count);
+        for (Candidate candidate : candidates) {
+            if (selected.size() == count) {
+                break;
+            }
+            if (candidate.sourcePlaceId == null
+                    || !PlaceCoOccurrences.hasVisited(userEmail,
+                            candidate.sourcePlaceId)) {
+                selected.add(candidate);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Generates the candidates of a place: one from the template of each of
+     * the places most often co-visited with it, followed by a few from the
+     * template of the place itself.
+     * @param placeId the identifier of the place.
+     * @return the candidates, best first.
+     */
+    private static ArrayList<Candidate> generate(final String placeId) {
+        long start = System.currentTimeMillis();
+        ArrayList<Candidate> candidates = new ArrayList<>();
+        for (String coVisitedPlaceId : PlaceCoOccurrences
+                .getRecommendedPlaces(null, placeId,
+                        CO_VISITED_PLACE_COUNT)) {
+            RecommendationTemplate template =
+                    RecommendationTemplates.getForPlace(coVisitedPlaceId);
+            if (template != null) {
+                candidates.add(new Candidate(coVisitedPlaceId, template));
+            }
+        }
+        RecommendationTemplate template =
+                RecommendationTemplates.getForPlace(placeId);
+        if (template != null) {
+            for (int i = 0; i < PLACE_CANDIDATE_COUNT; i++) {
+                candidates.add(new Candidate(null, template));
+            }
+        }
+        LOG.info("Generated " + candidates.size() + " candidates for place "
+                + placeId + " in " + (System.currentTimeMillis() - start)
+                + " ms");
+        return candidates;
+    }
+
+    /**
+     * A candidate recommendation, shared by the users of a place.
+     */
+    public static final class Candidate implements Serializable {
+
+        /**
+         * Serialization version.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The identifier of the co-visited place the candidate comes from,
+         * or null if it comes from the place itself.
+         */
+        private final String sourcePlaceId;
+
+        /**
+         * The recommendation title.
+         */
+        private final String title;
+
+        /**
+         * The recommendation description.
+         */
+        private final String description;
+
+        /**
+         * The URL to the image associated to the recommendation.
+         */
+        private final String imageUrl;
+
+        /**
+         * The name of the recommended product.
+         */
+        private final String productName;
+
+        /**
+         * Generates a candidate from a template, customized using randomly
+         * generated prices and one of a few available product
+         * recommendation images.
+         * @param pSourcePlaceId the identifier of the co-visited place, or
+         *      null.
+         * @param template the template of the candidate.
+         */
+        private Candidate(final String pSourcePlaceId,
+                final RecommendationTemplate template) {
+            this.sourcePlaceId = pSourcePlaceId;
+            this.title = template.getTitle();
+            this.description = template.formatDescription(
+                    110 + RANDOM.nextInt(90), 80 + RANDOM.nextInt(20));
+            this.imageUrl = template.formatImageUrl(3 + RANDOM.nextInt(6));
+            this.productName = template.getProductName();
+        }
+
+        /**
+         * Returns the name of the recommended product.
+         * @return the product name.
+         */
+        public String getProductName() {
+            return productName;
+        }
+
+        /**
+         * Creates the recommendation of a user from this candidate.
+         * @param userEmail the email of the user.
+         * @param placeId the identifier of the place, or null.
+         * @param expiration the expiration date of the recommendation.
+         * @return the new recommendation.
+         */
+        public Recommendation toRecommendation(final String userEmail,
+                final Long placeId, final Date expiration) {
+            Recommendation r = new Recommendation();
+            r.generateId();
+            r.setTitle(title);
+            r.setDescription(description);
+            r.setImageUrl(imageUrl);
+            r.setExpiration(expiration);
+            r.setPlaceId(placeId);
+            r.setUserEmail(userEmail);
+            return r;
+        }
+    }
+}
